@@ -1,5 +1,7 @@
 package fr.inria.tyrex.senslogs;
 
+import android.os.Process;
+
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
@@ -8,7 +10,6 @@ import fr.inria.tyrex.senslogs.control.LogsManager;
 import fr.inria.tyrex.senslogs.control.PreferencesManager;
 import fr.inria.tyrex.senslogs.control.Recorder;
 import fr.inria.tyrex.senslogs.control.SensorsManager;
-import fr.inria.tyrex.senslogs.model.log.Log;
 
 /**
  * Application class accessible from all activities
@@ -63,14 +64,21 @@ public class Application extends android.app.Application {
             return;
         }
 
-        List<File> logFiles = new ArrayList<>();
-        for (Log log : mLogsManager.getLogs()) {
-            logFiles.add(log.getZipFile());
-        }
-
-        for (File child : getFilesDir().listFiles())
-            if (!logFiles.contains(child))
-                deleteRecursive(child);
+        // Files of records created after the start are not listed. Orphaned records are kept
+        // until the user recovers or deletes them
+        final File[] children = getFilesDir().listFiles();
+        final List<File> orphanedRecords = new ArrayList<>(mLogsManager.getOrphanedRecords());
+
+        // Database is opened there the first time
+        new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            List<File> logFiles = mLogsManager.getZipFiles();
+            logFiles.addAll(orphanedRecords);
+
+            for (File child : children)
+                if (!logFiles.contains(child))
+                    deleteRecursive(child);
+        }, "Application-clean").start();
     }
 
     public void clearAll() {
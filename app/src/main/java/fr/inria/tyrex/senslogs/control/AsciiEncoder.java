@@ -0,0 +1,271 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.Charset;
+
+/**
+ * Write numbers as ASCII text directly in a byte array, without intermediate String.
+ * Methods return the offset after the written bytes.
+ * <p>
+ * Output is the same than {@link String#format} with "%.nf" for fixed precision, and the same
+ * layout than {@link Float#toString(float)} for floats with the shortest digits which are parsed
+ * back to the same float.
+ */
+final class AsciiEncoder {
+
+    /**
+     * Maximum number of bytes written for a float, a double or a long
+     */
+    static final int MAX_NUMBER_LENGTH = 32;
+
+    /**
+     * Maximum number of bytes written by {@link #putFixed}: sign, 309 integer digits, point and
+     * 9 decimals
+     */
+    static final int MAX_FIXED_LENGTH = 320;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+
+    // Powers of ten exactly represented by a double
+    private static final double[] POW10 = new double[23];
+    private static final long[] LONG_POW10 = new long[19];
+
+    static {
+        double pow = 1;
+        for (int i = 0; i < POW10.length; i++) {
+            POW10[i] = pow;
+            pow *= 10;
+        }
+        long longPow = 1;
+        for (int i = 0; i < LONG_POW10.length; i++) {
+            LONG_POW10[i] = longPow;
+            longPow *= 10;
+        }
+    }
+
+    // Above, a double times 10^decimals cannot be exactly rounded to a long
+    private static final double MAX_FAST_FIXED = 1L << 52;
+
+    private AsciiEncoder() {
+    }
+
+
+    /**
+     * Same as String.format(Locale.US, "%.{decimals}f", value), with decimals up to 9
+     */
+    static int putFixed(byte[] dst, int offset, double value, int decimals) {
+
+        if (Double.isNaN(value)) {
+            return put(dst, offset, NAN);
+        }
+
+        if (Double.doubleToRawLongBits(value) < 0) {
+            dst[offset++] = '-';
+            value = -value;
+        }
+
+        if (Double.isInfinite(value)) {
+            return put(dst, offset, INFINITY);
+        }
+
+        double scaled = value * POW10[decimals];
+        if (scaled >= MAX_FAST_FIXED) {
+            return putFixedSlow(dst, offset, value, decimals);
+        }
+
+        // Formatter rounds half up the shortest decimal representation of the double (the one of
+        // Double.toString), which can be a tie when the exact binary value is not, and the
+        // product above is rounded itself, so values close to a tie are checked with BigDecimal
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+        if (Math.abs(fraction - 0.5) <= 4 * Math.ulp(scaled)) {
+            return putFixedSlow(dst, offset, value, decimals);
+        }
+
+        long units = (long) floor + (fraction > 0.5 ? 1 : 0);
+        long integerPart = units / LONG_POW10[decimals];
+        long fractionPart = units % LONG_POW10[decimals];
+
+        offset = putLong(dst, offset, integerPart);
+        if (decimals > 0) {
+            dst[offset++] = '.';
+            offset = putDigits(dst, offset, fractionPart, decimals);
+        }
+        return offset;
+    }
+
+    private static int putFixedSlow(byte[] dst, int offset, double positiveValue, int decimals) {
+        String text = new BigDecimal(Double.toString(positiveValue))
+                .setScale(decimals, RoundingMode.HALF_UP).toPlainString();
+        for (int i = 0; i < text.length(); i++) {
+            dst[offset++] = (byte) text.charAt(i);
+        }
+        return offset;
+    }
+
+
+    /**
+     * Same layout than Float.toString(value): plain notation between 10^-3 and 10^7 with at least
+     * one fractional digit, computerized scientific notation otherwise.
+     */
+    static int putFloat(byte[] dst, int offset, float value) {
+
+        if (Float.isNaN(value)) {
+            return put(dst, offset, NAN);
+        }
+
+        if (Float.floatToRawIntBits(value) < 0) {
+            dst[offset++] = '-';
+            value = -value;
+        }
+
+        if (Float.isInfinite(value)) {
+            return put(dst, offset, INFINITY);
+        }
+
+        if (value == 0) {
+            dst[offset++] = '0';
+            dst[offset++] = '.';
+            dst[offset++] = '0';
+            return offset;
+        }
+
+        double v = value;
+
+        // Bounds of decimal values which are parsed back to this float. They are exact in double.
+        double ulp = Math.ulp(value);
+        boolean lowerGapIsSmaller = (Float.floatToRawIntBits(value) & 0x7FFFFF) == 0 &&
+                value > Float.MIN_NORMAL;
+        double low = v - (lowerGapIsSmaller ? ulp / 4 : ulp / 2);
+        double high = v + ulp / 2;
+        boolean evenMantissa = (Float.floatToRawIntBits(value) & 1) == 0;
+
+        int exponent = (int) Math.floor(Math.log10(v));
+
+        // Find the shortest number of digits
+        long digits = 0;
+        int scale = 0;
+        boolean found = false;
+        for (int precision = 1; precision <= 10; precision++) {
+            scale = exponent - precision + 1;
+            if (scale < -22 || scale > 22) {
+                break;
+            }
+            // Ties to even, like Float.toString
+            digits = (long) Math.rint(scale >= 0 ? v / POW10[scale] : v * POW10[-scale]);
+            double candidate = scale >= 0 ? digits * POW10[scale] : digits / POW10[-scale];
+            if (candidate > low && candidate < high ||
+                    evenMantissa && (candidate == low || candidate == high)) {
+                found = true;
+                break;
+            }
+        }
+
+        // Very small or very large floats, not used by sensors
+        if (!found) {
+            return put(dst, offset, Float.toString(value).getBytes(UTF_8));
+        }
+
+        while (digits % 10 == 0) {
+            digits /= 10;
+            scale++;
+        }
+
+        int length = numberOfDigits(digits);
+        int decimalExponent = scale + length - 1;
+
+        if (value >= 1e-3f && value < 1e7f) {
+
+            if (decimalExponent >= 0) {
+                int integerLength = decimalExponent + 1;
+                if (length <= integerLength) {
+                    offset = putLong(dst, offset, digits);
+                    for (int i = length; i < integerLength; i++) {
+                        dst[offset++] = '0';
+                    }
+                    dst[offset++] = '.';
+                    dst[offset++] = '0';
+                } else {
+                    long divisor = LONG_POW10[length - integerLength];
+                    offset = putLong(dst, offset, digits / divisor);
+                    dst[offset++] = '.';
+                    offset = putDigits(dst, offset, digits % divisor, length - integerLength);
+                }
+            } else {
+                dst[offset++] = '0';
+                dst[offset++] = '.';
+                for (int i = -1; i > decimalExponent; i--) {
+                    dst[offset++] = '0';
+                }
+                offset = putLong(dst, offset, digits);
+            }
+
+        } else {
+
+            long divisor = LONG_POW10[length - 1];
+            dst[offset++] = (byte) ('0' + digits / divisor);
+            dst[offset++] = '.';
+            if (length > 1) {
+                offset = putDigits(dst, offset, digits % divisor, length - 1);
+            } else {
+                dst[offset++] = '0';
+            }
+            dst[offset++] = 'E';
+            offset = putLong(dst, offset, decimalExponent);
+        }
+
+        return offset;
+    }
+
+    /**
+     * Same as Double.toString(value). Doubles are only used by low rate sensors so this one
+     * relies on the JDK.
+     */
+    static int putDouble(byte[] dst, int offset, double value) {
+        String text = Double.toString(value);
+        for (int i = 0; i < text.length(); i++) {
+            dst[offset++] = (byte) text.charAt(i);
+        }
+        return offset;
+    }
+
+    static int putLong(byte[] dst, int offset, long value) {
+
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                return put(dst, offset, Long.toString(value).getBytes(UTF_8));
+            }
+            dst[offset++] = '-';
+            value = -value;
+        }
+        return putDigits(dst, offset, value, numberOfDigits(value));
+    }
+
+    /**
+     * Write a positive value on length digits, with leading zeros
+     */
+    private static int putDigits(byte[] dst, int offset, long value, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + length;
+    }
+
+    private static int numberOfDigits(long positiveValue) {
+        int length = 1;
+        while (length < LONG_POW10.length && positiveValue >= LONG_POW10[length]) {
+            length++;
+        }
+        return length;
+    }
+
+    static int put(byte[] dst, int offset, byte[] bytes) {
+        System.arraycopy(bytes, 0, dst, offset, bytes.length);
+        return offset + bytes.length;
+    }
+}
@@ -0,0 +1,457 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import fr.inria.tyrex.senslogs.Application;
+
+/**
+ * Self-described binary records. All numbers are little-endian.
+ * <pre>
+ * magic        8 bytes  "SENSLOGB"
+ * version      u16
+ * header       u32 length + UTF-8 text, same header than text files
+ * timestamps   u8       number of timestamp columns (1 or 2)
+ * time type    u8       TYPE_DOUBLE for seconds, or TYPE_LONG for nanoseconds (since version 2,
+ *                       always seconds in version 1)
+ * columns      u16      number of columns (timestamps included)
+ *   type       u8       (only for values columns) one of TYPE_*
+ *   name       u16 length + UTF-8 text
+ * records      until the end of file, timestamps then values, with fixed-width primitives.
+ *              Strings are stored as u16 length + UTF-8 text.
+ *              Dictionary strings (since version 3) are stored as u16 index in the dictionary of
+ *              the file. The first occurrence of a string takes the next index, it is followed by
+ *              the string. Once the dictionary is full, strings are written with the next index
+ *              (0xFFFF) but are not added.
+ * </pre>
+ * The schema is taken from {@link fr.inria.tyrex.senslogs.model.FieldsWritableObject#getFields}
+ * for names, and from the first record for types, so it is written with the first record. A
+ * null first value makes a string column. Later values which do not fit the type of their column
+ * (e.g. a string in a float column, written as NaN) are counted and logged.
+ * Strings columns are dictionary ones when the sensor tells their values are repeated, see
+ * {@link fr.inria.tyrex.senslogs.model.sensors.Sensor#isDictionaryField}.
+ */
+class BinaryRecordEncoder implements RecordEncoder {
+
+    static final byte[] MAGIC = {'S', 'E', 'N', 'S', 'L', 'O', 'G', 'B'};
+    static final int VERSION = 3;
+
+    static final byte TYPE_FLOAT = 1;
+    static final byte TYPE_DOUBLE = 2;
+    static final byte TYPE_INT = 3;
+    static final byte TYPE_LONG = 4;
+    static final byte TYPE_STRING = 5;
+    static final byte TYPE_DICTIONARY_STRING = 6;
+
+    static final int MAX_DICTIONARY_SIZE = 0xFFFF;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    private final String mHeader;
+    private final String[] mFields;
+    private final boolean[] mDictionaryFields;
+
+    private int mTimestamps;
+    private boolean mNanoseconds;
+    private byte[] mTypes;
+    private byte[][] mStrings;
+    private byte mUniformType;
+
+    // Index of strings of dictionary columns, one dictionary for the whole file
+    private final Map<String, Integer> mDictionary = new HashMap<>();
+    private int[] mIndexes;
+
+    private long mMismatchedValues;
+
+    /**
+     * @param dictionaryFields for each value of records (timestamps excluded), true if it is a
+     *                         string repeated across records
+     */
+    BinaryRecordEncoder(String header, String[] fields, boolean[] dictionaryFields) {
+        mHeader = header;
+        mFields = fields;
+        mDictionaryFields = dictionaryFields;
+    }
+
+    @Override
+    public void start(RecordOutput output) {
+        // Header is written with the first record, when types are known
+    }
+
+    @Override
+    public void write(RecordOutput output, double elapsedTimeSystem, Double elapsedTimeSensor,
+                      Object[] values) throws IOException {
+
+        if (mTypes == null) {
+            createSchema(elapsedTimeSensor != null, false, values);
+            writeHeader(output);
+        }
+
+        ByteBuffer buffer = reserveObjects(output, values);
+        putTimestamps(buffer, elapsedTimeSystem,
+                elapsedTimeSensor == null ? elapsedTimeSystem : elapsedTimeSensor);
+        putObjects(buffer, values);
+    }
+
+    /**
+     * Record of float values which do not match the schema, written once it is created
+     */
+    private void writeNanos(RecordOutput output, long elapsedTimeSystem, long elapsedTimeSensor,
+                            Object[] values) throws IOException {
+
+        ByteBuffer buffer = reserveObjects(output, values);
+        putTimestamps(buffer, elapsedTimeSystem, elapsedTimeSensor);
+        putObjects(buffer, values);
+    }
+
+    @Override
+    public void writeNanos(RecordOutput output, long elapsedTimeSystem, long elapsedTimeSensor,
+                           float[] values, int length) throws IOException {
+
+        if (mTypes == null) {
+            createSchema(TYPE_FLOAT, length, true);
+            writeHeader(output);
+        }
+
+        if (!isUniform(TYPE_FLOAT, length)) {
+            Object[] objects = new Object[length];
+            for (int i = 0; i < length; i++) objects[i] = values[i];
+            writeNanos(output, elapsedTimeSystem, elapsedTimeSensor, objects);
+            return;
+        }
+
+        ByteBuffer buffer = output.reserve(16 + 4 * length);
+        putTimestamps(buffer, elapsedTimeSystem, elapsedTimeSensor);
+        for (int i = 0; i < length; i++) {
+            buffer.putFloat(values[i]);
+        }
+    }
+
+    @Override
+    public void write(RecordOutput output, double elapsedTimeSystem, double elapsedTimeSensor,
+                      float[] values, int length) throws IOException {
+
+        if (mTypes == null) {
+            createSchema(TYPE_FLOAT, length, false);
+            writeHeader(output);
+        }
+
+        // Schema does not match, should not happen as a sensor always uses the same listener
+        if (!isUniform(TYPE_FLOAT, length)) {
+            Object[] objects = new Object[length];
+            for (int i = 0; i < length; i++) objects[i] = values[i];
+            write(output, elapsedTimeSystem, (Double) elapsedTimeSensor, objects);
+            return;
+        }
+
+        ByteBuffer buffer = output.reserve(16 + 4 * length);
+        putTimestamps(buffer, elapsedTimeSystem, elapsedTimeSensor);
+        for (int i = 0; i < length; i++) {
+            buffer.putFloat(values[i]);
+        }
+    }
+
+    @Override
+    public void write(RecordOutput output, double elapsedTimeSystem, double elapsedTimeSensor,
+                      double[] values, int length) throws IOException {
+
+        if (mTypes == null) {
+            createSchema(TYPE_DOUBLE, length, false);
+            writeHeader(output);
+        }
+
+        if (!isUniform(TYPE_DOUBLE, length)) {
+            Object[] objects = new Object[length];
+            for (int i = 0; i < length; i++) objects[i] = values[i];
+            write(output, elapsedTimeSystem, (Double) elapsedTimeSensor, objects);
+            return;
+        }
+
+        ByteBuffer buffer = output.reserve(16 + 8 * length);
+        putTimestamps(buffer, elapsedTimeSystem, elapsedTimeSensor);
+        for (int i = 0; i < length; i++) {
+            buffer.putDouble(values[i]);
+        }
+    }
+
+    @Override
+    public void write(RecordOutput output, double elapsedTimeSystem, double elapsedTimeSensor,
+                      long[] values, int length) throws IOException {
+
+        if (mTypes == null) {
+            createSchema(TYPE_LONG, length, false);
+            writeHeader(output);
+        }
+
+        if (!isUniform(TYPE_LONG, length)) {
+            Object[] objects = new Object[length];
+            for (int i = 0; i < length; i++) objects[i] = values[i];
+            write(output, elapsedTimeSystem, (Double) elapsedTimeSensor, objects);
+            return;
+        }
+
+        ByteBuffer buffer = output.reserve(16 + 8 * length);
+        putTimestamps(buffer, elapsedTimeSystem, elapsedTimeSensor);
+        for (int i = 0; i < length; i++) {
+            buffer.putLong(values[i]);
+        }
+    }
+
+    @Override
+    public long getMismatchedValues() {
+        return mMismatchedValues;
+    }
+
+    @Override
+    public void finish(RecordOutput output) throws IOException {
+
+        // Nothing has been recorded, header is written without values columns
+        if (mTypes == null) {
+            createSchema(false, false, new Object[0]);
+            writeHeader(output);
+        }
+    }
+
+
+    private void createSchema(boolean withSensorTimestamp, boolean nanoseconds, Object[] values) {
+
+        mTimestamps = withSensorTimestamp ? 2 : 1;
+        mNanoseconds = nanoseconds;
+        mTypes = new byte[values.length];
+        mStrings = new byte[values.length][];
+        mIndexes = new int[values.length];
+
+        for (int i = 0; i < values.length; i++) {
+            mTypes[i] = getType(values[i]);
+            if (mTypes[i] == TYPE_STRING && i < mDictionaryFields.length &&
+                    mDictionaryFields[i]) {
+                mTypes[i] = TYPE_DICTIONARY_STRING;
+            }
+        }
+    }
+
+    private void createSchema(byte type, int length, boolean nanoseconds) {
+
+        mTimestamps = 2;
+        mNanoseconds = nanoseconds;
+        mTypes = new byte[length];
+        mStrings = new byte[length][];
+        mIndexes = new int[length];
+        mUniformType = type;
+
+        for (int i = 0; i < length; i++) {
+            mTypes[i] = type;
+        }
+    }
+
+    private boolean isUniform(byte type, int length) {
+        return mUniformType == type && mTimestamps == 2 && mTypes.length == length;
+    }
+
+    private void writeHeader(RecordOutput output) throws IOException {
+
+        byte[] header = mHeader.getBytes(UTF_8);
+        int columns = mTimestamps + mTypes.length;
+
+        byte[][] names = new byte[columns][];
+        int length = MAGIC.length + 2 + 4 + header.length + 1 + 1 + 2 + mTypes.length;
+        for (int i = 0; i < columns; i++) {
+            names[i] = toBytes(i < mFields.length ? mFields[i] : "field-" + (i + 1));
+            length += 2 + names[i].length;
+        }
+
+        ByteBuffer buffer = output.reserve(length);
+        buffer.put(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putInt(header.length);
+        buffer.put(header);
+        buffer.put((byte) mTimestamps);
+        buffer.put(mNanoseconds ? TYPE_LONG : TYPE_DOUBLE);
+        buffer.putShort((short) columns);
+        for (int i = 0; i < columns; i++) {
+            if (i >= mTimestamps) {
+                buffer.put(mTypes[i - mTimestamps]);
+            }
+            buffer.putShort((short) names[i].length);
+            buffer.put(names[i]);
+        }
+    }
+
+
+    /*
+     * A stream keeps the unit of its first record, both should not be mixed
+     */
+
+    private void putTimestamps(ByteBuffer buffer, double elapsedTimeSystem,
+                               double elapsedTimeSensor) {
+        if (mNanoseconds) {
+            buffer.putLong(Math.round(elapsedTimeSystem * 1e9));
+            if (mTimestamps > 1) buffer.putLong(Math.round(elapsedTimeSensor * 1e9));
+        } else {
+            buffer.putDouble(elapsedTimeSystem);
+            if (mTimestamps > 1) buffer.putDouble(elapsedTimeSensor);
+        }
+    }
+
+    private void putTimestamps(ByteBuffer buffer, long elapsedTimeSystem,
+                               long elapsedTimeSensor) {
+        if (mNanoseconds) {
+            buffer.putLong(elapsedTimeSystem);
+            if (mTimestamps > 1) buffer.putLong(elapsedTimeSensor);
+        } else {
+            buffer.putDouble(elapsedTimeSystem / 1e9);
+            if (mTimestamps > 1) buffer.putDouble(elapsedTimeSensor / 1e9);
+        }
+    }
+
+    private ByteBuffer reserveObjects(RecordOutput output, Object[] values) throws IOException {
+
+        int length = 8 * mTimestamps;
+        for (int i = 0; i < mTypes.length; i++) {
+            Object value = i < values.length ? values[i] : null;
+            switch (mTypes[i]) {
+                case TYPE_FLOAT:
+                case TYPE_INT:
+                    length += 4;
+                    break;
+                case TYPE_DOUBLE:
+                case TYPE_LONG:
+                    length += 8;
+                    break;
+                case TYPE_DICTIONARY_STRING:
+                    length += 2 + prepareDictionaryString(i, value);
+                    break;
+                default:
+                    mStrings[i] = toBytes(value);
+                    length += 2 + mStrings[i].length;
+            }
+        }
+        return output.reserve(length);
+    }
+
+    private void putObjects(ByteBuffer buffer, Object[] values) {
+
+        for (int i = 0; i < mTypes.length; i++) {
+            Object value = i < values.length ? values[i] : null;
+            Number number = value instanceof Number ? (Number) value : null;
+            if (!fitsType(mTypes[i], value)) {
+                onMismatchedValue(i, value);
+            }
+            switch (mTypes[i]) {
+                case TYPE_FLOAT:
+                    buffer.putFloat(number == null ? Float.NaN : number.floatValue());
+                    break;
+                case TYPE_DOUBLE:
+                    buffer.putDouble(number == null ? Double.NaN : number.doubleValue());
+                    break;
+                case TYPE_INT:
+                    buffer.putInt(number == null ? 0 : number.intValue());
+                    break;
+                case TYPE_LONG:
+                    buffer.putLong(number == null ? 0 : number.longValue());
+                    break;
+                case TYPE_DICTIONARY_STRING:
+                    buffer.putShort((short) mIndexes[i]);
+                    if (mStrings[i] != null) {
+                        buffer.putShort((short) mStrings[i].length);
+                        buffer.put(mStrings[i]);
+                        mStrings[i] = null;
+                    }
+                    break;
+                default:
+                    buffer.putShort((short) mStrings[i].length);
+                    buffer.put(mStrings[i]);
+                    mStrings[i] = null;
+            }
+        }
+    }
+
+
+    /**
+     * Find the index of a string in the dictionary, or add it
+     *
+     * @return length of the string to write after its index, 0 if it is already in the
+     * dictionary
+     */
+    private int prepareDictionaryString(int column, Object value) {
+
+        String string = value == null ? "" : value.toString();
+        Integer index = mDictionary.get(string);
+        if (index != null) {
+            mIndexes[column] = index;
+            return 0;
+        }
+
+        mIndexes[column] = mDictionary.size();
+        if (mDictionary.size() < MAX_DICTIONARY_SIZE) {
+            mDictionary.put(string, mDictionary.size());
+        }
+        mStrings[column] = toBytes(string);
+        return 2 + mStrings[column].length;
+    }
+
+    private void onMismatchedValue(int column, Object value) {
+        if (mMismatchedValues++ == 0) {
+            int field = mTimestamps + column;
+            android.util.Log.w(Application.LOG_TAG, value.getClass().getSimpleName() +
+                    " value does not fit the type " + mTypes[column] + " of column " +
+                    (field < mFields.length ? mFields[field] : "field-" + (field + 1)));
+        }
+    }
+
+    /**
+     * @return true if the value is written as it is in a column of the type, null values are
+     * missing values (NaN, 0 or an empty string)
+     */
+    private static boolean fitsType(byte type, Object value) {
+        if (value == null) {
+            return true;
+        }
+        byte valueType = getType(value);
+        switch (type) {
+            case TYPE_FLOAT:
+                return valueType == TYPE_FLOAT;
+            case TYPE_DOUBLE:
+                return valueType == TYPE_DOUBLE || valueType == TYPE_FLOAT ||
+                        valueType == TYPE_INT;
+            case TYPE_INT:
+                return valueType == TYPE_INT;
+            case TYPE_LONG:
+                return valueType == TYPE_LONG || valueType == TYPE_INT;
+            default:
+                // Written with toString()
+                return true;
+        }
+    }
+
+    private static byte getType(Object value) {
+        if (value instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (value instanceof Double) {
+            return TYPE_DOUBLE;
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return TYPE_INT;
+        } else if (value instanceof Long) {
+            return TYPE_LONG;
+        }
+        return TYPE_STRING;
+    }
+
+    private static byte[] toBytes(Object value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        byte[] bytes = value.toString().getBytes(UTF_8);
+        if (bytes.length > MAX_STRING_LENGTH) {
+            byte[] truncated = new byte[MAX_STRING_LENGTH];
+            System.arraycopy(bytes, 0, truncated, 0, MAX_STRING_LENGTH);
+            return truncated;
+        }
+        return bytes;
+    }
+}
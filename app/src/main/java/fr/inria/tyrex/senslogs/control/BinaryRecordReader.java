@@ -0,0 +1,231 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Read records written by {@link BinaryRecordEncoder}
+ */
+class BinaryRecordReader {
+
+    private final InputStream mInput;
+    private final ByteBuffer mScratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+    // Bytes read from the input
+    private long mPosition;
+
+    private final String mHeader;
+    private final int mTimestamps;
+    private final boolean mNanoseconds;
+    private final String[] mColumns;
+    private final byte[] mTypes;
+
+    private long mElapsedTimeSystemNanos;
+    private long mElapsedTimeSensorNanos;
+    private double mElapsedTimeSystem;
+    private Double mElapsedTimeSensor;
+    private final Object[] mValues;
+
+    // Strings of dictionary columns, by index
+    private final List<String> mDictionary = new ArrayList<>();
+
+    BinaryRecordReader(InputStream input) throws IOException {
+
+        mInput = input;
+
+        byte[] magic = readBytes(BinaryRecordEncoder.MAGIC.length);
+        if (!Arrays.equals(magic, BinaryRecordEncoder.MAGIC)) {
+            throw new IOException("Not a binary record file");
+        }
+        int version = readShort();
+        if (version < 1 || version > BinaryRecordEncoder.VERSION) {
+            throw new IOException("Unsupported binary record version: " + version);
+        }
+
+        mHeader = new String(readBytes(readInt()), BinaryRecordEncoder.UTF_8);
+        mTimestamps = readByte();
+        mNanoseconds = version >= 2 && readByte() == BinaryRecordEncoder.TYPE_LONG;
+
+        int columns = readShort();
+        mColumns = new String[columns];
+        mTypes = new byte[Math.max(0, columns - mTimestamps)];
+        for (int i = 0; i < columns; i++) {
+            if (i >= mTimestamps) {
+                mTypes[i - mTimestamps] = (byte) readByte();
+            }
+            mColumns[i] = readString();
+        }
+
+        mValues = new Object[mTypes.length];
+    }
+
+    String getHeader() {
+        return mHeader;
+    }
+
+    String[] getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * @return number of bytes of the header and records read so far, i.e. the end of the last
+     * complete record once {@link #next()} has returned true
+     */
+    long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Read the next record
+     *
+     * @return false if there is no more complete record
+     */
+    boolean next() throws IOException {
+
+        try {
+            if (mNanoseconds) {
+                mElapsedTimeSystemNanos = readLong();
+            } else {
+                mElapsedTimeSystem = readDouble();
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+
+        try {
+            if (mNanoseconds) {
+                mElapsedTimeSensorNanos = mTimestamps > 1 ?
+                        readLong() : mElapsedTimeSystemNanos;
+                mElapsedTimeSystem = mElapsedTimeSystemNanos / 1e9;
+                mElapsedTimeSensor = mTimestamps > 1 ? mElapsedTimeSensorNanos / 1e9 : null;
+            } else {
+                mElapsedTimeSensor = mTimestamps > 1 ? readDouble() : null;
+            }
+
+            for (int i = 0; i < mTypes.length; i++) {
+                switch (mTypes[i]) {
+                    case BinaryRecordEncoder.TYPE_FLOAT:
+                        mValues[i] = Float.intBitsToFloat(readInt());
+                        break;
+                    case BinaryRecordEncoder.TYPE_DOUBLE:
+                        mValues[i] = readDouble();
+                        break;
+                    case BinaryRecordEncoder.TYPE_INT:
+                        mValues[i] = readInt();
+                        break;
+                    case BinaryRecordEncoder.TYPE_LONG:
+                        mValues[i] = readLong();
+                        break;
+                    case BinaryRecordEncoder.TYPE_STRING:
+                        mValues[i] = readString();
+                        break;
+                    case BinaryRecordEncoder.TYPE_DICTIONARY_STRING:
+                        mValues[i] = readDictionaryString();
+                        break;
+                    default:
+                        throw new IOException("Unknown column type: " + mTypes[i]);
+                }
+            }
+        } catch (EOFException e) {
+            // Last record has been truncated
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if timestamps have been recorded in nanoseconds, getters in seconds are then
+     * rounded
+     */
+    boolean isNanoseconds() {
+        return mNanoseconds;
+    }
+
+    long getElapsedTimeSystemNanos() {
+        return mElapsedTimeSystemNanos;
+    }
+
+    long getElapsedTimeSensorNanos() {
+        return mElapsedTimeSensorNanos;
+    }
+
+    double getElapsedTimeSystem() {
+        return mElapsedTimeSystem;
+    }
+
+    Double getElapsedTimeSensor() {
+        return mElapsedTimeSensor;
+    }
+
+    Object[] getValues() {
+        return mValues;
+    }
+
+
+    private int readByte() throws IOException {
+        int value = mInput.read();
+        if (value < 0) throw new EOFException();
+        mPosition++;
+        return value;
+    }
+
+    private int readShort() throws IOException {
+        readFully(mScratch.array(), 2);
+        return mScratch.getShort(0) & 0xFFFF;
+    }
+
+    private int readInt() throws IOException {
+        readFully(mScratch.array(), 4);
+        return mScratch.getInt(0);
+    }
+
+    private long readLong() throws IOException {
+        readFully(mScratch.array(), 8);
+        return mScratch.getLong(0);
+    }
+
+    private double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    private String readString() throws IOException {
+        return new String(readBytes(readShort()), BinaryRecordEncoder.UTF_8);
+    }
+
+    private String readDictionaryString() throws IOException {
+        int index = readShort();
+        if (index < mDictionary.size()) {
+            return mDictionary.get(index);
+        }
+        if (index > mDictionary.size()) {
+            throw new IOException("Unknown dictionary index: " + index);
+        }
+        String string = readString();
+        if (mDictionary.size() < BinaryRecordEncoder.MAX_DICTIONARY_SIZE) {
+            mDictionary.add(string);
+        }
+        return string;
+    }
+
+    private byte[] readBytes(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        readFully(bytes, length);
+        return bytes;
+    }
+
+    private void readFully(byte[] bytes, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int count = mInput.read(bytes, offset, length - offset);
+            if (count < 0) throw new EOFException();
+            offset += count;
+        }
+        mPosition += length;
+    }
+}
@@ -0,0 +1,108 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Deflate level of each entry of a log zip file. Files which are already compressed (videos,
+ * images, archives) are stored: deflating them costs time for almost no gain.
+ * <p>
+ * Level of a file is the one set for it, else it is stored if its extension is known to be
+ * compressed, or if a sample of its bytes looks random.
+ */
+public class CompressionPolicy {
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "mp4", "3gp", "webm", "mkv", "m4a", "aac", "mp3", "ogg", "jpg", "jpeg", "png", "webp",
+            "zip", "gz", "deflate"));
+
+    private static final int SAMPLE_SIZE = 16 * 1024;
+
+    // Bits per byte, deflate gains only a few percents above
+    private static final double MAX_ENTROPY = 7.5;
+
+    private final int mDefaultLevel;
+    private final Map<File, Integer> mLevels = new HashMap<>();
+
+    public CompressionPolicy() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param defaultLevel level of files which look compressible
+     */
+    public CompressionPolicy(int defaultLevel) {
+        mDefaultLevel = defaultLevel;
+    }
+
+    /**
+     * Set the level of a file, without looking at its content
+     */
+    public void setLevel(File file, int level) {
+        mLevels.put(file, level);
+    }
+
+    /**
+     * @return deflate level of a file, {@link Deflater#NO_COMPRESSION} if it has to be stored
+     */
+    public int getLevel(File file) {
+
+        Integer level = mLevels.get(file);
+        if (level != null) {
+            return level;
+        }
+
+        String name = file.getName();
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.US);
+        if (COMPRESSED_EXTENSIONS.contains(extension)) {
+            return Deflater.NO_COMPRESSION;
+        }
+
+        return isCompressible(file) ? mDefaultLevel : Deflater.NO_COMPRESSION;
+    }
+
+    /**
+     * Entropy of bytes of a sample from the middle of the file, after headers
+     */
+    private static boolean isCompressible(File file) {
+
+        long length = file.length();
+        if (length <= SAMPLE_SIZE) {
+            return true;
+        }
+
+        byte[] sample = new byte[SAMPLE_SIZE];
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                input.seek((length - SAMPLE_SIZE) / 2);
+                input.readFully(sample);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return true;
+        }
+
+        int[] counts = new int[256];
+        for (byte b : sample) {
+            counts[b & 0xFF]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0) continue;
+            double p = (double) count / SAMPLE_SIZE;
+            entropy -= p * Math.log(p);
+        }
+        return entropy / Math.log(2) < MAX_ENTROPY;
+    }
+}
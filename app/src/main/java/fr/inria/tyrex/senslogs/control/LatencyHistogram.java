@@ -0,0 +1,68 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of latencies in power of two buckets of microseconds, filled by one thread and read by
+ * others. Percentiles are the upper bound of their bucket.
+ */
+class LatencyHistogram {
+
+    // Last bucket counts latencies above 2^30 us (18 minutes)
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private volatile long mMaxNanos;
+
+    /**
+     * Called by the thread which owns the histogram
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        mCounts.lazySet(bucket, mCounts.get(bucket) + 1);
+        if (nanos > mMaxNanos) {
+            mMaxNanos = nanos;
+        }
+    }
+
+    /**
+     * @param fraction between 0 and 1, e.g. 0.99
+     * @return percentile of latencies of all histograms in ms, 0 if there is none
+     */
+    static double getPercentileMs(Collection<LatencyHistogram> histograms, double fraction) {
+
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (LatencyHistogram histogram : histograms) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = histogram.mCounts.get(i);
+                counts[i] += count;
+                total += count;
+            }
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // Bucket i holds latencies below 2^i us
+                return (1L << i) / 1e3;
+            }
+        }
+        return (1L << (BUCKETS - 1)) / 1e3;
+    }
+
+    static double getMaxMs(Collection<LatencyHistogram> histograms) {
+        long max = 0;
+        for (LatencyHistogram histogram : histograms) {
+            max = Math.max(max, histogram.mMaxNanos);
+        }
+        return max / 1e6;
+    }
+}
@@ -0,0 +1,107 @@
+package fr.inria.tyrex.senslogs.control;
+
+import android.os.AsyncTask;
+
+import androidx.recyclerview.widget.DiffUtil;
+
+import java.util.List;
+
+import fr.inria.tyrex.senslogs.model.log.LogSummary;
+import fr.inria.tyrex.senslogs.model.preferences.LogsDataSource;
+
+/**
+ * Read a page of log summaries from the database. If the summaries already shown are given,
+ * the page replaces them and the differences between both lists are computed here too, so the
+ * UI thread only dispatches them.
+ */
+public class LogSummariesTask extends AsyncTask<Void, Void, LogSummariesTask.Page> {
+
+    public static class Page {
+        public final int offset;
+        public final List<LogSummary> summaries;
+
+        // Number of logs in the database when the page has been read
+        public final int count;
+
+        // Null if the page is appended to the summaries already shown
+        public final DiffUtil.DiffResult diff;
+
+        Page(int offset, List<LogSummary> summaries, int count, DiffUtil.DiffResult diff) {
+            this.offset = offset;
+            this.summaries = summaries;
+            this.count = count;
+            this.diff = diff;
+        }
+    }
+
+    private final LogsDataSource mDataSource;
+    private final int mOffset;
+    private final int mLimit;
+    private final List<LogSummary> mPrevious;
+
+    LogSummariesTask(LogsDataSource dataSource, int offset, int limit,
+                     List<LogSummary> previous) {
+        mDataSource = dataSource;
+        mOffset = offset;
+        mLimit = limit;
+        mPrevious = previous;
+    }
+
+    @Override
+    protected Page doInBackground(Void... params) {
+
+        int count = mDataSource.getLogsCount();
+        final List<LogSummary> summaries = mDataSource.getLogSummaries(mOffset, mLimit);
+
+        DiffUtil.DiffResult diff = null;
+        if (mPrevious != null) {
+            diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return mPrevious.size();
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return summaries.size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                    return mPrevious.get(oldItemPosition).isSameLog(
+                            summaries.get(newItemPosition));
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                    return mPrevious.get(oldItemPosition).equals(
+                            summaries.get(newItemPosition));
+                }
+            });
+        }
+
+        return new Page(mOffset, summaries, count, diff);
+    }
+
+    @Override
+    protected void onPostExecute(Page page) {
+        super.onPostExecute(page);
+        if (mListener != null) {
+            mListener.onPageLoaded(page);
+        }
+    }
+
+
+    private Listener mListener;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public interface Listener {
+        /**
+         * Called on the UI thread, not if the task has been cancelled
+         */
+        void onPageLoaded(Page page);
+    }
+}
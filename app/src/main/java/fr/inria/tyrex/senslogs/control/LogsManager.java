@@ -4,45 +4,105 @@ import android.content.Context;
 import android.os.Environment;
 
 import java.io.File;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
 import fr.inria.tyrex.senslogs.model.log.Log;
+import fr.inria.tyrex.senslogs.model.log.LogSummary;
 import fr.inria.tyrex.senslogs.model.preferences.LogsDataSource;
+import fr.inria.tyrex.senslogs.model.preferences.RecorderSettings;
 
 /**
- * Handle sensors logs and store in preferences for consistency
+ * Handle sensors logs and store them in a database for consistency. Logs are read from the
+ * database when they are needed: the list of logs only loads pages of {@link LogSummary}.
  */
 public class LogsManager {
 
 
-    private List<Log> mLogs;
+    // Logs read or created since the application started, changes are saved in the database
+    private Map<File, Log> mLoadedLogs;
     private LogsDataSource mDataSource;
 
+    // Found when the application starts, before a new record is created
+    private List<File> mOrphanedRecords;
+
     public LogsManager(Context context, SensorsManager sensorsManager) {
         mDataSource = new LogsDataSource(context, sensorsManager);
-        loadLogs();
+        mLoadedLogs = new HashMap<>();
+        mOrphanedRecords = findOrphanedRecords(context.getFilesDir());
+    }
+
+    public int getLogsCount() {
+        return mDataSource.getLogsCount();
+    }
+
+    /**
+     * @return log of the zip file, read from the database the first time, or null if there is
+     * none
+     */
+    public Log getLog(File zipFile) {
+        Log log = mLoadedLogs.get(zipFile);
+        if (log == null) {
+            log = mDataSource.getLog(zipFile);
+            if (log == null) {
+                return null;
+            }
+            mLoadedLogs.put(zipFile, log);
+            log.addListener(mDatasetChangedListener);
+        }
+        return log;
+    }
+
+    /**
+     * @return log of the zip file if it has already been read, e.g. to follow the creation of
+     * its zip file, without reading the database
+     */
+    public Log getLoadedLog(File zipFile) {
+        return mLoadedLogs.get(zipFile);
     }
 
-    public List<Log> getLogs() {
-        return mLogs;
+    public List<File> getZipFiles() {
+        return mDataSource.getZipFiles();
+    }
+
+    /**
+     * Read summaries of logs in background, latest logs first
+     *
+     * @param previous summaries which are replaced by the page to compute differences with them,
+     *                 or null if the page is appended
+     */
+    public LogSummariesTask loadLogSummaries(int offset, int limit, List<LogSummary> previous,
+                                             LogSummariesTask.Listener listener) {
+
+        LogSummariesTask task = new LogSummariesTask(mDataSource, offset, limit, previous);
+        task.setListener(listener);
+        task.execute();
+        return task;
     }
 
 
     public void addLog(Log log) {
-        mLogs.add(log);
+        mLoadedLogs.put(log.getZipFile(), log);
         mDataSource.addLog(log);
         log.addListener(mDatasetChangedListener);
     }
 
 
+    /**
+     * @param log can be a copy of the loaded log, e.g. the one of a dialog
+     */
     public void deleteLog(Log log) {
         if (!log.getZipFile().delete()) {
             android.util.Log.e(Application.LOG_TAG, "Cannot delete log file");
         }
-        mLogs.remove(log);
+        Log loadedLog = mLoadedLogs.remove(log.getZipFile());
+        if (loadedLog != null) {
+            loadedLog.removeListener(mDatasetChangedListener);
+        }
         mDataSource.deleteLog(log);
         log.removeListener(mDatasetChangedListener);
     }
@@ -61,38 +121,165 @@ public class LogsManager {
     }
 
 
+    public File exportLogAsText(Context context, Log log, TextExportTask.Listener listener) {
+
+        String name = log.getZipFile().getName();
+        if (name.endsWith(".zip")) {
+            name = name.substring(0, name.length() - 4);
+        }
+
+        File outputDir = context.getExternalFilesDir(null);
+        File outputFile = new File(outputDir, name + "-text.zip");
+
+        TextExportTask task = new TextExportTask();
+        task.setListener(listener);
+        task.execute(new TextExportTask.Input(log.getZipFile(), outputFile));
+
+        return outputFile;
+    }
+
+
 
     /*
-    Shared preferences consistency
+    Records which have not been saved, the process has been killed
      */
 
-    private Log.Listener mDatasetChangedListener = new Log.Listener() {
-        @Override
-        public void onDatasetChanged(Log log) {
-            mDataSource.updateLog(log);
+    private static List<File> findOrphanedRecords(File directory) {
+        List<File> records = new ArrayList<>();
+        for (File child : directory.listFiles()) {
+            if (child.isDirectory() && RecordJournal.exists(child)) {
+                records.add(child);
+            }
         }
-    };
+        return records;
+    }
+
+    /**
+     * @return temporary folders of records which can be recovered
+     */
+    public List<File> getOrphanedRecords() {
+        return mOrphanedRecords;
+    }
 
-    private void loadLogs() {
+    /**
+     * Rebuild orphaned records and add them to logs, zip files are created in background
+     */
+    public void recoverOrphanedRecords(Context context,
+                                       final RecordRecoveryTask.Listener listener) {
 
-        mLogs = mDataSource.getLogs();
-        for (Log log : mLogs) {
-            log.addListener(mDatasetChangedListener);
+        File[] directories = mOrphanedRecords.toArray(new File[mOrphanedRecords.size()]);
+        mOrphanedRecords = new ArrayList<>();
+
+        RecordRecoveryTask task = new RecordRecoveryTask(context, this);
+        task.setListener(new RecordRecoveryTask.Listener() {
+            @Override
+            public void onRecoveryFinished(List<RecordRecoveryTask.Result> results) {
+                for (RecordRecoveryTask.Result result : results) {
+                    addRecoveredLog(result);
+                }
+                if (listener != null) {
+                    listener.onRecoveryFinished(results);
+                }
+            }
+        });
+        task.execute(directories);
+    }
+
+    private void addRecoveredLog(RecordRecoveryTask.Result result) {
+
+        final File directory = result.directory;
+        if (result.log == null) {
+            Application.deleteRecursive(directory);
+            return;
+        }
+
+        // Process has been killed during the creation of the zip file of a saved or recovered
+        // record
+        Log log = result.log;
+        Log savedLog = getLog(log.getZipFile());
+        if (savedLog != null) {
+            if (savedLog.getCompressedSize() > 0) {
+                Application.deleteRecursive(directory);
+                return;
+            }
+            mLoadedLogs.remove(savedLog.getZipFile());
+            mDataSource.deleteLog(savedLog);
+            savedLog.removeListener(mDatasetChangedListener);
+        }
+
+        // Journal is not an entry, it is removed with the folder when the zip file is created
+        List<File> inputFiles = new ArrayList<>();
+        for (File file : directory.listFiles()) {
+            if (file.isFile() && !file.getName().equals(RecordJournal.FILE_NAME)) {
+                inputFiles.add(file);
+            }
+        }
+        CompressionPolicy policy = new CompressionPolicy();
+        RecorderSettings settings = log.getRecorderSettings() != null ?
+                log.getRecorderSettings() : new RecorderSettings();
+        for (File file : result.sensorsFiles) {
+            policy.setLevel(file, settings.getSensorsCompression().deflateLevel);
         }
 
+        final ZipCreationTask zipTask = new ZipCreationTask();
+        log.setZipCreationTask(zipTask);
+        zipTask.addListener(new ZipCreationTask.ZipCreationListener() {
+            @Override
+            public void onProgress(File currentFile, float ratio) {
+            }
+
+            @Override
+            public void onTaskFinished(File outputFile, long fileSize) {
+                Application.deleteRecursive(directory);
+                zipTask.removeListener(this);
+            }
+        });
+        zipTask.execute(new ZipCreationTask.Params(log.getZipFile(), inputFiles,
+                new ArrayList<ZipCreationTask.CompressedEntry>(), policy));
+
+        addLog(log);
     }
 
+    /**
+     * Delete orphaned records without recovering them
+     */
+    public void purgeOrphanedRecords() {
+        for (File directory : mOrphanedRecords) {
+            Application.deleteRecursive(directory);
+        }
+        mOrphanedRecords = new ArrayList<>();
+    }
+
+    public String toJson(Log log) {
+        return mDataSource.toJson(log);
+    }
+
+    public Log fromJson(String json) {
+        return mDataSource.fromJson(json);
+    }
+
+
+    /*
+    Database consistency
+     */
+
+    private Log.Listener mDatasetChangedListener = new Log.Listener() {
+        @Override
+        public void onDatasetChanged(Log log) {
+            mDataSource.updateLog(log);
+        }
+    };
+
     public void clearAll() {
-        Iterator<Log> iterator = mLogs.iterator();
-        while (iterator.hasNext()) {
-            Log log = iterator.next();
+        for (Log log : mLoadedLogs.values()) {
             log.removeListener(mDatasetChangedListener);
-            if (!log.getZipFile().delete()) {
+        }
+        for (File zipFile : mDataSource.getZipFiles()) {
+            if (!zipFile.delete()) {
                 android.util.Log.e(Application.LOG_TAG, "Cannot delete log file");
             }
-            iterator.remove();
         }
         mDataSource.removeAll();
-        mLogs.clear();
+        mLoadedLogs.clear();
     }
 }
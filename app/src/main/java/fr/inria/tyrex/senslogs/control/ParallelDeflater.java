@@ -0,0 +1,275 @@
+package fr.inria.tyrex.senslogs.control;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Add files to a {@link ZipArchiveWriter}, deflated by chunks on all cores.
+ * <p>
+ * Files are cut in chunks which are deflated independently on a fork/join pool, with the end of
+ * the previous chunk as dictionary. A chunk which is not the last one of its file ends with a
+ * sync flush, so deflated chunks put one after the other are a valid deflate stream. Chunks are
+ * written in the archive in order by the calling thread, which also reads the files: chunks of
+ * several files are compressed at the same time.
+ * <p>
+ * A bounded number of chunks are in progress, their buffers and deflaters are reused.
+ */
+class ParallelDeflater {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    interface ProgressListener {
+        /**
+         * Called from the calling thread when a chunk has been written in the archive
+         *
+         * @param bytes number of uncompressed bytes of the chunk
+         */
+        void onChunkWritten(File file, int bytes);
+    }
+
+    private static class PendingEntry {
+        File file;
+        ZipArchiveWriter.Entry entry;
+        CRC32 crc = new CRC32();
+        long size;
+        boolean started;
+    }
+
+    private static class Chunk {
+        final byte[] input = new byte[CHUNK_SIZE];
+        final byte[] dictionary = new byte[DICTIONARY_SIZE];
+        byte[] output = new byte[CHUNK_SIZE + CHUNK_SIZE / 8 + 64];
+
+        // Created for the level of the chunk: a level set on a reset deflater is only applied by
+        // the next deflate() call, which then does not consume the input
+        Deflater deflater;
+        int deflaterLevel;
+
+        PendingEntry entry;
+        int level;
+        int length;
+        int dictionaryLength;
+        boolean last;
+        int outputLength;
+        ForkJoinTask<?> task;
+
+        void deflate() {
+
+            if (deflater == null || deflaterLevel != level) {
+                end();
+                deflater = new Deflater(level, true);
+                deflaterLevel = level;
+            } else {
+                deflater.reset();
+            }
+            if (dictionaryLength > 0) {
+                deflater.setDictionary(dictionary, 0, dictionaryLength);
+            }
+            deflater.setInput(input, 0, length);
+
+            outputLength = 0;
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflateOutput(Deflater.NO_FLUSH);
+                }
+                return;
+            }
+
+            while (!deflater.needsInput()) {
+                deflateOutput(Deflater.NO_FLUSH);
+            }
+            // Deflater has nothing more to give when the output buffer is not filled
+            do {
+                deflateOutput(Deflater.SYNC_FLUSH);
+            } while (outputLength == output.length);
+        }
+
+        private void deflateOutput(int flush) {
+            if (outputLength == output.length) {
+                byte[] larger = new byte[output.length * 2];
+                System.arraycopy(output, 0, larger, 0, outputLength);
+                output = larger;
+            }
+            outputLength += deflater.deflate(output, outputLength, output.length - outputLength,
+                    flush);
+        }
+
+        void end() {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+    }
+
+    private final ZipArchiveWriter mWriter;
+    private final ProgressListener mListener;
+    private final ForkJoinPool mPool;
+
+    private final ArrayDeque<Chunk> mPending = new ArrayDeque<>();
+    private final ArrayDeque<Chunk> mFree = new ArrayDeque<>();
+    private final int mMaxChunks;
+    private int mChunks;
+
+    ParallelDeflater(ZipArchiveWriter writer, ProgressListener listener) {
+        mWriter = writer;
+        mListener = listener;
+
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        mPool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                @Override
+                protected void onStart() {
+                    super.onStart();
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                }
+            };
+            thread.setName("ZipCreation-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+
+        // Workers always have a chunk to compress while the calling thread writes and reads
+        mMaxChunks = 2 * parallelism + 1;
+    }
+
+    /**
+     * Add a file to the archive, it is written at the latest by {@link #finish()}
+     *
+     * @param level deflate level, or {@link Deflater#NO_COMPRESSION} to store the file
+     */
+    void addFile(String name, File file, int level) throws IOException {
+
+        PendingEntry entry = new PendingEntry();
+        entry.file = file;
+        entry.entry = mWriter.newEntry(name, level == Deflater.NO_COMPRESSION ?
+                ZipArchiveWriter.METHOD_STORED : ZipArchiveWriter.METHOD_DEFLATED, file.length());
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            Chunk previous = null;
+            while (true) {
+                Chunk chunk = obtainChunk();
+                chunk.entry = entry;
+                chunk.level = level;
+                chunk.length = readFully(in, chunk.input);
+                chunk.last = chunk.length < CHUNK_SIZE;
+                chunk.dictionaryLength = 0;
+                if (previous != null && level != Deflater.NO_COMPRESSION) {
+                    // Previous chunk is still pending, see obtainChunk()
+                    chunk.dictionaryLength = Math.min(DICTIONARY_SIZE, previous.length);
+                    System.arraycopy(previous.input, previous.length - chunk.dictionaryLength,
+                            chunk.dictionary, 0, chunk.dictionaryLength);
+                }
+
+                if (level != Deflater.NO_COMPRESSION) {
+                    chunk.task = mPool.submit(chunk::deflate);
+                }
+                mPending.add(chunk);
+
+                if (chunk.last) {
+                    break;
+                }
+                // Next read can find the end of the file, last chunk is then empty
+                previous = chunk;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write all chunks which are still compressed and stop the pool
+     */
+    void finish() throws IOException {
+        try {
+            while (!mPending.isEmpty()) {
+                writeNext();
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stop the pool without writing pending chunks
+     */
+    void close() {
+        mPool.shutdownNow();
+        for (Chunk chunk : mPending) {
+            if (chunk.task != null) {
+                chunk.task.quietlyJoin();
+            }
+            chunk.end();
+        }
+        for (Chunk chunk : mFree) {
+            chunk.end();
+        }
+        mPending.clear();
+        mFree.clear();
+    }
+
+
+    private Chunk obtainChunk() throws IOException {
+
+        // Oldest chunks are written until one can be reused, the chunk used as dictionary by
+        // the next one is never the oldest when it is needed
+        while (mFree.isEmpty() && mChunks >= mMaxChunks) {
+            writeNext();
+        }
+        if (!mFree.isEmpty()) {
+            return mFree.poll();
+        }
+        mChunks++;
+        return new Chunk();
+    }
+
+    private void writeNext() throws IOException {
+
+        Chunk chunk = mPending.poll();
+        PendingEntry entry = chunk.entry;
+
+        if (!entry.started) {
+            mWriter.startEntry(entry.entry);
+            entry.started = true;
+        }
+
+        entry.crc.update(chunk.input, 0, chunk.length);
+        entry.size += chunk.length;
+        if (chunk.task == null) {
+            mWriter.write(chunk.input, 0, chunk.length);
+        } else {
+            chunk.task.join();
+            mWriter.write(chunk.output, 0, chunk.outputLength);
+        }
+
+        if (chunk.last) {
+            mWriter.endEntry(entry.entry, entry.crc.getValue(), entry.size);
+        }
+        mListener.onChunkWritten(entry.file, chunk.length);
+
+        chunk.entry = null;
+        chunk.task = null;
+        mFree.add(chunk);
+    }
+
+    private static int readFully(FileInputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        int count;
+        while (length < buffer.length &&
+                (count = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += count;
+        }
+        return length;
+    }
+}
@@ -3,44 +3,34 @@ package fr.inria.tyrex.senslogs.control;
 import android.content.Context;
 
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import fr.inria.tyrex.senslogs.model.preferences.Preference;
+import fr.inria.tyrex.senslogs.model.preferences.RecorderSettings;
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
 import fr.inria.tyrex.senslogs.model.preferences.PreferencesDataSource;
 
 /**
- * This class handle if a sensor is selected and preferences for each sensor
+ * This class handle if a sensor is selected and preferences for each sensor. Preferences are
+ * kept in memory by {@link PreferencesDataSource}, which saves them in background.
  */
 public class PreferencesManager {
 
     private final PreferencesDataSource mDataSource;
-    private List<Preference> mSensorsPreferences;
-    private Map<Sensor.Category, Boolean> mCacheCategories;
+    private RecorderSettings mRecorderSettings;
 
     public PreferencesManager(Context context, SensorsManager sensorsManager) {
 
         mDataSource = new PreferencesDataSource(context, sensorsManager);
-        loadPreferences();
-        loadCategories();
+        loadRecorderSettings();
     }
 
     public void setChecked(Sensor sensor, boolean checked) {
-
-        Preference preference = getPreference(sensor);
-
-        // Should never be called
-        if (preference == null) {
-            return;
-        }
-
-        preference.selected = checked;
         mDataSource.updateSelection(sensor, checked);
     }
 
     public boolean isChecked(Sensor sensor) {
-        Preference preference = getPreference(sensor);
+        Preference preference = mDataSource.getPreference(sensor);
         return preference != null && preference.selected;
     }
 
@@ -48,7 +38,7 @@ public class PreferencesManager {
 
         Map<Sensor, Sensor.Settings> output = new HashMap<>();
 
-        for (Preference pref : mSensorsPreferences) {
+        for (Preference pref : mDataSource.getPreferences()) {
             if (!pref.selected) {
                 continue;
             }
@@ -60,57 +50,48 @@ public class PreferencesManager {
     }
 
     public void setSettings(Sensor sensor, Sensor.Settings settings) {
-
-        Preference preference = getPreference(sensor);
-
-        // Should never be called
-        if (preference == null) {
-            return;
-        }
-
-        preference.settings = settings;
         mDataSource.updateSettings(sensor, settings);
     }
 
     public Sensor.Settings getSettings(Sensor sensor) {
-        Preference preference = getPreference(sensor);
+        Preference preference = mDataSource.getPreference(sensor);
         return preference == null ? sensor.getDefaultSettings() : preference.settings;
     }
 
-    private Preference getPreference(Sensor sensor) {
-        for (Preference preference : mSensorsPreferences) {
-            if (preference.sensor.equals(sensor)) {
-                return preference;
-            }
-        }
-        return null;
-    }
 
+    public boolean isExpended(Sensor.Category category) {
+        Boolean expanded = mDataSource.getCategories().get(category);
+        return expanded == null || expanded;
+    }
 
-    private void loadPreferences() {
-        mSensorsPreferences = mDataSource.getPreferences();
+    public void setCategoryExpended(Sensor.Category category, boolean expended) {
+        mDataSource.setCategoryExpanded(category, expended);
     }
 
 
-    public boolean isExpended(Sensor.Category category) {
-        if (!mCacheCategories.containsKey(category)) {
-            return true;
-        }
-        return mCacheCategories.get(category);
+    public RecorderSettings getRecorderSettings() {
+        return mRecorderSettings;
     }
 
-    public void setCategoryExpended(Sensor.Category category, boolean expended) {
-        mCacheCategories.put(category, expended);
-        mDataSource.setCategoryExpanded(category, expended);
+    public void setRecorderSettings(RecorderSettings settings) {
+        mRecorderSettings = settings;
+        mDataSource.saveRecorderSettings(settings);
     }
 
-    private void loadCategories() {
-        mCacheCategories = mDataSource.getCategories();
+    private void loadRecorderSettings() {
+        mRecorderSettings = mDataSource.getRecorderSettings();
     }
 
 
+    /**
+     * Save changes which are waiting to be written
+     */
+    public void flush() {
+        mDataSource.flush();
+    }
+
     public void clearAll() {
-        mSensorsPreferences.clear();
+        mRecorderSettings = new RecorderSettings();
         mDataSource.removeAll();
     }
 
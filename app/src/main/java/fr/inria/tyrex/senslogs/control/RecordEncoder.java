@@ -0,0 +1,50 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.io.IOException;
+
+/**
+ * Encodes the records of one {@link fr.inria.tyrex.senslogs.model.FieldsWritableObject} into
+ * the bytes of its log file
+ */
+interface RecordEncoder {
+
+    /**
+     * Called once, when the file is created
+     */
+    void start(RecordOutput output) throws IOException;
+
+    void write(RecordOutput output, double elapsedTimeSystem, Double elapsedTimeSensor,
+               Object[] values) throws IOException;
+
+    /*
+     * Primitive variants, used by sensors which always provide a sensor timestamp. Only the
+     * first length values of arrays are part of the record.
+     */
+
+    void write(RecordOutput output, double elapsedTimeSystem, double elapsedTimeSensor,
+               float[] values, int length) throws IOException;
+
+    void write(RecordOutput output, double elapsedTimeSystem, double elapsedTimeSensor,
+               double[] values, int length) throws IOException;
+
+    void write(RecordOutput output, double elapsedTimeSystem, double elapsedTimeSensor,
+               long[] values, int length) throws IOException;
+
+    /*
+     * Times in nanoseconds, see {@link fr.inria.tyrex.senslogs.model.sensors.Sensor.Listener#onNewValuesNanos}
+     */
+
+    void writeNanos(RecordOutput output, long elapsedTimeSystem, long elapsedTimeSensor,
+                    float[] values, int length) throws IOException;
+
+    /**
+     * Called once, before the file is closed
+     */
+    void finish(RecordOutput output) throws IOException;
+
+    /**
+     * @return number of values which do not fit the type of their column and have been written
+     * as another value (e.g. NaN), read once the file is finished
+     */
+    long getMismatchedValues();
+}
@@ -0,0 +1,130 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import fr.inria.tyrex.senslogs.Application;
+
+/**
+ * Cut sensors files of a record which has not been saved after their last complete record, see
+ * {@link RecordRecoveryTask}
+ */
+class RecordFileCutter {
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] mBuffer;
+
+    RecordFileCutter() {
+        this(new byte[BUFFER_SIZE]);
+    }
+
+    /**
+     * @param buffer used to read files, shared with the recovery task
+     */
+    RecordFileCutter(byte[] buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Remove what is after the last line of a text file, lines written after the last sync
+     * point are kept
+     */
+    void cutText(File file) throws IOException {
+        cut(file, null, true);
+    }
+
+    /**
+     * Remove what is after the last complete record. Records written after the last sync point
+     * are kept like lines of text files, the synced size is only the minimum size of the file.
+     *
+     * @param syncedSize size of the file at the last sync point, or null if there is none
+     */
+    void cutBinary(File file, Long syncedSize) throws IOException {
+        cut(file, findLastRecordEnd(file, syncedSize), false);
+    }
+
+    /**
+     * Records are read until the end of the file or until the zeros of the preallocated file: a
+     * record cannot start with a zero timestamp, its values can be zeros. Records before the
+     * synced size are complete and are not checked.
+     *
+     * @param syncedSize size of the file at the last sync point, or null if there is none
+     * @return position after the last complete record, at least the synced size, or null if
+     * the header cannot be read and nothing has been synced, the file is then cut after its last
+     * non-zero byte
+     */
+    static Long findLastRecordEnd(File file, Long syncedSize) throws IOException {
+
+        long minimum = syncedSize != null ? syncedSize : 0;
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            BinaryRecordReader reader;
+            try {
+                reader = new BinaryRecordReader(in);
+            } catch (IOException e) {
+                android.util.Log.w(Application.LOG_TAG, "Cannot read header of " + file);
+                return syncedSize;
+            }
+
+            // Records are read from the start of the file for the dictionary of strings
+            long end = reader.getPosition();
+            try {
+                while (reader.next() &&
+                        (reader.getPosition() <= minimum || !isPreallocated(reader))) {
+                    end = reader.getPosition();
+                }
+            } catch (IOException e) {
+                // Garbage after the last record, e.g. an unknown dictionary index
+                android.util.Log.w(Application.LOG_TAG, "Recovered file is cut: " + file);
+            }
+            return Math.max(end, minimum);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isPreallocated(BinaryRecordReader reader) {
+        return reader.isNanoseconds() ? reader.getElapsedTimeSystemNanos() == 0 :
+                Double.doubleToRawLongBits(reader.getElapsedTimeSystem()) == 0;
+    }
+
+    private void cut(File file, Long size, boolean lineFeed) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            long end = size != null ? Math.min(size, length) : findEnd(raf, length, lineFeed);
+            if (end < length) {
+                raf.setLength(end);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return position after the last line feed, or after the last non-zero byte
+     */
+    long findEnd(RandomAccessFile raf, long length, boolean lineFeed)
+            throws IOException {
+
+        long position = length;
+        while (position > 0) {
+            int count = (int) Math.min(mBuffer.length, position);
+            position -= count;
+            raf.seek(position);
+            raf.readFully(mBuffer, 0, count);
+            for (int i = count - 1; i >= 0; i--) {
+                if (lineFeed ? mBuffer[i] == '\n' : mBuffer[i] != 0) {
+                    return position + i + 1;
+                }
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,108 @@
+package fr.inria.tyrex.senslogs.control;
+
+import android.os.AsyncTask;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedList;
+
+import fr.inria.tyrex.senslogs.Application;
+import fr.inria.tyrex.senslogs.model.PositionReference;
+import fr.inria.tyrex.senslogs.model.log.Log;
+
+/**
+ * Finish the files of a record once its sensors are stopped. The last values are written, files
+ * are synced and closed and the last segments are compressed, which can take a while for a long
+ * record, so it is never done on the UI thread.
+ * A saved record gives the parameters of its zip creation, files of a cancelled record are
+ * removed.
+ */
+class RecordFinishTask extends AsyncTask<Void, Void, ZipCreationTask.Params> {
+
+    private final RecorderWriter mWriter;
+    private final Collection<Thread> mSensorThreads;
+
+    // Null if the record is cancelled
+    private final LinkedList<PositionReference> mReferences;
+    private final String mFileName;
+    private final Log mLog;
+    private final long mDuration;
+
+    /**
+     * Cancel a record
+     */
+    RecordFinishTask(RecorderWriter writer, Collection<Thread> sensorThreads) {
+        this(writer, sensorThreads, null, null, null, 0);
+    }
+
+    /**
+     * Save a record
+     *
+     * @param duration time recorded in ms, without paused periods
+     */
+    RecordFinishTask(RecorderWriter writer, Collection<Thread> sensorThreads,
+                     LinkedList<PositionReference> references, String fileName, Log log,
+                     long duration) {
+        mWriter = writer;
+        mSensorThreads = sensorThreads;
+        mReferences = references;
+        mFileName = fileName;
+        mLog = log;
+        mDuration = duration;
+    }
+
+    @Override
+    protected ZipCreationTask.Params doInBackground(Void... params) {
+
+        // Stop of sensors can give their last values (e.g. hardware FIFO flush)
+        for (Thread thread : mSensorThreads) {
+            Recorder.join(thread);
+        }
+
+        if (mLog == null) {
+            try {
+                mWriter.finish();
+            } catch (IOException e) {
+                e.printStackTrace();
+                android.util.Log.e(Application.LOG_TAG, "Cannot finish cancelled record");
+            }
+            mWriter.removeFiles();
+            return null;
+        }
+
+        try {
+            mWriter.writeReferences(mReferences);
+            mWriter.finish();
+            mLog.setUncompressedSize(mWriter.getDataSize());
+            return mWriter.prepareZipFile(mFileName, mLog, mDuration);
+        } catch (IOException e) {
+            e.printStackTrace();
+            android.util.Log.e(Application.LOG_TAG, "Something bad happened with file creation");
+            return null;
+        }
+    }
+
+    @Override
+    protected void onPostExecute(ZipCreationTask.Params params) {
+        super.onPostExecute(params);
+        if (mListener != null) {
+            mListener.onRecordFinished(params);
+        }
+    }
+
+
+    private Listener mListener;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public interface Listener {
+        /**
+         * Called on the UI thread
+         *
+         * @param params null if the record is cancelled or if its files cannot be written
+         */
+        void onRecordFinished(ZipCreationTask.Params params);
+    }
+}
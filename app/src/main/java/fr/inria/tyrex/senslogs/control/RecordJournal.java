@@ -0,0 +1,207 @@
+package fr.inria.tyrex.senslogs.control;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Journal of a record, written in its temporary folder while recording, to rebuild the record if
+ * the process is killed.
+ * <p>
+ * One JSON object by line: a {@link Header} with the log and its files, then a
+ * {@link SyncPoint} with sizes of files every few seconds. Data written before a sync point are
+ * in the files, later data can be partially written. Lines are synced to the storage when they
+ * are written.
+ */
+class RecordJournal {
+
+    final static String FILE_NAME = "journal.txt";
+
+    private final static int VERSION = 1;
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    static class Header {
+        int version = VERSION;
+        boolean binary;
+
+        // Log serialized by LogsDataSource
+        String log;
+        List<StreamEntry> streams = new ArrayList<>();
+    }
+
+    /**
+     * A sensors file of the record
+     */
+    static class StreamEntry {
+        String name;
+        // Path from the record folder, first segment for segmented files
+        String path;
+        boolean deflated;
+        boolean segmented;
+
+        StreamEntry(String name, String path, boolean deflated, boolean segmented) {
+            this.name = name;
+            this.path = path;
+            this.deflated = deflated;
+            this.segmented = segmented;
+        }
+    }
+
+    static class SyncPoint {
+        long time;
+        // Size of data of files which are written, by path from the record folder
+        Map<String, Long> sizes = new HashMap<>();
+        // Zip file being created, the record has been saved
+        String savedTo;
+
+        SyncPoint(long time) {
+            this.time = time;
+        }
+    }
+
+    /**
+     * Journal read after the process has been killed
+     */
+    static class Content {
+        Header header;
+        SyncPoint lastSyncPoint;
+        String savedTo;
+    }
+
+
+    private final Gson mGson = new Gson();
+    private final FileOutputStream mOutput;
+
+    RecordJournal(File directory, Header header) throws IOException {
+        mOutput = new FileOutputStream(new File(directory, FILE_NAME));
+        writeLine(mGson.toJson(header));
+    }
+
+    /**
+     * @return path of a file of the record folder, as written in the journal
+     */
+    static String getPath(File directory, File file) {
+        String prefix = directory.getAbsolutePath() + File.separator;
+        String path = file.getAbsolutePath();
+        return path.startsWith(prefix) ? path.substring(prefix.length()) : path;
+    }
+
+    synchronized void write(SyncPoint syncPoint) {
+        try {
+            writeLine(mGson.toJson(syncPoint));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void close() {
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        mOutput.write((line + '\n').getBytes(UTF_8));
+        mOutput.getFD().sync();
+    }
+
+
+    /**
+     * Add the zip file of a record which is recovered to its journal, the journal is kept until
+     * the zip file is created and a recovery interrupted before is done again in the same zip
+     * file. Sizes of the last sync point are kept, the line is not a sync point if there is none.
+     */
+    static void writeSavedTo(File directory, Content content, String savedTo) throws IOException {
+
+        SyncPoint syncPoint = new SyncPoint(content.lastSyncPoint != null ?
+                content.lastSyncPoint.time : 0);
+        if (content.lastSyncPoint != null) {
+            syncPoint.sizes = content.lastSyncPoint.sizes;
+        }
+        syncPoint.savedTo = savedTo;
+
+        // Last line can be partially written if the process has been killed while writing it
+        File file = new File(directory, FILE_NAME);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        boolean lineFeed;
+        try {
+            raf.seek(Math.max(0, raf.length() - 1));
+            lineFeed = raf.length() == 0 || raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(((lineFeed ? "" : "\n") + new Gson().toJson(syncPoint) + '\n')
+                    .getBytes(UTF_8));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+
+    static boolean exists(File directory) {
+        return new File(directory, FILE_NAME).isFile();
+    }
+
+    /**
+     * @return content of the journal of a record folder, or null if it cannot be read. A line
+     * is ignored if the process has been killed while writing it.
+     */
+    static Content read(File directory) {
+
+        Gson gson = new Gson();
+        Content content = new Content();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(new File(directory, FILE_NAME)), UTF_8));
+            try {
+                content.header = gson.fromJson(reader.readLine(), Header.class);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    SyncPoint syncPoint;
+                    try {
+                        syncPoint = gson.fromJson(line, SyncPoint.class);
+                    } catch (JsonParseException e) {
+                        continue;
+                    }
+                    if (syncPoint == null) continue;
+                    // Zip file of a recovery, without sync point
+                    if (syncPoint.time > 0) {
+                        content.lastSyncPoint = syncPoint;
+                    }
+                    if (syncPoint.savedTo != null) {
+                        content.savedTo = syncPoint.savedTo;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | JsonParseException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        if (content.header == null || content.header.version > VERSION ||
+                content.header.log == null) {
+            return null;
+        }
+        return content;
+    }
+}
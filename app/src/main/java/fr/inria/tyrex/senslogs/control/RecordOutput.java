@@ -0,0 +1,224 @@
+package fr.inria.tyrex.senslogs.control;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Destination of the bytes of a log file. Encoders reserve some space in a reusable buffer and
+ * fill it, bytes are written to the file when the buffer is full or flushed.
+ * <p>
+ * Log files are written with positional writes on a {@link FileChannel} and are preallocated by
+ * chunks, so the file system does not allocate blocks at each write. They are truncated to the
+ * size of their data when closed.
+ * <p>
+ * Files can also be deflated while they are written (raw deflate, without zlib wrapper), they are
+ * then copied as they are in the log zip file.
+ */
+class RecordOutput {
+
+    private static final int DEFAULT_CAPACITY = 32 * 1024;
+    private static final int FILE_CAPACITY = 256 * 1024;
+    private static final long PREALLOCATION_CHUNK = 4 * 1024 * 1024;
+    private static final int DEFLATE_BUFFER = 64 * 1024;
+
+    private final OutputStream mOutputStream;
+
+    private final File mFile;
+    private final FileOutputStream mFileOutputStream;
+    private final FileChannel mChannel;
+    private boolean mPreallocate;
+    private long mAllocated;
+
+    private volatile long mSize;
+
+    private Deflater mDeflater;
+    private byte[] mDeflated;
+    private CRC32 mCrc;
+    private volatile long mUncompressedSize;
+
+    private ByteBuffer mBuffer;
+
+    RecordOutput(File file) throws FileNotFoundException {
+        this(file, null);
+    }
+
+    /**
+     * @param deflateLevel level of compression while writing, or null to write bytes as they are
+     */
+    RecordOutput(File file, Integer deflateLevel) throws FileNotFoundException {
+        if (deflateLevel != null) {
+            mDeflater = new Deflater(deflateLevel, true);
+            mDeflated = new byte[DEFLATE_BUFFER];
+            mCrc = new CRC32();
+        }
+        mOutputStream = null;
+        mFile = file;
+        mFileOutputStream = new FileOutputStream(file);
+        mChannel = mFileOutputStream.getChannel();
+        mPreallocate = true;
+        mBuffer = ByteBuffer.allocate(FILE_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    RecordOutput(OutputStream outputStream) {
+        mOutputStream = outputStream;
+        mFile = null;
+        mFileOutputStream = null;
+        mChannel = null;
+        mBuffer = ByteBuffer.allocate(DEFAULT_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Get the buffer with at least {@code length} bytes remaining
+     */
+    ByteBuffer reserve(int length) throws IOException {
+
+        if (mBuffer.remaining() >= length) {
+            return mBuffer;
+        }
+
+        flush();
+
+        if (mBuffer.capacity() < length) {
+            mBuffer = ByteBuffer.allocate(Math.max(length, 2 * mBuffer.capacity()))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return mBuffer;
+    }
+
+    /**
+     * @return number of bytes written, without bytes which are still in the buffer. Can be
+     * called from any thread.
+     */
+    long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return file of the output, null if it writes in a stream
+     */
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return number of bytes given to the file, before compression. Can be called from any
+     * thread.
+     */
+    long getUncompressedSize() {
+        return mDeflater != null ? mUncompressedSize : mSize;
+    }
+
+    boolean isDeflated() {
+        return mDeflater != null;
+    }
+
+    /**
+     * @return CRC-32 of uncompressed bytes, only for deflated files
+     */
+    long getCrc() {
+        return mCrc.getValue();
+    }
+
+    void close() throws IOException {
+        close(false);
+    }
+
+    /**
+     * @param sync true to sync the file to the storage device before closing it
+     */
+    void close(boolean sync) throws IOException {
+        flush();
+        if (mDeflater != null) {
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                writeToChannel(ByteBuffer.wrap(mDeflated, 0, mDeflater.deflate(mDeflated)));
+            }
+            mDeflater.end();
+        }
+        if (mChannel != null) {
+            if (mAllocated > mSize) {
+                mChannel.truncate(mSize);
+            }
+            if (sync) {
+                mChannel.force(true);
+            }
+            mChannel.close();
+            mFileOutputStream.close();
+        } else {
+            mOutputStream.flush();
+            mOutputStream.close();
+        }
+    }
+
+    /**
+     * Sync bytes written to the file to the storage device, bytes which are still in the buffer
+     * are not synced. Can be called from any thread, does nothing once the file is closed.
+     */
+    void sync() throws IOException {
+        if (mChannel == null || !mChannel.isOpen()) return;
+        try {
+            // Size of the file is synced with data when it has changed
+            mChannel.force(false);
+        } catch (ClosedChannelException e) {
+            // Closed by the writer thread meanwhile
+        }
+    }
+
+    /**
+     * Write what has been put in the buffer
+     */
+    void flush() throws IOException {
+        if (mBuffer.position() == 0) return;
+
+        if (mDeflater != null) {
+            mCrc.update(mBuffer.array(), mBuffer.arrayOffset(), mBuffer.position());
+            mUncompressedSize += mBuffer.position();
+            mDeflater.setInput(mBuffer.array(), mBuffer.arrayOffset(), mBuffer.position());
+            while (!mDeflater.needsInput()) {
+                writeToChannel(ByteBuffer.wrap(mDeflated, 0, mDeflater.deflate(mDeflated)));
+            }
+        } else if (mChannel != null) {
+            mBuffer.flip();
+            writeToChannel(mBuffer);
+        } else {
+            mOutputStream.write(mBuffer.array(), mBuffer.arrayOffset(), mBuffer.position());
+            mSize += mBuffer.position();
+        }
+        mBuffer.clear();
+    }
+
+    private void writeToChannel(ByteBuffer buffer) throws IOException {
+        long size = mSize;
+        preallocate(size + buffer.remaining());
+        while (buffer.hasRemaining()) {
+            size += mChannel.write(buffer, size);
+        }
+        mSize = size;
+    }
+
+    private void preallocate(long end) throws IOException {
+
+        if (!mPreallocate || end <= mAllocated) return;
+
+        long allocated = (end / PREALLOCATION_CHUNK + 1) * PREALLOCATION_CHUNK;
+        try {
+            Os.posix_fallocate(mFileOutputStream.getFD(), mAllocated, allocated - mAllocated);
+            mAllocated = allocated;
+        } catch (ErrnoException e) {
+            // Not supported by all file systems, file grows with writes
+            mPreallocate = false;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package fr.inria.tyrex.senslogs.control;
+
+import android.content.Context;
+import android.os.AsyncTask;
+
+import org.ini4j.Wini;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import fr.inria.tyrex.senslogs.Application;
+import fr.inria.tyrex.senslogs.R;
+import fr.inria.tyrex.senslogs.model.WritableObject;
+import fr.inria.tyrex.senslogs.model.log.Log;
+
+/**
+ * Rebuild records of temporary folders which have a journal ({@link RecordJournal}), the process
+ * has been killed before they were saved.
+ * <p>
+ * Sensors files are cut after their last complete record: text files after their last line,
+ * binary files after their last record which is read, never before the size of the last sync
+ * point of the journal. Files compressed while
+ * recording and segments are inflated and merged in a plain file, the folder is then like the
+ * one of a record which is saved.
+ */
+public class RecordRecoveryTask extends AsyncTask<File, Void, List<RecordRecoveryTask.Result>> {
+
+    private final static int BUFFER = 64 * 1024;
+
+    public static class Result {
+        public final File directory;
+
+        // Null if the record cannot be recovered
+        public final Log log;
+        final List<File> sensorsFiles;
+
+        Result(File directory, Log log, List<File> sensorsFiles) {
+            this.directory = directory;
+            this.log = log;
+            this.sensorsFiles = sensorsFiles;
+        }
+    }
+
+    private final Context mContext;
+    private final LogsManager mLogsManager;
+
+    private final byte[] mInput = new byte[BUFFER];
+    private final byte[] mOutput = new byte[BUFFER];
+    private final RecordFileCutter mCutter = new RecordFileCutter(mInput);
+
+    RecordRecoveryTask(Context context, LogsManager logsManager) {
+        mContext = context.getApplicationContext();
+        mLogsManager = logsManager;
+    }
+
+    @Override
+    protected List<Result> doInBackground(File... directories) {
+
+        List<Result> results = new ArrayList<>();
+        for (File directory : directories) {
+            Log log = null;
+            List<File> sensorsFiles = new ArrayList<>();
+            try {
+                log = recover(directory, sensorsFiles);
+            } catch (IOException e) {
+                android.util.Log.e(Application.LOG_TAG, "Cannot recover record " + directory);
+                e.printStackTrace();
+            }
+            results.add(new Result(directory, log, sensorsFiles));
+        }
+        return results;
+    }
+
+    @Override
+    protected void onPostExecute(List<Result> results) {
+        super.onPostExecute(results);
+        if (mListener != null) {
+            mListener.onRecoveryFinished(results);
+        }
+    }
+
+
+    private Log recover(File directory, List<File> sensorsFiles) throws IOException {
+
+        RecordJournal.Content content = RecordJournal.read(directory);
+        if (content == null) {
+            return null;
+        }
+        Log log = mLogsManager.fromJson(content.header.log);
+        if (log == null) {
+            return null;
+        }
+
+        Map<String, Long> sizes = content.lastSyncPoint != null ?
+                content.lastSyncPoint.sizes : Collections.<String, Long>emptyMap();
+        // Files already merged by a recovery which has been interrupted are only cut again
+        File segments = new File(directory, SegmentsManager.DIRECTORY_NAME);
+        for (RecordJournal.StreamEntry stream : content.header.streams) {
+            File file = new File(directory, stream.name);
+            File deflated = new File(directory, stream.path);
+            if (stream.segmented) {
+                if (segments.isDirectory()) {
+                    mergeSegments(directory, stream.name, file, sizes, content.header.binary);
+                }
+            } else if (stream.deflated) {
+                if (deflated.isFile()) {
+                    inflate(deflated, sizes.get(stream.path), file);
+                    deleteFile(deflated);
+                }
+                if (!content.header.binary) {
+                    mCutter.cutText(file);
+                }
+            } else if (content.header.binary) {
+                mCutter.cutBinary(file, sizes.get(stream.path));
+            } else {
+                mCutter.cutText(file);
+            }
+            sensorsFiles.add(file);
+        }
+
+        if (segments.isDirectory()) {
+            Application.deleteRecursive(segments);
+        }
+
+        // Record ends at the last sync point, it is unknown if it has been paused before
+        Log.RecordTimes recordTimes = log.getRecordTimes();
+        recordTimes.endTime = content.lastSyncPoint != null ?
+                content.lastSyncPoint.time / 1e3d : recordTimes.startTime;
+
+        if (log.getName() == null) {
+            log.setName(mContext.getString(R.string.record_recovered_name,
+                    DateFormat.getDateTimeInstance().format(
+                            new Date((long) (recordTimes.startTime * 1e3)))));
+        }
+        if (content.savedTo != null) {
+            log.setZipFile(new File(content.savedTo));
+        } else {
+            log.setZipFile(getZipFile(log.getName()));
+            RecordJournal.writeSavedTo(directory, content, log.getZipFile().getAbsolutePath());
+        }
+
+        // Description file is already there if the record was saved
+        File descriptionFile = new File(directory,
+                mContext.getString(R.string.file_record_properties));
+        List<Log.IniRecord> records = new ArrayList<>();
+        records.add(new Log.IniRecord("Recovery", "Recovered", true));
+        records.add(new Log.IniRecord("Recovery", "SyncPoint",
+                content.lastSyncPoint != null));
+        Wini iniFile = log.generateIniFile(mContext, descriptionFile,
+                new HashSet<WritableObject>(log.getSensors()), records);
+        if (iniFile != null) {
+            iniFile.store();
+        }
+
+        // Journal is removed with the folder once the zip file is created, the record is
+        // recovered again if the process is killed before
+        log.setUncompressedSize(getDataSize(directory));
+        return log;
+    }
+
+    private File getZipFile(String name) {
+        String fileName = name.replaceAll("\\W+", "_");
+        File file = new File(mContext.getFilesDir(), fileName + ".zip");
+        int i = 2;
+        while (file.exists()) {
+            file = new File(mContext.getFilesDir(), fileName + "-" + i++ + ".zip");
+        }
+        return file;
+    }
+
+    /**
+     * Segments are finalized in order: deflated segments come first, then raw ones. Only the
+     * last raw segment was being written.
+     */
+    private void mergeSegments(File directory, String fileName, File output,
+                               Map<String, Long> sizes, boolean binary) throws IOException {
+
+        File segmentsDirectory = new File(directory, SegmentsManager.DIRECTORY_NAME);
+        Inflater inflater = new Inflater(true);
+        FileOutputStream out = new FileOutputStream(output);
+        long lastOffset = 0;
+        Long lastSize = null;
+        try {
+            for (int i = 0; ; i++) {
+                File segment = SegmentsManager.getFile(segmentsDirectory, fileName, i);
+                File deflated = new File(segment.getPath() +
+                        SegmentsManager.DEFLATED_SEGMENT_SUFFIX);
+
+                // Deflated segment is partial if the raw one is still there
+                if (segment.isFile()) {
+                    lastOffset = output.length();
+                    lastSize = sizes.get(RecordJournal.getPath(directory, segment));
+                    copy(segment, out);
+                } else if (deflated.isFile()) {
+                    if (!inflate(deflated, null, inflater, out)) break;
+                } else {
+                    break;
+                }
+            }
+        } finally {
+            inflater.end();
+            out.close();
+        }
+
+        if (!binary) {
+            mCutter.cutText(output);
+        } else {
+            mCutter.cutBinary(output, lastSize != null ? lastOffset + lastSize : null);
+        }
+    }
+
+    /**
+     * @param limit size of compressed data at the last sync point, or null if there is none
+     */
+    private void inflate(File input, Long limit, File output) throws IOException {
+
+        // Zeros of the preallocated file would be inflated as garbage after the last block
+        if (limit == null) {
+            RandomAccessFile raf = new RandomAccessFile(input, "r");
+            try {
+                limit = mCutter.findEnd(raf, raf.length(), false);
+            } finally {
+                raf.close();
+            }
+        }
+
+        Inflater inflater = new Inflater(true);
+        FileOutputStream out = new FileOutputStream(output);
+        try {
+            inflate(input, limit, inflater, out);
+        } finally {
+            inflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * Inflate a file until its end, or until its data are not valid (end of preallocated file)
+     *
+     * @param limit size of compressed data to read, or null to read the whole file
+     * @return false if the data were not valid
+     */
+    private boolean inflate(File input, Long limit, Inflater inflater, FileOutputStream out)
+            throws IOException {
+
+        long remaining = limit != null ? limit : Long.MAX_VALUE;
+        FileInputStream in = new FileInputStream(input);
+        try {
+            int count;
+            while (remaining > 0 && !inflater.finished() &&
+                    (count = in.read(mInput, 0, (int) Math.min(mInput.length, remaining))) != -1) {
+                remaining -= count;
+                inflater.setInput(mInput, 0, count);
+                while (!inflater.needsInput() && !inflater.finished()) {
+                    out.write(mOutput, 0, inflater.inflate(mOutput));
+                }
+            }
+        } catch (DataFormatException e) {
+            android.util.Log.w(Application.LOG_TAG, "Recovered file is cut: " + input);
+            return false;
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    private void copy(File input, FileOutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(input);
+        try {
+            in.getChannel().transferTo(0, input.length(), out.getChannel());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            android.util.Log.w(Application.LOG_TAG, "Cannot delete " + file);
+        }
+    }
+
+    private static long getDataSize(File directory) {
+        long length = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().equals(RecordJournal.FILE_NAME)) continue;
+            length += file.isFile() ? file.length() : getDataSize(file);
+        }
+        return length;
+    }
+
+
+    private Listener mListener;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public interface Listener {
+        /**
+         * Called on the UI thread with the result of each folder
+         */
+        void onRecoveryFinished(List<Result> results);
+    }
+}
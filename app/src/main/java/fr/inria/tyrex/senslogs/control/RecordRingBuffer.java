@@ -0,0 +1,335 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import fr.inria.tyrex.senslogs.model.preferences.RecorderSettings.OverflowPolicy;
+
+/**
+ * Bounded queue of records, between sensors callbacks and the writer thread. Slots and their
+ * values arrays are allocated once, producers only claim a slot, copy values into it and publish
+ * it.
+ * <p>
+ * Each slot has a sequence number (D. Vyukov bounded queue): a slot at position p is free for
+ * producers when its sequence is p, readable when its sequence is p + 1, and given back to
+ * producers with p + capacity. The writer thread is the main consumer, but producers can also
+ * remove the oldest record when the buffer is full and the policy is
+ * {@link OverflowPolicy#DROP_OLDEST}.
+ */
+class RecordRingBuffer {
+
+    static final int TYPE_OBJECTS = 0;
+    static final int TYPE_FLOATS = 1;
+    static final int TYPE_DOUBLES = 2;
+    static final int TYPE_LONGS = 3;
+    static final int TYPE_FLOATS_NANOS = 4;
+
+    // SensorEvent.values has at most 16 values
+    private static final int DEFAULT_VALUES_LENGTH = 16;
+
+    private static final long FULL_WAIT_NANOS = 100_000;
+
+    static class Slot {
+        int streamId;
+        int type;
+        double elapsedTimeSystem;
+        double elapsedTimeSensor;
+        boolean hasElapsedTimeSensor;
+        long elapsedTimeSystemNanos;
+        long elapsedTimeSensorNanos;
+
+        int length;
+        float[] floats = new float[DEFAULT_VALUES_LENGTH];
+        double[] doubles;
+        long[] longs;
+        Object[] objects;
+
+        // System.nanoTime() when the record has been published
+        long offeredNanos;
+
+        private long position;
+    }
+
+    interface Handler {
+        void onRecord(Slot slot);
+    }
+
+    interface DropListener {
+        /**
+         * Called from the producer thread when a record of a stream is dropped
+         */
+        void onDropped(int streamId);
+    }
+
+
+    private final int mCapacity;
+    private final int mMask;
+    private final Slot[] mSlots;
+    private final AtomicLongArray mSequences;
+
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+
+    private final OverflowPolicy mPolicy;
+    private final DropListener mDropListener;
+    private final AtomicIntegerArray mDecimationCounters;
+
+    // Set when the consumer stops, producers would wait forever for a free slot
+    private volatile boolean mClosed;
+
+    /**
+     * @param capacity   rounded up to the next power of two
+     * @param maxStreams number of streams for decimation counters
+     */
+    RecordRingBuffer(int capacity, OverflowPolicy policy, int maxStreams,
+                     DropListener dropListener) {
+
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+        mPolicy = policy;
+        mDropListener = dropListener;
+        mDecimationCounters = new AtomicIntegerArray(maxStreams);
+
+        mCapacity = size;
+        mMask = size - 1;
+        mSlots = new Slot[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new Slot();
+            mSequences.set(i, i);
+        }
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Records offered from now on are dropped, called before the consumer stops
+     */
+    void close() {
+        mClosed = true;
+    }
+
+
+    /*
+    Producers
+     */
+
+    void offer(int streamId, double elapsedTimeSystem, Double elapsedTimeSensor, Object[] values) {
+        Slot slot = claim(streamId);
+        if (slot == null) return;
+        slot.streamId = streamId;
+        slot.type = TYPE_OBJECTS;
+        slot.elapsedTimeSystem = elapsedTimeSystem;
+        slot.hasElapsedTimeSensor = elapsedTimeSensor != null;
+        slot.elapsedTimeSensor = elapsedTimeSensor != null ? elapsedTimeSensor : 0;
+        slot.length = values.length;
+        slot.objects = values;
+        publish(slot);
+    }
+
+    void offer(int streamId, double elapsedTimeSystem, double elapsedTimeSensor, float[] values) {
+        Slot slot = claim(streamId);
+        if (slot == null) return;
+        slot.streamId = streamId;
+        slot.type = TYPE_FLOATS;
+        slot.elapsedTimeSystem = elapsedTimeSystem;
+        slot.elapsedTimeSensor = elapsedTimeSensor;
+        slot.hasElapsedTimeSensor = true;
+        slot.length = values.length;
+        if (slot.floats.length < values.length) {
+            slot.floats = new float[values.length];
+        }
+        System.arraycopy(values, 0, slot.floats, 0, values.length);
+        publish(slot);
+    }
+
+    void offerNanos(int streamId, long elapsedTimeSystem, long elapsedTimeSensor, float[] values) {
+        Slot slot = claim(streamId);
+        if (slot == null) return;
+        slot.streamId = streamId;
+        slot.type = TYPE_FLOATS_NANOS;
+        slot.elapsedTimeSystemNanos = elapsedTimeSystem;
+        slot.elapsedTimeSensorNanos = elapsedTimeSensor;
+        slot.length = values.length;
+        if (slot.floats.length < values.length) {
+            slot.floats = new float[values.length];
+        }
+        System.arraycopy(values, 0, slot.floats, 0, values.length);
+        publish(slot);
+    }
+
+    void offer(int streamId, double elapsedTimeSystem, double elapsedTimeSensor, double[] values) {
+        Slot slot = claim(streamId);
+        if (slot == null) return;
+        slot.streamId = streamId;
+        slot.type = TYPE_DOUBLES;
+        slot.elapsedTimeSystem = elapsedTimeSystem;
+        slot.elapsedTimeSensor = elapsedTimeSensor;
+        slot.hasElapsedTimeSensor = true;
+        slot.length = values.length;
+        if (slot.doubles == null || slot.doubles.length < values.length) {
+            slot.doubles = new double[Math.max(DEFAULT_VALUES_LENGTH, values.length)];
+        }
+        System.arraycopy(values, 0, slot.doubles, 0, values.length);
+        publish(slot);
+    }
+
+    void offer(int streamId, double elapsedTimeSystem, double elapsedTimeSensor, long[] values) {
+        Slot slot = claim(streamId);
+        if (slot == null) return;
+        slot.streamId = streamId;
+        slot.type = TYPE_LONGS;
+        slot.elapsedTimeSystem = elapsedTimeSystem;
+        slot.elapsedTimeSensor = elapsedTimeSensor;
+        slot.hasElapsedTimeSensor = true;
+        slot.length = values.length;
+        if (slot.longs == null || slot.longs.length < values.length) {
+            slot.longs = new long[Math.max(DEFAULT_VALUES_LENGTH, values.length)];
+        }
+        System.arraycopy(values, 0, slot.longs, 0, values.length);
+        publish(slot);
+    }
+
+    /**
+     * Claim the next free slot, or null if the record is dropped
+     */
+    private Slot claim(int streamId) {
+
+        if (mClosed ||
+                mPolicy == OverflowPolicy.DECIMATE && isDecimated(streamId)) {
+            mDropListener.onDropped(streamId);
+            return null;
+        }
+
+        Slot slot;
+        while ((slot = tryClaim()) == null) {
+            if (mClosed) {
+                mDropListener.onDropped(streamId);
+                return null;
+            }
+            switch (mPolicy) {
+                case DROP_OLDEST:
+                    dropOldest();
+                    break;
+                case DROP_NEWEST:
+                case DECIMATE:
+                    mDropListener.onDropped(streamId);
+                    return null;
+                default:
+                    LockSupport.parkNanos(FULL_WAIT_NANOS);
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Above half of the capacity, only one record of 2 is kept for each stream, and one of 4
+     * above three quarters. Records are dropped when the buffer is full.
+     */
+    private boolean isDecimated(int streamId) {
+
+        long size = mTail.get() - mHead.get();
+        if (size < mCapacity / 2 || streamId >= mDecimationCounters.length()) {
+            return false;
+        }
+        int factor = size < mCapacity * 3 / 4 ? 2 : 4;
+        return mDecimationCounters.incrementAndGet(streamId) % factor != 0;
+    }
+
+    private void dropOldest() {
+        Slot slot = poll();
+        if (slot == null) {
+            // Consumer is taking it, wait for the next free slot
+            Thread.yield();
+            return;
+        }
+        mDropListener.onDropped(slot.streamId);
+        release(slot);
+    }
+
+    private Slot tryClaim() {
+        long position = mTail.get();
+        while (true) {
+            int index = (int) (position & mMask);
+            long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    Slot slot = mSlots[index];
+                    slot.position = position;
+                    return slot;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                // Consumer has not released this slot yet
+                return null;
+            } else {
+                // Another producer claimed it
+                position = mTail.get();
+            }
+        }
+    }
+
+    private void publish(Slot slot) {
+        slot.offeredNanos = System.nanoTime();
+        mSequences.lazySet((int) (slot.position & mMask), slot.position + 1);
+    }
+
+
+    /*
+    Consumer
+     */
+
+    /**
+     * Give all published records to the handler, called by the writer thread
+     *
+     * @return number of records drained
+     */
+    int drain(Handler handler) {
+        int count = 0;
+        Slot slot;
+        while ((slot = poll()) != null) {
+            handler.onRecord(slot);
+            release(slot);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return number of records waiting in the buffer
+     */
+    int size() {
+        return (int) Math.max(0, mTail.get() - mHead.get());
+    }
+
+    private Slot poll() {
+        long position = mHead.get();
+        while (true) {
+            int index = (int) (position & mMask);
+            long difference = mSequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (mHead.compareAndSet(position, position + 1)) {
+                    Slot slot = mSlots[index];
+                    slot.position = position;
+                    return slot;
+                }
+                position = mHead.get();
+            } else if (difference < 0) {
+                // Not published yet
+                return null;
+            } else {
+                // Another consumer took it
+                position = mHead.get();
+            }
+        }
+    }
+
+    private void release(Slot slot) {
+        slot.objects = null;
+        mSequences.lazySet((int) (slot.position & mMask), slot.position + mCapacity);
+    }
+}
@@ -0,0 +1,81 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.util.List;
+
+/**
+ * Snapshot of the counters of the writer while recording: records and bytes of each sensors
+ * file, records waiting in the buffers of writer threads, and latency between sensors callbacks
+ * and writer threads.
+ */
+public class RecordTelemetry {
+
+    public static class StreamTelemetry {
+        public final String fileName;
+        public final String name;
+        public final long records;
+        public final long dropped;
+
+        // Before compression
+        public final long bytes;
+
+        // Records per second since the previous snapshot
+        public final double rate;
+
+        StreamTelemetry(String fileName, String name, long records, long dropped, long bytes,
+                        double rate) {
+            this.fileName = fileName;
+            this.name = name;
+            this.records = records;
+            this.dropped = dropped;
+            this.bytes = bytes;
+            this.rate = rate;
+        }
+    }
+
+    // From SystemClock.elapsedRealtime()
+    public final long time;
+
+    public final List<StreamTelemetry> streams;
+
+    // Size of sensors files and other files of the record (e.g. video), before compression
+    public final long dataSize;
+
+    public final int queueDepth;
+    public final int maxQueueDepth;
+    public final int queueCapacity;
+
+    // From the sensor callback to the encoding of the record by its writer thread
+    public final double latencyP50Ms;
+    public final double latencyP90Ms;
+    public final double latencyP99Ms;
+    public final double latencyMaxMs;
+
+    public final long syncs;
+    public final double syncLatencyMs;
+
+    RecordTelemetry(long time, List<StreamTelemetry> streams, long dataSize,
+                    int queueDepth, int maxQueueDepth, int queueCapacity,
+                    double latencyP50Ms, double latencyP90Ms, double latencyP99Ms,
+                    double latencyMaxMs, long syncs, double syncLatencyMs) {
+        this.time = time;
+        this.streams = streams;
+        this.dataSize = dataSize;
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = maxQueueDepth;
+        this.queueCapacity = queueCapacity;
+        this.latencyP50Ms = latencyP50Ms;
+        this.latencyP90Ms = latencyP90Ms;
+        this.latencyP99Ms = latencyP99Ms;
+        this.latencyMaxMs = latencyMaxMs;
+        this.syncs = syncs;
+        this.syncLatencyMs = syncLatencyMs;
+    }
+
+    public long getDropped() {
+        long dropped = 0;
+        for (StreamTelemetry stream : streams) {
+            dropped += stream.dropped;
+        }
+        return dropped;
+    }
+}
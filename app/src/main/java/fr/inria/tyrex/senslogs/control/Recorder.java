@@ -7,18 +7,19 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
-import android.util.Pair;
-
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 
@@ -49,8 +50,11 @@ public class Recorder {
     private Map<Sensor, Sensor.Settings> mSensorsAndSettings;
     private LinkedList<PositionReference> mReferences;
 
+    // Last thread which starts or stops each sensor, the next one waits for it
+    private final Map<Sensor, Thread> mSensorThreads = new HashMap<>();
+
 
-    private boolean isRecording = false;
+    private volatile boolean isRecording = false;
     private boolean isInitialized = false;
 
     public Recorder(Context context, LogsManager logsManager,
@@ -81,12 +85,14 @@ public class Recorder {
                 CalibrationLog.create(calibration, mSensorsAndSettings.keySet()) :
                 new Log(mSensorsAndSettings.keySet());
 
+        mLog.setRecorderSettings(mPreferencesManager.getRecorderSettings());
         mLog.init(mContext);
         mReferences.clear();
 
         // We need to create a new instance because writer is used during zip creation task
         mRecorderWriter = new RecorderWriter(mContext);
         mRecorderWriter.init(mLog);
+        mRecorderWriter.startJournal(mLogsManager.toJson(mLog));
     }
 
 
@@ -99,7 +105,6 @@ public class Recorder {
 
         if (isRecording) return;
 
-
         // Need to init some properties for the first play
         if (!isInitialized) {
             init(sensorsAndSettings, calibration);
@@ -107,6 +112,9 @@ public class Recorder {
         }
 
 
+        // Values of a previous record given on its stop are not written in this one
+        final RecorderWriter recorderWriter = mRecorderWriter;
+
         // Start and listen sensors
         for (final Map.Entry<Sensor, Sensor.Settings> sensorAndSetting : mSensorsAndSettings.entrySet()) {
 
@@ -114,23 +122,52 @@ public class Recorder {
             final Sensor.Settings settings = sensorAndSetting.getValue();
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && sensor instanceof CameraRecorder) {
-                mRecorderWriter.updateVideoPath();
+                recorderWriter.updateVideoPath();
             }
 
+            Sensor.Listener listener = null;
             if (sensor instanceof FieldsWritableObject) {
-                sensor.setListener(new Sensor.Listener() {
+                final int streamId = recorderWriter.getStreamId(sensor);
+                listener = new Sensor.Listener() {
                     @Override
                     public void onNewValues(double diffTimeSystem, double diffTimeSensor, Object[] objects) {
-                        mRecorderWriter.asycWrite(sensor, diffTimeSystem, diffTimeSensor, objects);
+                        recorderWriter.asycWrite(streamId, diffTimeSystem, diffTimeSensor, objects);
                     }
-                });
+
+                    @Override
+                    public void onNewValues(double diffTimeSystem, double diffTimeSensor, float[] values) {
+                        recorderWriter.asycWrite(streamId, diffTimeSystem, diffTimeSensor, values);
+                    }
+
+                    @Override
+                    public void onNewValues(double diffTimeSystem, double diffTimeSensor, double[] values) {
+                        recorderWriter.asycWrite(streamId, diffTimeSystem, diffTimeSensor, values);
+                    }
+
+                    @Override
+                    public void onNewValues(double diffTimeSystem, double diffTimeSensor, long[] values) {
+                        recorderWriter.asycWrite(streamId, diffTimeSystem, diffTimeSensor, values);
+                    }
+
+                    @Override
+                    public void onNewValuesNanos(long diffTimeSystem, long diffTimeSensor, float[] values) {
+                        recorderWriter.asycWriteNanos(streamId, diffTimeSystem, diffTimeSensor, values);
+                    }
+                };
             }
 
-            // Some sensors take a long time to start but have to be run on UI thread
+            // Some sensors take a long time to start but have to be run on UI thread, others
+            // are listened after the stop of a previous pause, which can still give values
+            final Log.RecordTimes recordTimes = mLog.getRecordTimes();
             if (sensor.mustRunOnUiThread()) {
-                sensor.start(mContext, settings, mLog.getRecordTimes());
+                sensor.setListener(listener);
+                sensor.start(mContext, settings, recordTimes);
             } else {
-                new Thread(() -> sensor.start(mContext, settings, mLog.getRecordTimes())).start();
+                final Sensor.Listener sensorListener = listener;
+                runSensorThread(sensor, () -> {
+                    sensor.setListener(sensorListener);
+                    sensor.start(mContext, settings, recordTimes);
+                });
             }
         }
 
@@ -147,14 +184,20 @@ public class Recorder {
         stopTimer();
         removeNotification();
 
+        // Sensors are stopped in parallel, they give their last values (e.g. hardware FIFO
+        // flush) until the same deadline
+        final long flushDeadline = SystemClock.elapsedRealtime() + Sensor.FLUSH_TIMEOUT_MS;
         for (final Sensor sensor : mSensorsAndSettings.keySet()) {
 
-            sensor.setListener(null);
-
+            // Listener is removed after stop
             if (sensor.mustRunOnUiThread()) {
                 sensor.stop(mContext);
+                sensor.setListener(null);
             } else {
-                new Thread(() -> sensor.stop(mContext)).start();
+                runSensorThread(sensor, () -> {
+                    sensor.stop(mContext, flushDeadline);
+                    sensor.setListener(null);
+                });
             }
         }
 
@@ -163,28 +206,38 @@ public class Recorder {
     }
 
 
-    public void cancel() throws IOException {
+    /**
+     * Stop the record and remove its files, files are finished by a background task
+     */
+    public void cancel() {
 
         if (isRecording) {
             pause();
         }
         resetTimer();
-        mRecorderWriter.finish();
-        mRecorderWriter.removeFiles();
+
+        RecordFinishTask task = new RecordFinishTask(mRecorderWriter,
+                new ArrayList<>(mSensorThreads.values()));
+        // Not behind the zip creation of a previous record
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+
         isInitialized = false;
         isRecording = false;
     }
 
 
-    public Log save(String title) throws IOException {
-        return save(title, null, null, null);
+    public void save(String title, SaveListener listener) {
+        save(title, null, null, null, listener);
     }
 
-    public Log save(String title, String user, String positionOrientation, String comment) throws IOException {
-
-        mRecorderWriter.writeReferences(mReferences);
-        mRecorderWriter.finish();
+    /**
+     * Save the record in a new log, files are finished by a background task before the zip file
+     * creation, the listener is called when the log is added
+     */
+    public void save(String title, String user, String positionOrientation, String comment,
+                     final SaveListener listener) {
 
+        long duration = getCurrentTime();
         resetTimer();
 
         // Set title to unknown if null and replace non word characters by underscore
@@ -193,40 +246,88 @@ public class Recorder {
         }
         String filename = title.replaceAll("\\W+", "_");
 
-        mLog.setName(title);
-        mLog.setUser(user);
-        mLog.setComment(comment);
-        mLog.setPositionOrientation(positionOrientation);
-        mLog.setUncompressedSize(mRecorderWriter.getDataSize());
+        final Log log = mLog;
+        final RecorderWriter recorderWriter = mRecorderWriter;
 
+        log.setName(title);
+        log.setUser(user);
+        log.setComment(comment);
+        log.setPositionOrientation(positionOrientation);
 
-        // Create Zip File
-        final Pair<File, ZipCreationTask> zipCreationPair = mRecorderWriter.createZipFile(filename, mLog);
-        final File zipFile = zipCreationPair.first;
-        final ZipCreationTask zipTask = zipCreationPair.second;
+        RecordFinishTask task = new RecordFinishTask(recorderWriter,
+                new ArrayList<>(mSensorThreads.values()), new LinkedList<>(mReferences),
+                filename, log, duration);
+        task.setListener(params -> {
 
-        mLog.setZipCreationTask(zipTask);
-
-        zipTask.addListener(new ZipCreationTask.ZipCreationListener() {
-            @Override
-            public void onProgress(File currentFile, float ratio) {
+            if (params == null) {
+                if (listener != null) {
+                    listener.onRecordSaved(null);
+                }
+                return;
             }
 
-            @Override
-            public void onTaskFinished(File outputFile, long fileSize) {
-                // Remove files when recorder finished
-                mRecorderWriter.removeFiles();
-                zipTask.removeListener(this);
+            // Create Zip File
+            final ZipCreationTask zipTask = new ZipCreationTask();
+            log.setZipCreationTask(zipTask);
+
+            zipTask.addListener(new ZipCreationTask.ZipCreationListener() {
+                @Override
+                public void onProgress(File currentFile, float ratio) {
+                }
+
+                @Override
+                public void onTaskFinished(File outputFile, long fileSize) {
+                    // Remove files when recorder finished
+                    recorderWriter.removeFiles();
+                    zipTask.removeListener(this);
+                }
+            });
+            zipTask.execute(params);
+
+            log.setZipFile(params.outputFile);
+
+            mLogsManager.addLog(log);
+
+            if (listener != null) {
+                listener.onRecordSaved(log);
             }
         });
+        // Not behind the zip creation of a previous record
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+
+        isInitialized = false;
+    }
 
-        mLog.setZipFile(zipFile);
+    public interface SaveListener {
+        /**
+         * Called on the UI thread when the log is added, its zip file is still being created
+         *
+         * @param log null if files of the record cannot be written
+         */
+        void onRecordSaved(Log log);
+    }
 
-        mLogsManager.addLog(mLog);
 
-        isInitialized = false;
+    /**
+     * Start or stop a sensor on a new thread, after the previous start or stop of the sensor
+     */
+    private void runSensorThread(Sensor sensor, final Runnable runnable) {
+        final Thread previous = mSensorThreads.get(sensor);
+        Thread thread = new Thread(() -> {
+            if (previous != null) join(previous);
+            runnable.run();
+        });
+        mSensorThreads.put(sensor, thread);
+        thread.start();
+    }
 
-        return mLog;
+    static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
     }
 
 
@@ -246,6 +347,13 @@ public class Recorder {
 
 
     //<editor-fold desc="DataSize">
+    /**
+     * @return counters of the writer of the current record, see {@link RecordTelemetry}
+     */
+    public RecordTelemetry getTelemetry() {
+        return mRecorderWriter.getTelemetry();
+    }
+
     public long getDataSize() {
         return mRecorderWriter.getDataSize();
     }
@@ -256,7 +364,13 @@ public class Recorder {
     private long firstTime;
     private long computeTime;
 
+    /**
+     * @return time recorded in ms, without paused periods
+     */
     public long getCurrentTime() {
+        if (!isRecording) {
+            return computeTime;
+        }
         return computeTime + System.currentTimeMillis() - firstTime;
     }
 
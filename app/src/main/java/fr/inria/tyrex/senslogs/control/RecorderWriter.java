@@ -3,15 +3,16 @@ package fr.inria.tyrex.senslogs.control;
 import android.content.Context;
 import android.content.res.Resources;
 import android.os.Build;
-import android.util.Pair;
+import android.os.Process;
+import android.os.SystemClock;
 
 import androidx.annotation.RequiresApi;
+import androidx.annotation.WorkerThread;
 
 import org.ini4j.Wini;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -21,8 +22,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
 
 import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
@@ -30,6 +35,7 @@ import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
 import fr.inria.tyrex.senslogs.model.PositionReference;
 import fr.inria.tyrex.senslogs.model.WritableObject;
 import fr.inria.tyrex.senslogs.model.log.Log;
+import fr.inria.tyrex.senslogs.model.preferences.RecorderSettings;
 import fr.inria.tyrex.senslogs.model.sensors.CameraRecorder;
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
 
@@ -38,43 +44,239 @@ import fr.inria.tyrex.senslogs.model.sensors.Sensor;
  */
 public class RecorderWriter {
 
+    private final static String BINARY_FILE_EXTENSION = "bin";
+    private final static String NANOSECONDS_FIELD_SUFFIX = "-ns";
+    private final static String DEFLATED_FILE_SUFFIX = ".deflate";
+
+
+    private final static long MIN_IDLE_PARK_NANOS = 50_000;
+    private final static long MAX_IDLE_PARK_NANOS = 1_000_000;
+
+    private final static int MAX_WRITER_THREADS = 4;
+
+    private final static long JOURNAL_PERIOD_MS = 2000;
+    private final static long SYNC_POLL_MS = 100;
 
-    private ExecutorService executor;
     private Context mContext;
 
     private List<String> mFileNames;
 
-    private StringBuilder buffer1 = new StringBuilder();
-    private StringBuilder buffer2 = new StringBuilder();
+    private RecorderSettings mSettings;
 
-    private Map<WritableObject, FileOutputStream> mSensorsFos;
+    private volatile boolean mRunning;
+    private int mMaxStreams;
+    private List<Shard> mShards;
+    private Map<Object, Shard> mShardsByKey;
+
+    // Streams are only added from the recorder thread, writer threads read a copy
+    private volatile Stream[] mStreams;
+    // Streams of sensors are indexed by Sensor#getId(), -1 if there is none
+    private int[] mSensorStreamIds;
+    private Map<WritableObject, Integer> mStreamIds;
     private Map<WritableObject, File> mSensorsFiles;
 
     private File mOutputDirectory;
+    private File mVideoFile;
+
+    // Previous snapshot, for rates of records
+    private RecordTelemetry mLastTelemetry;
+
+    // Only for segmented records
+    private SegmentsManager mSegmentsManager;
+
+    private RecordJournal mJournal;
+
+    // Journal and periodic syncs, fields are only used by the sync thread
+    private ScheduledExecutorService mSyncExecutor;
+    private long mLastJournalTime;
+    private long mLastSyncTime;
+    private long mLastSyncSize;
+    private final SyncStats mSyncStats = new SyncStats();
 
     public RecorderWriter(Context context) {
         mContext = context;
-        mSensorsFos = new HashMap<>();
+        mStreamIds = new HashMap<>();
         mSensorsFiles = new HashMap<>();
+        mShards = new ArrayList<>();
+        mShardsByKey = new HashMap<>();
     }
 
     public void init(Log log) throws FileNotFoundException {
 
-        executor = Executors.newSingleThreadExecutor();
-        mSensorsFos.clear();
+        mStreams = new Stream[0];
+        mSensorStreamIds = new int[0];
+        mStreamIds.clear();
         mSensorsFiles.clear();
-        buffer1.setLength(0);
-        buffer2.setLength(0);
+        mShards.clear();
+        mShardsByKey.clear();
+
+        mVideoFile = null;
+        mLastTelemetry = null;
 
+        mSettings = log.getRecorderSettings() != null ?
+                log.getRecorderSettings() : new RecorderSettings();
         mOutputDirectory = log.getTemporaryFolder();
 
         mFileNames = new ArrayList<>();
 
+        mSegmentsManager = null;
+        if (mSettings.isSegmented()) {
+            try {
+                mSegmentsManager = new SegmentsManager(mOutputDirectory,
+                        mSettings.getSensorsCompression().deflateLevel,
+                        mSettings.segmentSizeMb, mSettings.segmentDurationMin,
+                        mSettings.durability != RecorderSettings.Durability.NONE);
+            } catch (IOException e) {
+                android.util.Log.e(Application.LOG_TAG, "Cannot create segments folder, " +
+                        "sensors files are not segmented");
+                e.printStackTrace();
+            }
+        }
+
+        // One more stream for positions references
+        mMaxStreams = log.getSensors().size() + 1;
+        mRunning = true;
+
         for (Sensor sensor : log.getSensors()) {
             if (!(sensor instanceof FieldsWritableObject)) continue;
             createFile((FieldsWritableObject) sensor);
         }
+    }
+
+    /**
+     * Write the journal of the record, and sizes of files every {@link #JOURNAL_PERIOD_MS}, to
+     * recover the record if the process is killed. Files are also synced from now on, following
+     * {@link RecorderSettings#durability}.
+     *
+     * @param log log serialized by {@link LogsManager#toJson(Log)}
+     */
+    public void startJournal(String log) {
+
+        RecordJournal.Header header = new RecordJournal.Header();
+        header.binary = mSettings.format == RecorderSettings.Format.BINARY;
+        header.log = log;
+        for (Stream stream : mStreams) {
+            header.streams.add(new RecordJournal.StreamEntry(stream.fileName,
+                    RecordJournal.getPath(mOutputDirectory, stream.file),
+                    stream.output.isDeflated(), stream.segments != null));
+        }
+
+        try {
+            mJournal = new RecordJournal(mOutputDirectory, header);
+        } catch (IOException e) {
+            android.util.Log.e(Application.LOG_TAG, "Cannot create journal, record will not " +
+                    "be recovered");
+            e.printStackTrace();
+        }
+
+        long period = mSettings.durability == RecorderSettings.Durability.PERIODIC ?
+                SYNC_POLL_MS : JOURNAL_PERIOD_MS;
+        mLastSyncTime = mLastJournalTime = SystemClock.elapsedRealtime();
+        mSyncExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+                new Thread(runnable, "RecorderWriter-sync"));
+        mSyncExecutor.scheduleAtFixedRate(this::onSyncTick, period, period,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Sync thread
+     */
+
+    private void onSyncTick() {
+
+        long now = SystemClock.elapsedRealtime();
+        if (mSettings.durability == RecorderSettings.Durability.PERIODIC && (
+                mSettings.syncPeriodMs > 0 && now - mLastSyncTime >= mSettings.syncPeriodMs ||
+                mSettings.syncSizeKb > 0 &&
+                        getWrittenSize() - mLastSyncSize >= mSettings.syncSizeKb * 1024L)) {
+            syncFiles();
+            mLastSyncTime = now;
+        } else if (now - mLastJournalTime >= JOURNAL_PERIOD_MS) {
+            writeSyncPoint(newSyncPoint(null));
+            mLastJournalTime = now;
+        }
+    }
 
+    /**
+     * Group commit: all files are synced in one pass, then the journal gives their synced sizes
+     */
+    private void syncFiles() {
+
+        // Bytes written before the sync are on the storage device after it
+        RecordJournal.SyncPoint syncPoint = newSyncPoint(null);
+        long writtenSize = getWrittenSize();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (Stream stream : mStreams) {
+            try {
+                stream.output.sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        mSyncStats.add(SystemClock.elapsedRealtimeNanos() - start);
+        mLastSyncSize = writtenSize;
+
+        writeSyncPoint(syncPoint);
+        mLastJournalTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @param savedTo zip file of the record once it is saved, else null
+     */
+    private RecordJournal.SyncPoint newSyncPoint(String savedTo) {
+        RecordJournal.SyncPoint syncPoint = new RecordJournal.SyncPoint(System.currentTimeMillis());
+        syncPoint.savedTo = savedTo;
+        for (Stream stream : mStreams) {
+            // Output is read once, file of a stream changes with segments
+            RecordOutput output = stream.output;
+            syncPoint.sizes.put(RecordJournal.getPath(mOutputDirectory, output.getFile()),
+                    output.getSize());
+        }
+        return syncPoint;
+    }
+
+    private void writeSyncPoint(RecordJournal.SyncPoint syncPoint) {
+        if (mJournal != null) {
+            mJournal.write(syncPoint);
+        }
+    }
+
+    /**
+     * @return number of bytes written in sensors files, compressed or not
+     */
+    private long getWrittenSize() {
+        long size = 0;
+        for (Stream stream : mStreams) {
+            size += stream.output.getSize();
+            if (stream.segments != null) {
+                size += stream.segments.getClosedSize();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Wait for the running sync, not on the UI thread
+     */
+    @WorkerThread
+    private void stopSyncs() {
+        if (mSyncExecutor == null) return;
+
+        mSyncExecutor.shutdown();
+        try {
+            mSyncExecutor.awaitTermination(JOURNAL_PERIOD_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mSyncExecutor = null;
+    }
+
+    /**
+     * @return latency of syncs of sensors files to the storage device
+     */
+    public SyncStats getSyncStats() {
+        return mSyncStats;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -86,108 +288,479 @@ public class RecorderWriter {
         File file = new File(mOutputDirectory, fileName);
         cameraRecorder.setVideoPath(file.getAbsolutePath());
         mSensorsFiles.put(cameraRecorder, file);
+        mVideoFile = file;
     }
 
     private void createFile(FieldsWritableObject fwo) throws FileNotFoundException {
 
         Resources resources = mContext.getResources();
 
+        String extension = mSettings.format == RecorderSettings.Format.BINARY ?
+                BINARY_FILE_EXTENSION : fwo.getFileExtension();
         String fileName = avoidDuplicateFiles(mFileNames,
-                fwo.getStorageFileName(mContext)) +
-                "." + fwo.getFileExtension();
-        File file = new File(mOutputDirectory, fileName);
+                fwo.getStorageFileName(mContext)) + "." + extension;
+
+        // Compressed files are stored with another name, they are entries of the zip file
+        int level = mSettings.getSensorsCompression().deflateLevel;
+        boolean streaming = mSettings.archiveMode == RecorderSettings.ArchiveMode.STREAMING &&
+                level != Deflater.NO_COMPRESSION && mSegmentsManager == null;
+        SegmentsManager.Segments segments = null;
+        File file;
+        if (mSegmentsManager != null) {
+            segments = mSegmentsManager.create(fileName);
+            file = mSegmentsManager.getFile(segments);
+        } else {
+            file = new File(mOutputDirectory,
+                    streaming ? fileName + DEFLATED_FILE_SUFFIX : fileName);
+        }
 
         mSensorsFiles.put(fwo, file);
 
-        FileOutputStream fos = new FileOutputStream(file);
-        mSensorsFos.put(fwo, fos);
-
         /*
-         * Write files headers
+         * Files headers
          */
-        buffer2.append(fileName);
-        buffer2.append('\n');
-        buffer2.append('\n');
-        buffer2.append(fwo.getFieldsDescription(resources));
-        buffer2.append('\n');
-        buffer2.append(fwo.getWebPage(resources));
-        buffer2.append('\n');
-        buffer2.append('\n');
-
+        StringBuilder header = new StringBuilder();
+        header.append(fileName);
+        header.append('\n');
+        header.append('\n');
+        header.append(fwo.getFieldsDescription(resources));
+        header.append('\n');
+        header.append(fwo.getWebPage(resources));
+        header.append('\n');
+        header.append('\n');
+
+        String[] fields = fwo.getFields(resources);
+        if (mSettings.timestampMode == RecorderSettings.TimestampMode.NANOSECONDS &&
+                fwo instanceof Sensor && ((Sensor) fwo).hasNanosecondsTimestamps()) {
+            fields = fields.clone();
+            for (int i = 0; i < Math.min(2, fields.length); i++) {
+                fields[i] += NANOSECONDS_FIELD_SUFFIX;
+            }
+        }
         boolean first = true;
-        for (String field : fwo.getFields(resources)) {
+        for (String field : fields) {
 
             if (!first) {
-                buffer2.append(' ');
+                header.append(' ');
             }
-            buffer2.append(field);
+            header.append(field);
             first = false;
         }
-        buffer2.append('\n');
-        byte[] bytes = buffer2.toString().getBytes();
+        header.append('\n');
+
+        RecordEncoder encoder;
+        if (mSettings.format == RecorderSettings.Format.BINARY) {
+            boolean[] dictionaryFields = new boolean[fields.length];
+            if (fwo instanceof Sensor) {
+                for (int i = 0; i < fields.length; i++) {
+                    dictionaryFields[i] = ((Sensor) fwo).isDictionaryField(i);
+                }
+            }
+            encoder = new BinaryRecordEncoder(header.toString(), fields, dictionaryFields);
+        } else {
+            encoder = new TextRecordEncoder(header.toString());
+        }
 
+        Shard shard = getShard(fwo, mStreams.length);
+        RecordOutput output = streaming ?
+                new RecordOutput(file, level) : new RecordOutput(file);
+        String name = fwo instanceof Sensor ? ((Sensor) fwo).getName() : fileName;
+        Stream stream = new Stream(fileName, name, file, output, encoder, shard, segments);
+        Stream[] streams = Arrays.copyOf(mStreams, mStreams.length + 1);
+        streams[mStreams.length] = stream;
+        setStreamId(fwo, mStreams.length);
+        mStreams = streams;
+        shard.addStream(stream);
 
         try {
-            fos.write(bytes);
+            encoder.start(stream.output);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        buffer2.setLength(0);
     }
 
-    public void asycWrite(final WritableObject writableObject, final double elapsedTimeSystem,
-                          final Double elapsedTimeSensor, final Object[] values) {
-        executor.execute(() -> write(writableObject, elapsedTimeSystem, elapsedTimeSensor, values));
+    /**
+     * Writer thread of a new file, from {@link RecorderSettings#writerSharding}. When there are
+     * more groups than threads, threads are shared in turns.
+     */
+    private Shard getShard(FieldsWritableObject fwo, int streamId) {
+
+        Object key;
+        if (mSettings.writerSharding == RecorderSettings.WriterSharding.PER_SENSOR) {
+            key = streamId;
+        } else if (mSettings.writerSharding == RecorderSettings.WriterSharding.PER_CATEGORY) {
+            key = fwo instanceof Sensor ? ((Sensor) fwo).getCategory() : Sensor.Category.OTHER;
+        } else {
+            key = RecorderSettings.WriterSharding.SINGLE;
+        }
+
+        Shard shard = mShardsByKey.get(key);
+        if (shard != null) {
+            return shard;
+        }
+
+        int maxThreads = Math.min(MAX_WRITER_THREADS, Runtime.getRuntime().availableProcessors());
+        if (mShards.size() < maxThreads) {
+            shard = new Shard(mShards.size());
+            mShards.add(shard);
+            shard.thread.start();
+        } else {
+            shard = mShards.get(mShardsByKey.size() % mShards.size());
+        }
+        mShardsByKey.put(key, shard);
+        return shard;
     }
 
-    public void write(final WritableObject writableObject, final double elapsedTimeSystem,
-                      final Double elapsedTimeSensor, final Object[] values) {
-        FileOutputStream fos = mSensorsFos.get(writableObject);
-        try {
-            buffer1.append(String.format(Locale.US, "%.3f", elapsedTimeSystem));
+    /**
+     * @return identifier of the file of a sensor for {@link #asycWrite}, or -1 if the sensor
+     * does not have one
+     */
+    public int getStreamId(WritableObject writableObject) {
+        int sensorId = getSensorId(writableObject);
+        if (sensorId != Sensor.NO_ID) {
+            return sensorId < mSensorStreamIds.length ? mSensorStreamIds[sensorId] : -1;
+        }
+        Integer streamId = mStreamIds.get(writableObject);
+        return streamId != null ? streamId : -1;
+    }
 
-            if (elapsedTimeSensor != null) {
-                buffer1.append(String.format(Locale.US, " %.3f", elapsedTimeSensor));
-            }
-            for (Object value : values) {
-                buffer1.append(' ');
-                buffer1.append(value.toString());
-            }
-            buffer1.append('\n');
+    private void setStreamId(WritableObject writableObject, int streamId) {
+        int sensorId = getSensorId(writableObject);
+        if (sensorId == Sensor.NO_ID) {
+            mStreamIds.put(writableObject, streamId);
+            return;
+        }
+        if (sensorId >= mSensorStreamIds.length) {
+            int length = mSensorStreamIds.length;
+            mSensorStreamIds = Arrays.copyOf(mSensorStreamIds, sensorId + 1);
+            Arrays.fill(mSensorStreamIds, length, mSensorStreamIds.length, -1);
+        }
+        mSensorStreamIds[sensorId] = streamId;
+    }
+
+    private static int getSensorId(WritableObject writableObject) {
+        return writableObject instanceof Sensor ?
+                ((Sensor) writableObject).getId() : Sensor.NO_ID;
+    }
 
-            byte[] bytes = buffer1.toString().getBytes();
+    public void asycWrite(int streamId, double elapsedTimeSystem,
+                          Double elapsedTimeSensor, Object[] values) {
+        mStreams[streamId].shard.ringBuffer.offer(streamId, elapsedTimeSystem, elapsedTimeSensor, values);
+    }
+
+    /*
+     * Primitive values are copied in the ring buffer, sensors can reuse their arrays
+     */
 
-            fos.write(bytes);
-            buffer1.setLength(0);
+    public void asycWrite(int streamId, double elapsedTimeSystem,
+                          double elapsedTimeSensor, float[] values) {
+        mStreams[streamId].shard.ringBuffer.offer(streamId, elapsedTimeSystem, elapsedTimeSensor, values);
+    }
+
+    public void asycWrite(int streamId, double elapsedTimeSystem,
+                          double elapsedTimeSensor, double[] values) {
+        mStreams[streamId].shard.ringBuffer.offer(streamId, elapsedTimeSystem, elapsedTimeSensor, values);
+    }
+
+    public void asycWrite(int streamId, double elapsedTimeSystem,
+                          double elapsedTimeSensor, long[] values) {
+        mStreams[streamId].shard.ringBuffer.offer(streamId, elapsedTimeSystem, elapsedTimeSensor, values);
+    }
+
+    public void asycWriteNanos(int streamId, long elapsedTimeSystem,
+                               long elapsedTimeSensor, float[] values) {
+        mStreams[streamId].shard.ringBuffer.offerNanos(streamId, elapsedTimeSystem, elapsedTimeSensor, values);
+    }
+
+
+    /*
+     * Writer threads
+     */
+
+    private final RecordRingBuffer.Handler mRecordHandler = slot -> {
+
+        Stream stream = mStreams[slot.streamId];
+        try {
+            switch (slot.type) {
+                case RecordRingBuffer.TYPE_FLOATS:
+                    stream.encoder.write(stream.output, slot.elapsedTimeSystem,
+                            slot.elapsedTimeSensor, slot.floats, slot.length);
+                    break;
+                case RecordRingBuffer.TYPE_DOUBLES:
+                    stream.encoder.write(stream.output, slot.elapsedTimeSystem,
+                            slot.elapsedTimeSensor, slot.doubles, slot.length);
+                    break;
+                case RecordRingBuffer.TYPE_LONGS:
+                    stream.encoder.write(stream.output, slot.elapsedTimeSystem,
+                            slot.elapsedTimeSensor, slot.longs, slot.length);
+                    break;
+                case RecordRingBuffer.TYPE_FLOATS_NANOS:
+                    stream.encoder.writeNanos(stream.output, slot.elapsedTimeSystemNanos,
+                            slot.elapsedTimeSensorNanos, slot.floats, slot.length);
+                    break;
+                default:
+                    stream.encoder.write(stream.output, slot.elapsedTimeSystem,
+                            slot.hasElapsedTimeSensor ? slot.elapsedTimeSensor : null,
+                            slot.objects);
+            }
+            stream.records++;
+            stream.shard.latency.record(System.nanoTime() - slot.offeredNanos);
+            if (stream.segments != null &&
+                    mSegmentsManager.needsNewSegment(stream.segments, stream.output.getSize())) {
+                startNewSegment(stream);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
-    }
+    };
+
+    /**
+     * Close the segment of a stream and continue in the next one, from its writer thread
+     */
+    private void startNewSegment(Stream stream) throws IOException {
 
+        // Stream continues in the current segment if the next one cannot be created
+        File file = mSegmentsManager.getNextFile(stream.segments);
+        RecordOutput output = new RecordOutput(file);
 
+        closeOutput(stream);
+        mSegmentsManager.close(stream.segments, stream.output.getSize(), false);
+        stream.file = file;
+        stream.output = output;
+    }
+
+    /**
+     * End the record: files are synced to the storage device if the durability needs it, the
+     * sync thread and the compression of the last segments are awaited, so it is called by
+     * {@link RecordFinishTask} and never on the UI thread
+     */
+    @WorkerThread
     public void finish() throws IOException {
 
-        executor.shutdown();
+        // Values given after the end (e.g. late FIFO flush) are counted as dropped, producers
+        // waiting for a free slot are released
+        for (Shard shard : mShards) {
+            shard.ringBuffer.close();
+        }
+        mRunning = false;
+        for (Shard shard : mShards) {
+            LockSupport.unpark(shard.thread);
+        }
+        for (Shard shard : mShards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            // Published by a producer which claimed its slot before the buffer was closed
+            shard.ringBuffer.drain(slot -> mStreams[slot.streamId].dropped.incrementAndGet());
+        }
+
+        // Sync thread is stopped first, files are synced when they are closed
+        stopSyncs();
 
-        for (FileOutputStream fos : mSensorsFos.values()) {
-            fos.flush();
-            fos.close();
+        for (Stream stream : mStreams) {
+            stream.encoder.finish(stream.output);
+            closeOutput(stream);
+            if (stream.segments != null) {
+                mSegmentsManager.close(stream.segments, stream.output.getSize(), true);
+            }
+        }
+        if (mSegmentsManager != null) {
+            mSegmentsManager.finish();
         }
+
+        // Sizes of closed files, the journal is closed when the record is saved or removed
+        writeSyncPoint(newSyncPoint(null));
     }
 
-    private File writeDescriptionFile(Log log) throws IOException {
+    /**
+     * Close the output of a stream, synced to the storage device if the durability needs it
+     */
+    @WorkerThread
+    private void closeOutput(Stream stream) throws IOException {
+
+        if (mSettings.durability == RecorderSettings.Durability.NONE) {
+            stream.output.close();
+            return;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        stream.output.close(true);
+        mSyncStats.add(SystemClock.elapsedRealtimeNanos() - start);
+    }
+
+    /**
+     * @param duration time recorded in ms, without paused periods
+     */
+    private File writeDescriptionFile(Log log, long duration) throws IOException {
 
         File file = new File(mOutputDirectory, mContext.getString(R.string.file_record_properties));
 
-        Wini iniFile = log.generateIniFile(mContext, file, mSensorsFiles.keySet());
+        List<Log.IniRecord> records = getDroppedRecords();
+        records.addAll(getMismatchedRecords());
+        records.addAll(getSyncRecords());
+        records.addAll(getTelemetryRecords(duration));
+        Wini iniFile = log.generateIniFile(mContext, file, mSensorsFiles.keySet(), records);
         if (iniFile == null) return file;
         iniFile.store();
         return file;
     }
 
 
+    /**
+     * Number of samples dropped by the overflow policy, for each file
+     */
+    private List<Log.IniRecord> getDroppedRecords() {
+
+        List<Log.IniRecord> records = new ArrayList<>();
+        long total = 0;
+        for (Stream stream : mStreams) {
+            long dropped = stream.dropped.get();
+            records.add(new Log.IniRecord("Dropped", stream.fileName, dropped));
+            total += dropped;
+        }
+        records.add(new Log.IniRecord("Dropped", "Total", total));
+        return records;
+    }
+
+    /**
+     * Number of values which do not fit the type of their column, only for files which have some
+     */
+    private List<Log.IniRecord> getMismatchedRecords() {
+
+        List<Log.IniRecord> records = new ArrayList<>();
+        for (Stream stream : mStreams) {
+            long mismatched = stream.encoder.getMismatchedValues();
+            if (mismatched > 0) {
+                records.add(new Log.IniRecord("Mismatched", stream.fileName, mismatched));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Number of syncs and their latency
+     */
+    private List<Log.IniRecord> getSyncRecords() {
+
+        List<Log.IniRecord> records = new ArrayList<>();
+        if (mSyncStats.getCount() == 0) {
+            return records;
+        }
+        records.add(new Log.IniRecord("Durability", "Syncs", mSyncStats.getCount()));
+        records.add(new Log.IniRecord("Durability", "MeanLatencyMs",
+                String.format(Locale.US, "%.3f", mSyncStats.getMeanLatencyMs())));
+        records.add(new Log.IniRecord("Durability", "MaxLatencyMs",
+                String.format(Locale.US, "%.3f", mSyncStats.getMaxLatencyMs())));
+        return records;
+    }
+
+    /**
+     * Summary of the telemetry of the writer, rates are means over the time recorded
+     *
+     * @param duration time recorded in ms, without paused periods
+     */
+    private List<Log.IniRecord> getTelemetryRecords(long duration) {
+
+        // Rates of the snapshot are not used, the one of the UI is kept
+        RecordTelemetry telemetry = createTelemetry(null);
+
+        List<Log.IniRecord> records = new ArrayList<>();
+        for (RecordTelemetry.StreamTelemetry stream : telemetry.streams) {
+            records.add(new Log.IniRecord("Records", stream.fileName, stream.records));
+            if (duration > 0) {
+                records.add(new Log.IniRecord("Rate", stream.fileName,
+                        String.format(Locale.US, "%.3f", stream.records * 1e3 / duration)));
+            }
+        }
+        records.add(new Log.IniRecord("Writer", "QueueCapacity", telemetry.queueCapacity));
+        records.add(new Log.IniRecord("Writer", "MaxQueueDepth", telemetry.maxQueueDepth));
+        records.add(new Log.IniRecord("Writer", "LatencyP50Ms",
+                String.format(Locale.US, "%.3f", telemetry.latencyP50Ms)));
+        records.add(new Log.IniRecord("Writer", "LatencyP90Ms",
+                String.format(Locale.US, "%.3f", telemetry.latencyP90Ms)));
+        records.add(new Log.IniRecord("Writer", "LatencyP99Ms",
+                String.format(Locale.US, "%.3f", telemetry.latencyP99Ms)));
+        records.add(new Log.IniRecord("Writer", "LatencyMaxMs",
+                String.format(Locale.US, "%.3f", telemetry.latencyMaxMs)));
+        return records;
+    }
+
+    /**
+     * Counters of the writer, without listing files. Rates are computed since the previous
+     * call, it is meant to be polled by one caller.
+     */
+    public RecordTelemetry getTelemetry() {
+        RecordTelemetry telemetry = createTelemetry(mLastTelemetry);
+        mLastTelemetry = telemetry;
+        return telemetry;
+    }
+
+    /**
+     * @param previous snapshot rates are computed from, or null
+     */
+    private RecordTelemetry createTelemetry(RecordTelemetry previous) {
+
+        long now = SystemClock.elapsedRealtime();
+        Stream[] streams = mStreams;
+
+        List<RecordTelemetry.StreamTelemetry> streamsTelemetry = new ArrayList<>();
+        long dataSize = mVideoFile != null ? mVideoFile.length() : 0;
+        for (int i = 0; i < streams.length; i++) {
+            Stream stream = streams[i];
+            long records = stream.records;
+            long bytes = stream.output.getUncompressedSize();
+            if (stream.segments != null) {
+                bytes += stream.segments.getClosedSize();
+            }
+            double rate = 0;
+            if (previous != null && i < previous.streams.size() && now > previous.time) {
+                rate = (records - previous.streams.get(i).records) * 1e3 / (now - previous.time);
+            }
+            streamsTelemetry.add(new RecordTelemetry.StreamTelemetry(stream.fileName,
+                    stream.name, records, stream.dropped.get(), bytes, rate));
+            dataSize += bytes;
+        }
+
+        int queueDepth = 0;
+        int maxQueueDepth = 0;
+        int queueCapacity = 0;
+        List<LatencyHistogram> histograms = new ArrayList<>();
+        for (Shard shard : mShards) {
+            queueDepth += shard.ringBuffer.size();
+            maxQueueDepth = Math.max(maxQueueDepth, shard.maxQueueDepth);
+            queueCapacity += shard.ringBuffer.getCapacity();
+            histograms.add(shard.latency);
+        }
+
+        return new RecordTelemetry(now, streamsTelemetry, dataSize,
+                queueDepth, maxQueueDepth, queueCapacity,
+                LatencyHistogram.getPercentileMs(histograms, 0.5),
+                LatencyHistogram.getPercentileMs(histograms, 0.9),
+                LatencyHistogram.getPercentileMs(histograms, 0.99),
+                LatencyHistogram.getMaxMs(histograms),
+                mSyncStats.getCount(), mSyncStats.getMeanLatencyMs());
+    }
+
     public long getDataSize() {
-        return getDataSize(mOutputDirectory);
+        long length = getDataSize(mOutputDirectory);
+
+        // Journal is only used to recover the record, it is not in the zip file
+        length -= new File(mOutputDirectory, RecordJournal.FILE_NAME).length();
+
+        // Sensors files are preallocated or compressed, their length is replaced by the size
+        // of their data
+        if (mSegmentsManager != null) {
+            length -= getDataSize(mSegmentsManager.getDirectory());
+        }
+        for (Stream stream : mStreams) {
+            if (stream.segments != null) {
+                length += stream.segments.getClosedSize() + stream.output.getSize();
+            } else {
+                length += stream.output.getUncompressedSize() - stream.file.length();
+            }
+        }
+        return length;
     }
 
     private static long getDataSize(File directory) {
@@ -221,23 +794,49 @@ public class RecorderWriter {
     }
 
 
+    /**
+     * Remove files of the record, after {@link #finish()} which stops the sync thread
+     */
     public void removeFiles() {
 
+        if (mSyncExecutor != null) {
+            android.util.Log.w(Application.LOG_TAG, "Files are removed before the end of syncs");
+            mSyncExecutor.shutdownNow();
+            mSyncExecutor = null;
+        }
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+
         if (mOutputDirectory != null && mOutputDirectory.isDirectory()) {
-            for (String child : mOutputDirectory.list()) {
-                if (!(new File(mOutputDirectory, child).delete())) {
-                    android.util.Log.e(Application.LOG_TAG, "Cannot delete writer tmp file");
-                }
-            }
-            if (!mOutputDirectory.delete()) {
-                android.util.Log.e(Application.LOG_TAG, "Cannot delete writer tmp folder");
-            }
+            removeDirectory(mOutputDirectory);
         }
         mOutputDirectory = null;
     }
 
+    private static void removeDirectory(File directory) {
+        for (File child : directory.listFiles()) {
+            if (child.isDirectory()) {
+                removeDirectory(child);
+            } else if (!child.delete()) {
+                android.util.Log.e(Application.LOG_TAG, "Cannot delete writer tmp file");
+            }
+        }
+        if (!directory.delete()) {
+            android.util.Log.e(Application.LOG_TAG, "Cannot delete writer tmp folder");
+        }
+    }
+
 
-    public Pair<File, ZipCreationTask> createZipFile(String fileName, Log log)
+    /**
+     * Write the description file and list the entries of the zip file, the zip creation task is
+     * executed by the caller on the UI thread
+     *
+     * @param duration time recorded in ms, without paused periods
+     */
+    @WorkerThread
+    public ZipCreationTask.Params prepareZipFile(String fileName, Log log, long duration)
             throws IOException {
 
         File outputFile = new File(mContext.getFilesDir(), fileName + ".zip");
@@ -248,17 +847,44 @@ public class RecorderWriter {
                 ;
         }
 
-        writeDescriptionFile(log);
-        Collection<File> inputFiles = Arrays.asList(mOutputDirectory.listFiles());
+        writeDescriptionFile(log, duration);
+        Collection<File> inputFiles = new ArrayList<>();
+        for (File file : mOutputDirectory.listFiles()) {
+            // Segments folder and journal are not entries
+            if (file.isFile() && !file.getName().equals(RecordJournal.FILE_NAME)) {
+                inputFiles.add(file);
+            }
+        }
 
 //                Collection<File> inputFiles = new ArrayList<>(mSensorsFiles.values());
 //        inputFiles.add(writeDescriptionFile(log));
 
-        ZipCreationTask zipTask = new ZipCreationTask();
-        ZipCreationTask.Params params = new ZipCreationTask.Params(outputFile, inputFiles);
-        zipTask.execute(params);
+        // Files compressed during the record are copied as they are, other sensors files are
+        // compressed with the level of their format
+        List<ZipCreationTask.CompressedEntry> compressedEntries = new ArrayList<>();
+        CompressionPolicy policy = new CompressionPolicy();
+        for (Stream stream : mStreams) {
+            if (stream.segments != null) {
+                compressedEntries.add(mSegmentsManager.getEntry(stream.segments));
+                continue;
+            }
+            if (!stream.output.isDeflated()) {
+                policy.setLevel(stream.file, mSettings.getSensorsCompression().deflateLevel);
+                continue;
+            }
+            inputFiles.remove(stream.file);
+            compressedEntries.add(new ZipCreationTask.CompressedEntry(stream.fileName,
+                    stream.file, stream.output.getCrc(), stream.output.getUncompressedSize()));
+        }
+
+        // Record is recovered in this zip file if the process is killed before the end
+        if (mJournal != null) {
+            writeSyncPoint(newSyncPoint(outputFile.getAbsolutePath()));
+            mJournal.close();
+            mJournal = null;
+        }
 
-        return new Pair<>(outputFile, zipTask);
+        return new ZipCreationTask.Params(outputFile, inputFiles, compressedEntries, policy);
     }
 
 
@@ -267,9 +893,147 @@ public class RecorderWriter {
 
         FieldsWritableObject prWritableObject = PositionsReferenceManager.getFieldsWritableObject();
         createFile(prWritableObject);
+        int streamId = getStreamId(prWritableObject);
         for (PositionReference reference : references) {
-            write(prWritableObject, reference.elapsedTime, null, reference.toObject());
+            asycWrite(streamId, reference.elapsedTime, null, reference.toObject());
         }
 
     }
+
+
+    /**
+     * Latency of syncs of sensors files, from the sync thread and writer threads closing segments
+     */
+    public static class SyncStats {
+        private volatile long mCount;
+        private volatile long mTotalNanos;
+        private volatile long mMaxNanos;
+        private volatile long mLastNanos;
+
+        private synchronized void add(long nanos) {
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+            mLastNanos = nanos;
+            mCount++;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public double getMeanLatencyMs() {
+            long count = mCount;
+            return count > 0 ? mTotalNanos / 1e6 / count : 0;
+        }
+
+        public double getMaxLatencyMs() {
+            return mMaxNanos / 1e6;
+        }
+
+        public double getLastLatencyMs() {
+            return mLastNanos / 1e6;
+        }
+    }
+
+
+    private static class Stream {
+        final String fileName;
+        final String name;
+        final RecordEncoder encoder;
+        final Shard shard;
+        final AtomicLong dropped = new AtomicLong();
+
+        // Written by the writer thread of the stream
+        volatile long records;
+
+        // Null if the file is not segmented
+        final SegmentsManager.Segments segments;
+
+        // Change with segments, from the writer thread of the stream
+        volatile File file;
+        volatile RecordOutput output;
+
+        Stream(String fileName, String name, File file, RecordOutput output,
+               RecordEncoder encoder, Shard shard, SegmentsManager.Segments segments) {
+            this.fileName = fileName;
+            this.name = name;
+            this.file = file;
+            this.output = output;
+            this.encoder = encoder;
+            this.shard = shard;
+            this.segments = segments;
+        }
+    }
+
+
+    /**
+     * A writer thread, with its own buffer, which owns a group of files
+     */
+    private class Shard {
+        final RecordRingBuffer ringBuffer;
+        final Thread thread;
+
+        // Written by the thread of the shard
+        final LatencyHistogram latency = new LatencyHistogram();
+        volatile int maxQueueDepth;
+
+        // Files of this thread, flushed when it is idle
+        private volatile Stream[] mShardStreams = new Stream[0];
+
+        Shard(int index) {
+            ringBuffer = new RecordRingBuffer(mSettings.bufferCapacity,
+                    mSettings.overflowPolicy, mMaxStreams,
+                    streamId -> mStreams[streamId].dropped.incrementAndGet());
+            thread = new Thread(this::drainLoop, "RecorderWriter-" + index);
+        }
+
+        void addStream(Stream stream) {
+            Stream[] streams = Arrays.copyOf(mShardStreams, mShardStreams.length + 1);
+            streams[mShardStreams.length] = stream;
+            mShardStreams = streams;
+        }
+
+        private void drainLoop() {
+
+            // Sensors threads and UI must not wait for files
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            int idleLoops = 0;
+            while (true) {
+
+                // Read before draining, records published before the end are not lost
+                boolean running = mRunning;
+
+                int depth = ringBuffer.size();
+                if (depth > maxQueueDepth) {
+                    maxQueueDepth = depth;
+                }
+
+                if (ringBuffer.drain(mRecordHandler) > 0) {
+                    idleLoops = 0;
+                    continue;
+                }
+                if (!running) {
+                    break;
+                }
+
+                // Nothing to write, give batch of records to files and wait
+                if (idleLoops == 0) {
+                    flushStreams();
+                }
+                LockSupport.parkNanos(Math.min(MAX_IDLE_PARK_NANOS,
+                        MIN_IDLE_PARK_NANOS << Math.min(idleLoops++, 8)));
+            }
+        }
+
+        private void flushStreams() {
+            for (Stream stream : mShardStreams) {
+                try {
+                    stream.output.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
 }
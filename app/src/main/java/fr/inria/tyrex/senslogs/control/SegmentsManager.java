@@ -0,0 +1,320 @@
+package fr.inria.tyrex.senslogs.control;
+
+import android.os.Process;
+
+import org.ini4j.Wini;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import fr.inria.tyrex.senslogs.Application;
+
+/**
+ * Sensors files of long records split in numbered segments, in a folder of the record.
+ * <p>
+ * Writer threads close a segment when it is too large or too old and continue in a new one.
+ * Closed segments are compressed one after the other on a background thread, the raw segment is
+ * then deleted and the manifest is updated. Segments are parts of the same file: only the first
+ * one has the header, deflated segments end with a sync flush and the last one with the final
+ * block, so they are copied one after the other as one entry of the zip file.
+ * <p>
+ * The manifest ({@link #MANIFEST_FILE_NAME}) lists finalized segments of each file, with the
+ * size and the CRC-32 of their data.
+ */
+class SegmentsManager {
+
+    final static String DIRECTORY_NAME = "segments";
+    final static String MANIFEST_FILE_NAME = "manifest.ini";
+    final static String DEFLATED_SEGMENT_SUFFIX = ".deflate";
+
+    private final static int BUFFER = 64 * 1024;
+    private final static long FINISH_TIMEOUT_MINUTES = 10;
+
+    /**
+     * Segments of a sensors file
+     */
+    static class Segments {
+        final String fileName;
+
+        // Written by the writer thread of the file
+        private int mIndex;
+        private int mEpoch;
+        private volatile long mClosedSize;
+
+        // Written by the background thread
+        private final List<File> mFinalized = new ArrayList<>();
+        private final CRC32 mCrc = new CRC32();
+        private long mFinalizedSize;
+
+        private Segments(String fileName) {
+            this.fileName = fileName;
+        }
+
+        /**
+         * @return size of data of closed segments. Can be called from any thread.
+         */
+        long getClosedSize() {
+            return mClosedSize;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final boolean mSync;
+    private final List<Segments> mFiles = new ArrayList<>();
+
+    private final ScheduledExecutorService mExecutor;
+    private volatile int mEpoch;
+
+    // Reused by the background thread
+    private final byte[] mInput = new byte[BUFFER];
+    private final byte[] mOutput = new byte[BUFFER];
+    private final Deflater mDeflater;
+
+    /**
+     * @param level     deflate level of segments, {@link Deflater#NO_COMPRESSION} to keep them
+     *                  as they are
+     * @param maxSizeMb size of a segment, 0 for no limit
+     * @param maxAgeMin duration of a segment, 0 for no limit
+     * @param sync      true to sync finalized segments and the manifest to the storage device
+     */
+    SegmentsManager(File recordDirectory, int level, int maxSizeMb, int maxAgeMin, boolean sync)
+            throws IOException {
+
+        mDirectory = new File(recordDirectory, DIRECTORY_NAME);
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        mMaxSize = maxSizeMb > 0 ? maxSizeMb * 1024L * 1024L : Long.MAX_VALUE;
+        mSync = sync;
+        mDeflater = level != Deflater.NO_COMPRESSION ? new Deflater(level, true) : null;
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "RecorderWriter-segments"));
+
+        // Segments are too old when the epoch has changed since they have been opened
+        if (maxAgeMin > 0) {
+            mExecutor.scheduleAtFixedRate(() -> mEpoch++, maxAgeMin, maxAgeMin,
+                    TimeUnit.MINUTES);
+        }
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return segments of a new file, and the file of the first segment in {@link #getFile}
+     */
+    synchronized Segments create(String fileName) {
+        Segments segments = new Segments(fileName);
+        segments.mEpoch = mEpoch;
+        mFiles.add(segments);
+        return segments;
+    }
+
+    /**
+     * File of the segment which is written
+     */
+    File getFile(Segments segments) {
+        return getFile(segments, segments.mIndex);
+    }
+
+    /**
+     * File of the segment after the one which is written
+     */
+    File getNextFile(Segments segments) {
+        return getFile(segments, segments.mIndex + 1);
+    }
+
+    private File getFile(Segments segments, int index) {
+        return getFile(mDirectory, segments.fileName, index);
+    }
+
+    /**
+     * @param directory segments folder of a record
+     * @param index     index of the segment, from 0
+     */
+    static File getFile(File directory, String fileName, int index) {
+        return new File(directory, String.format(Locale.US, "%s.%04d", fileName, index + 1));
+    }
+
+    /**
+     * Called by the writer thread of the file after each record
+     *
+     * @param size size of data written in the current segment
+     */
+    boolean needsNewSegment(Segments segments, long size) {
+        return size >= mMaxSize || segments.mEpoch != mEpoch;
+    }
+
+    /**
+     * Give a closed segment to the background thread and move to the next one
+     *
+     * @param size size of data of the closed segment
+     * @param last true if it is the last segment of the file
+     */
+    void close(Segments segments, long size, boolean last) {
+
+        File segment = getFile(segments);
+        segments.mIndex++;
+        segments.mEpoch = mEpoch;
+        segments.mClosedSize += size;
+        mExecutor.execute(() -> finalizeSegment(segments, segment, last));
+    }
+
+    /**
+     * Wait until all closed segments are finalized, from {@link RecordFinishTask} as the last
+     * segment can take a while to compress
+     */
+    void finish() {
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(FINISH_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                android.util.Log.e(Application.LOG_TAG, "Segments are not finalized");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        if (mDeflater != null) {
+            mDeflater.end();
+        }
+    }
+
+    /**
+     * Entry of the zip file with all segments of a file, after {@link #finish()}
+     */
+    ZipCreationTask.CompressedEntry getEntry(Segments segments) {
+        return new ZipCreationTask.CompressedEntry(segments.fileName,
+                new ArrayList<>(segments.mFinalized), mDeflater != null,
+                segments.mCrc.getValue(), segments.mFinalizedSize);
+    }
+
+
+    /*
+     * Background thread
+     */
+
+    private void finalizeSegment(Segments segments, File segment, boolean last) {
+
+        try {
+            File finalized;
+            if (mDeflater == null) {
+                updateCrc(segments, segment);
+                finalized = segment;
+            } else {
+                finalized = new File(segment.getPath() + DEFLATED_SEGMENT_SUFFIX);
+                deflate(segments, segment, finalized, last);
+                if (!segment.delete()) {
+                    android.util.Log.w(Application.LOG_TAG, "Cannot delete " + segment);
+                }
+            }
+            segments.mFinalized.add(finalized);
+            writeManifest();
+        } catch (IOException e) {
+            android.util.Log.e(Application.LOG_TAG, "Cannot finalize segment " + segment);
+            e.printStackTrace();
+        }
+    }
+
+    private void updateCrc(Segments segments, File segment) throws IOException {
+        FileInputStream in = new FileInputStream(segment);
+        try {
+            int count;
+            while ((count = in.read(mInput)) != -1) {
+                segments.mCrc.update(mInput, 0, count);
+                segments.mFinalizedSize += count;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void deflate(Segments segments, File segment, File output, boolean last)
+            throws IOException {
+
+        mDeflater.reset();
+        FileInputStream in = new FileInputStream(segment);
+        FileOutputStream out = new FileOutputStream(output);
+        try {
+            int count;
+            while ((count = in.read(mInput)) != -1) {
+                segments.mCrc.update(mInput, 0, count);
+                segments.mFinalizedSize += count;
+                mDeflater.setInput(mInput, 0, count);
+                while (!mDeflater.needsInput()) {
+                    out.write(mOutput, 0, mDeflater.deflate(mOutput));
+                }
+            }
+
+            if (last) {
+                mDeflater.finish();
+                while (!mDeflater.finished()) {
+                    out.write(mOutput, 0, mDeflater.deflate(mOutput));
+                }
+            } else {
+                // Next segment continues the deflate stream from a byte boundary
+                int length;
+                do {
+                    length = mDeflater.deflate(mOutput, 0, mOutput.length, Deflater.SYNC_FLUSH);
+                    out.write(mOutput, 0, length);
+                } while (length == mOutput.length);
+            }
+
+            // Raw segment is deleted once its deflated copy is on the storage device
+            if (mSync) {
+                out.getFD().sync();
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Written in a temporary file then renamed, the manifest is always complete
+     */
+    private void writeManifest() throws IOException {
+
+        Wini ini = new Wini();
+        synchronized (this) {
+            for (Segments segments : mFiles) {
+                String section = segments.fileName;
+                ini.put(section, "Deflated", mDeflater != null);
+                ini.put(section, "Segments", segments.mFinalized.size());
+                ini.put(section, "Size", segments.mFinalizedSize);
+                ini.put(section, "Crc", segments.mCrc.getValue());
+                for (int i = 0; i < segments.mFinalized.size(); i++) {
+                    ini.put(section, "Segment" + (i + 1), segments.mFinalized.get(i).getName());
+                }
+            }
+        }
+
+        File manifest = new File(mDirectory, MANIFEST_FILE_NAME);
+        File temporary = new File(mDirectory, MANIFEST_FILE_NAME + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            ini.store(out);
+            if (mSync) {
+                out.getFD().sync();
+            }
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(manifest)) {
+            throw new IOException("Cannot rename " + temporary);
+        }
+    }
+}
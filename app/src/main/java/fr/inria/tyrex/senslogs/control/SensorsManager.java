@@ -1,12 +1,19 @@
 package fr.inria.tyrex.senslogs.control;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.hardware.SensorManager;
 import android.os.Build;
+import android.os.Process;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
 import fr.inria.tyrex.senslogs.model.sensors.AndroidSensor;
 import fr.inria.tyrex.senslogs.model.sensors.BluetoothSensor;
@@ -20,12 +27,23 @@ import fr.inria.tyrex.senslogs.model.sensors.WifiSensor;
 
 /**
  * Created by thibaud on 18/12/15.
+ * <p>
+ * Sensors which are not Android sensors (location, wifi, nfc...) are probed from their system
+ * services, which is slow when the application starts. The ones which exist are cached for the
+ * fingerprint of the build: next starts use the cache and probe them again in background. A
+ * change found in background is used from the next start, as identifiers of sensors must not
+ * change while the application runs.
  */
 public class SensorsManager {
 
+    private final static String PREF_FILE = "SensorsCatalogue";
+    private final static String KEY_FINGERPRINT = "fingerprint";
+    private final static String KEY_TYPES = "types";
+
 
     private ArrayList<Sensor> mAvailableSensorsList;
     private List<Sensor> mSensorsToCalibrate;
+    private Map<String, Sensor> mSensorsByName;
 
 
     public SensorsManager(Context context) {
@@ -36,6 +54,17 @@ public class SensorsManager {
         return mAvailableSensorsList;
     }
 
+    /**
+     * @param id from {@link Sensor#getId()}, between 0 and {@link #getSensorsCount()}
+     */
+    public Sensor getSensor(int id) {
+        return mAvailableSensorsList.get(id);
+    }
+
+    public int getSensorsCount() {
+        return mAvailableSensorsList.size();
+    }
+
     public List<Sensor> getSensorsToCalibrate() {
         return mSensorsToCalibrate;
     }
@@ -45,6 +74,7 @@ public class SensorsManager {
         mAvailableSensorsList = new ArrayList<>();
         mSensorsToCalibrate = new ArrayList<>();
 
+        // Sensors are already known by the process of the application, this is fast
         SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         for (android.hardware.Sensor sensor : sensorManager.getSensorList(android.hardware.Sensor.TYPE_ALL)) {
             AndroidSensor as = new AndroidSensor(sensor);
@@ -57,39 +87,119 @@ public class SensorsManager {
             }
         }
 
-        if (LocationGpsSensor.getInstance().exists(context)) {
-            mAvailableSensorsList.add(LocationGpsSensor.getInstance());
-        }
-        if (LocationWifiAndCellsSensor.getInstance().exists(context)) {
-            mAvailableSensorsList.add(LocationWifiAndCellsSensor.getInstance());
+        SharedPreferences catalogue = context.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
+        List<Sensor> otherSensors = getCachedOtherSensors(catalogue);
+        if (otherSensors == null) {
+            otherSensors = findOtherSensors(context, getOtherSensors());
+            saveCatalogue(catalogue, otherSensors);
+        } else {
+            refreshCatalogue(context.getApplicationContext(), catalogue, otherSensors);
         }
-        if (LocationPassiveSensor.getInstance().exists(context)) {
-            mAvailableSensorsList.add(LocationPassiveSensor.getInstance());
+        mAvailableSensorsList.addAll(otherSensors);
+
+        // Sensors are indexed by their position in the list, lookups in preferences and writer
+        // do not need to hash them
+        mSensorsByName = new HashMap<>();
+        for (int i = 0; i < mAvailableSensorsList.size(); i++) {
+            Sensor sensor = mAvailableSensorsList.get(i);
+            sensor.setId(i);
+            mSensorsByName.put(sensor.getName(), sensor);
         }
-        if (BluetoothSensor.getInstance().exists(context)) {
-            mAvailableSensorsList.add(BluetoothSensor.getInstance());
+    }
+
+
+    /*
+    Catalogue of other sensors
+     */
+
+    /**
+     * @return sensors which are not Android sensors, in the order of the list
+     */
+    private static List<Sensor> getOtherSensors() {
+        List<Sensor> sensors = new ArrayList<>();
+        sensors.add(LocationGpsSensor.getInstance());
+        sensors.add(LocationWifiAndCellsSensor.getInstance());
+        sensors.add(LocationPassiveSensor.getInstance());
+        sensors.add(BluetoothSensor.getInstance());
+        sensors.add(NfcSensor.getInstance());
+        sensors.add(WifiSensor.getInstance());
+        sensors.add(NmeaSensor.getInstance());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            sensors.add(CameraRecorder.getInstance());
         }
-        if (NfcSensor.getInstance().exists(context)) {
-            mAvailableSensorsList.add(NfcSensor.getInstance());
+        return sensors;
+    }
+
+    private static List<Sensor> findOtherSensors(Context context, List<Sensor> sensors) {
+        List<Sensor> existingSensors = new ArrayList<>();
+        for (Sensor sensor : sensors) {
+            if (sensor.exists(context)) {
+                existingSensors.add(sensor);
+            }
         }
-        if (WifiSensor.getInstance().exists(context)) {
-            mAvailableSensorsList.add(WifiSensor.getInstance());
+        return existingSensors;
+    }
+
+    /**
+     * @return sensors of the catalogue, or null if it has not been made on this build
+     */
+    private static List<Sensor> getCachedOtherSensors(SharedPreferences catalogue) {
+
+        if (!Build.FINGERPRINT.equals(catalogue.getString(KEY_FINGERPRINT, null))) {
+            return null;
         }
-        if (NmeaSensor.getInstance().exists(context)) {
-            mAvailableSensorsList.add(NmeaSensor.getInstance());
+        Set<String> types = catalogue.getStringSet(KEY_TYPES, null);
+        if (types == null) {
+            return null;
         }
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && CameraRecorder.getInstance().exists(context)) {
-            mAvailableSensorsList.add(CameraRecorder.getInstance());
+
+        List<Sensor> sensors = new ArrayList<>();
+        for (Sensor sensor : getOtherSensors()) {
+            if (types.contains(String.valueOf(sensor.getType()))) {
+                sensors.add(sensor);
+            }
         }
+        return sensors;
     }
 
-    public Sensor getSensorByName(String name) {
-        for (Sensor sensor : mAvailableSensorsList) {
-            if (sensor.getName().equals(name)) {
-                return sensor;
+    private static void saveCatalogue(SharedPreferences catalogue, List<Sensor> sensors) {
+        catalogue.edit().
+                putString(KEY_FINGERPRINT, Build.FINGERPRINT).
+                putStringSet(KEY_TYPES, getTypes(sensors)).
+                apply();
+    }
+
+    /**
+     * Probe other sensors in background and update the catalogue if they have changed
+     */
+    private static void refreshCatalogue(final Context context, final SharedPreferences catalogue,
+                                         List<Sensor> cachedSensors) {
+
+        // Instances are created on this thread
+        final List<Sensor> sensors = getOtherSensors();
+        final Set<String> cachedTypes = getTypes(cachedSensors);
+
+        new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            List<Sensor> existingSensors = findOtherSensors(context, sensors);
+            if (!getTypes(existingSensors).equals(cachedTypes)) {
+                android.util.Log.w(Application.LOG_TAG, "Sensors have changed, " +
+                        "they are updated on next start");
+                saveCatalogue(catalogue, existingSensors);
             }
+        }, "SensorsManager-refresh").start();
+    }
+
+    private static Set<String> getTypes(List<Sensor> sensors) {
+        Set<String> types = new HashSet<>();
+        for (Sensor sensor : sensors) {
+            types.add(String.valueOf(sensor.getType()));
         }
-        return null;
+        return types;
+    }
+
+    public Sensor getSensorByName(String name) {
+        return mSensorsByName.get(name);
     }
 
     public Sensor getSensorByType(int type) {
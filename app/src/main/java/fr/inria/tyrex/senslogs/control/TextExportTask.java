@@ -0,0 +1,175 @@
+package fr.inria.tyrex.senslogs.control;
+
+import android.os.AsyncTask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Copy a log zip from Input.src to Input.dst, converting binary records to text files
+ */
+public class TextExportTask extends AsyncTask<TextExportTask.Input, Long, File> {
+
+    private static final int BUFFER = 2048;
+
+    private static final String BINARY_FILE_EXTENSION = ".bin";
+    private static final String TEXT_FILE_EXTENSION = ".txt";
+
+    public static class Input {
+        public File src;
+        public File dst;
+
+        public Input(File src, File dst) {
+            this.src = src;
+            this.dst = dst;
+        }
+    }
+
+    @Override
+    protected File doInBackground(Input... params) {
+
+        if (params.length != 1) {
+            return null;
+        }
+
+        try {
+
+            CountingInputStream counter = new CountingInputStream(
+                    new BufferedInputStream(new FileInputStream(params[0].src), BUFFER));
+            ZipInputStream in = new ZipInputStream(counter);
+            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(params[0].dst)));
+
+            byte[] data = new byte[BUFFER];
+
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+
+                String name = entry.getName();
+                if (name.endsWith(BINARY_FILE_EXTENSION)) {
+                    name = name.substring(0, name.length() - BINARY_FILE_EXTENSION.length()) +
+                            TEXT_FILE_EXTENSION;
+                    out.putNextEntry(new ZipEntry(name));
+                    convert(in, out, counter);
+                } else {
+                    out.putNextEntry(new ZipEntry(name));
+                    int count;
+                    while ((count = in.read(data, 0, BUFFER)) != -1) {
+                        out.write(data, 0, count);
+                        publishProgress(counter.mCount);
+                    }
+                }
+                out.closeEntry();
+            }
+
+            in.close();
+            out.close();
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return params[0].dst;
+    }
+
+    private void convert(InputStream in, OutputStream out, CountingInputStream counter)
+            throws IOException {
+
+        // Zip entry stream ends with the entry, so buffering does not read the next one
+        BinaryRecordReader reader = new BinaryRecordReader(new BufferedInputStream(in, BUFFER));
+
+        // Output stream is shared with next entries, it must not be closed
+        RecordOutput output = new RecordOutput(out);
+        TextRecordEncoder encoder = new TextRecordEncoder(reader.getHeader());
+
+        encoder.start(output);
+        long lastProgress = 0;
+        while (reader.next()) {
+            if (reader.isNanoseconds()) {
+                encoder.writeNanos(output, reader.getElapsedTimeSystemNanos(),
+                        reader.getElapsedTimeSensorNanos(), reader.getValues());
+            } else {
+                encoder.write(output, reader.getElapsedTimeSystem(),
+                        reader.getElapsedTimeSensor(), reader.getValues());
+            }
+            if (counter.mCount - lastProgress >= BUFFER) {
+                publishProgress(lastProgress = counter.mCount);
+            }
+        }
+        encoder.finish(output);
+        output.flush();
+    }
+
+    @Override
+    protected void onProgressUpdate(Long... values) {
+        super.onProgressUpdate(values);
+        if (mListener != null && values.length == 1) {
+            mListener.onProgress(values[0]);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(File outputFile) {
+        super.onPostExecute(outputFile);
+        if (mListener != null) {
+            mListener.onExportFinished(outputFile);
+        }
+    }
+
+
+    private Listener mListener;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public interface Listener {
+        void onExportFinished(File outputFile);
+
+        void onProgress(Long currentSize);
+    }
+
+
+    /**
+     * Count compressed bytes read from the source file, for progress
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) mCount++;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) mCount += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long count = super.skip(n);
+            mCount += count;
+            return count;
+        }
+    }
+}
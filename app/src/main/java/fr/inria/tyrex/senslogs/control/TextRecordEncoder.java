@@ -0,0 +1,222 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Space separated values, one record per line, after a human readable header.
+ * Numbers are written by {@link AsciiEncoder} straight in the output buffer.
+ */
+class TextRecordEncoder implements RecordEncoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int TIMESTAMP_DECIMALS = 3;
+
+    // Two timestamps, spaces and end of line
+    private static final int MAX_TIMESTAMPS_LENGTH = 2 * (AsciiEncoder.MAX_FIXED_LENGTH + 1) + 1;
+
+    private final String mHeader;
+
+    private String[] mStrings = new String[0];
+
+    TextRecordEncoder(String header) {
+        mHeader = header;
+    }
+
+    @Override
+    public void start(RecordOutput output) throws IOException {
+        byte[] bytes = mHeader.getBytes(UTF_8);
+        output.reserve(bytes.length).put(bytes);
+    }
+
+    @Override
+    public void write(RecordOutput output, double elapsedTimeSystem, Double elapsedTimeSensor,
+                      Object[] values) throws IOException {
+
+        ByteBuffer buffer = output.reserve(MAX_TIMESTAMPS_LENGTH + prepareObjects(values));
+        byte[] dst = buffer.array();
+        int offset = buffer.arrayOffset() + buffer.position();
+
+        offset = AsciiEncoder.putFixed(dst, offset, elapsedTimeSystem, TIMESTAMP_DECIMALS);
+        if (elapsedTimeSensor != null) {
+            dst[offset++] = ' ';
+            offset = AsciiEncoder.putFixed(dst, offset, elapsedTimeSensor, TIMESTAMP_DECIMALS);
+        }
+        offset = putObjects(dst, offset, values);
+        dst[offset++] = '\n';
+
+        buffer.position(offset - buffer.arrayOffset());
+    }
+
+    /**
+     * Record of a binary file with times in nanoseconds, see {@link TextExportTask}. Sensors
+     * give times in nanoseconds only with float values.
+     */
+    void writeNanos(RecordOutput output, long elapsedTimeSystem, long elapsedTimeSensor,
+                    Object[] values) throws IOException {
+
+        ByteBuffer buffer = output.reserve(MAX_TIMESTAMPS_LENGTH + prepareObjects(values));
+        byte[] dst = buffer.array();
+        int offset = putTimestamps(dst, buffer.arrayOffset() + buffer.position(),
+                elapsedTimeSystem, elapsedTimeSensor);
+        offset = putObjects(dst, offset, values);
+        dst[offset++] = '\n';
+        buffer.position(offset - buffer.arrayOffset());
+    }
+
+    @Override
+    public void writeNanos(RecordOutput output, long elapsedTimeSystem, long elapsedTimeSensor,
+                           float[] values, int length) throws IOException {
+
+        ByteBuffer buffer = output.reserve(MAX_TIMESTAMPS_LENGTH +
+                length * (1 + AsciiEncoder.MAX_NUMBER_LENGTH));
+        byte[] dst = buffer.array();
+        int offset = putTimestamps(dst, buffer.arrayOffset() + buffer.position(),
+                elapsedTimeSystem, elapsedTimeSensor);
+        for (int i = 0; i < length; i++) {
+            dst[offset++] = ' ';
+            offset = AsciiEncoder.putFloat(dst, offset, values[i]);
+        }
+        dst[offset++] = '\n';
+        buffer.position(offset - buffer.arrayOffset());
+    }
+
+    @Override
+    public void write(RecordOutput output, double elapsedTimeSystem, double elapsedTimeSensor,
+                      float[] values, int length) throws IOException {
+
+        ByteBuffer buffer = output.reserve(MAX_TIMESTAMPS_LENGTH +
+                length * (1 + AsciiEncoder.MAX_NUMBER_LENGTH));
+        byte[] dst = buffer.array();
+        int offset = putTimestamps(dst, buffer.arrayOffset() + buffer.position(),
+                elapsedTimeSystem, elapsedTimeSensor);
+        for (int i = 0; i < length; i++) {
+            dst[offset++] = ' ';
+            offset = AsciiEncoder.putFloat(dst, offset, values[i]);
+        }
+        dst[offset++] = '\n';
+        buffer.position(offset - buffer.arrayOffset());
+    }
+
+    @Override
+    public void write(RecordOutput output, double elapsedTimeSystem, double elapsedTimeSensor,
+                      double[] values, int length) throws IOException {
+
+        ByteBuffer buffer = output.reserve(MAX_TIMESTAMPS_LENGTH +
+                length * (1 + AsciiEncoder.MAX_NUMBER_LENGTH));
+        byte[] dst = buffer.array();
+        int offset = putTimestamps(dst, buffer.arrayOffset() + buffer.position(),
+                elapsedTimeSystem, elapsedTimeSensor);
+        for (int i = 0; i < length; i++) {
+            dst[offset++] = ' ';
+            offset = AsciiEncoder.putDouble(dst, offset, values[i]);
+        }
+        dst[offset++] = '\n';
+        buffer.position(offset - buffer.arrayOffset());
+    }
+
+    @Override
+    public void write(RecordOutput output, double elapsedTimeSystem, double elapsedTimeSensor,
+                      long[] values, int length) throws IOException {
+
+        ByteBuffer buffer = output.reserve(MAX_TIMESTAMPS_LENGTH +
+                length * (1 + AsciiEncoder.MAX_NUMBER_LENGTH));
+        byte[] dst = buffer.array();
+        int offset = putTimestamps(dst, buffer.arrayOffset() + buffer.position(),
+                elapsedTimeSystem, elapsedTimeSensor);
+        for (int i = 0; i < length; i++) {
+            dst[offset++] = ' ';
+            offset = AsciiEncoder.putLong(dst, offset, values[i]);
+        }
+        dst[offset++] = '\n';
+        buffer.position(offset - buffer.arrayOffset());
+    }
+
+    @Override
+    public void finish(RecordOutput output) {
+    }
+
+    @Override
+    public long getMismatchedValues() {
+        // Values are written as they are
+        return 0;
+    }
+
+
+    private static int putTimestamps(byte[] dst, int offset, double elapsedTimeSystem,
+                                     double elapsedTimeSensor) {
+        offset = AsciiEncoder.putFixed(dst, offset, elapsedTimeSystem, TIMESTAMP_DECIMALS);
+        dst[offset++] = ' ';
+        return AsciiEncoder.putFixed(dst, offset, elapsedTimeSensor, TIMESTAMP_DECIMALS);
+    }
+
+    private static int putTimestamps(byte[] dst, int offset, long elapsedTimeSystem,
+                                     long elapsedTimeSensor) {
+        offset = AsciiEncoder.putLong(dst, offset, elapsedTimeSystem);
+        dst[offset++] = ' ';
+        return AsciiEncoder.putLong(dst, offset, elapsedTimeSensor);
+    }
+
+    /**
+     * Convert non numbers values to strings
+     *
+     * @return maximum length of values once written, separators included
+     */
+    private int prepareObjects(Object[] values) {
+
+        if (mStrings.length < values.length) {
+            mStrings = new String[values.length];
+        }
+
+        int length = 0;
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            if (isNumber(value)) {
+                length += 1 + AsciiEncoder.MAX_NUMBER_LENGTH;
+            } else {
+                mStrings[i] = value.toString();
+                // At most 3 bytes per UTF-16 unit
+                length += 1 + 3 * mStrings[i].length();
+            }
+        }
+        return length;
+    }
+
+    private int putObjects(byte[] dst, int offset, Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            dst[offset++] = ' ';
+            if (value instanceof Float) {
+                offset = AsciiEncoder.putFloat(dst, offset, (Float) value);
+            } else if (value instanceof Double) {
+                offset = AsciiEncoder.putDouble(dst, offset, (Double) value);
+            } else if (isNumber(value)) {
+                offset = AsciiEncoder.putLong(dst, offset, ((Number) value).longValue());
+            } else {
+                offset = putString(dst, offset, mStrings[i]);
+                mStrings[i] = null;
+            }
+        }
+        return offset;
+    }
+
+    private static boolean isNumber(Object value) {
+        return value instanceof Float || value instanceof Double || value instanceof Integer ||
+                value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+
+    private static int putString(byte[] dst, int offset, String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) >= 0x80) {
+                return AsciiEncoder.put(dst, offset, text.getBytes(UTF_8));
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = (byte) text.charAt(i);
+        }
+        return offset + length;
+    }
+}
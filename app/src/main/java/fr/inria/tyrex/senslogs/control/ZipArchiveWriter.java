@@ -0,0 +1,396 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Write a zip archive entry by entry, with entries which can already be compressed. Unlike
+ * {@link java.util.zip.ZipOutputStream}, raw deflate data produced during the record are copied
+ * as they are, without being inflated and deflated again.
+ * <p>
+ * Zip64 records are added when sizes, offsets or the number of entries do not fit in the
+ * standard records.
+ */
+class ZipArchiveWriter {
+
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final short ZIP64_EXTRA_ID = 0x0001;
+
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    static class Entry {
+        byte[] name;
+        int method;
+        long crc;
+        long compressedSize;
+        long size;
+        long offset;
+        boolean zip64;
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final int mDosTime;
+    private final int mDosDate;
+    private final ByteBuffer mHeader = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+
+    private long mPosition;
+
+    ZipArchiveWriter(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+
+        Calendar calendar = Calendar.getInstance();
+        mDosTime = calendar.get(Calendar.HOUR_OF_DAY) << 11 | calendar.get(Calendar.MINUTE) << 5 |
+                calendar.get(Calendar.SECOND) >> 1;
+        mDosDate = (calendar.get(Calendar.YEAR) - 1980) << 9 |
+                (calendar.get(Calendar.MONTH) + 1) << 5 | calendar.get(Calendar.DAY_OF_MONTH);
+    }
+
+    /**
+     * @return number of bytes written in the archive
+     */
+    long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Add an entry whose data are already compressed, they are copied from the file
+     *
+     * @param data   raw data of the entry, deflated without zlib wrapper or stored
+     * @param method {@link #METHOD_DEFLATED} or {@link #METHOD_STORED}
+     * @param crc    CRC-32 of uncompressed data
+     * @param size   size of uncompressed data
+     */
+    void addCompressedEntry(String name, File data, int method, long crc, long size)
+            throws IOException {
+        addCompressedEntry(name, Collections.singletonList(data), method, crc, size);
+    }
+
+    /**
+     * Add an entry whose data are already compressed and split in several files, they are
+     * copied one after the other
+     *
+     * @param data parts of raw data of the entry. Deflated parts end with a sync flush, the last
+     *             one with the final block.
+     */
+    void addCompressedEntry(String name, List<File> data, int method, long crc, long size)
+            throws IOException {
+
+        Entry entry = createEntry(name, method);
+        entry.crc = crc;
+        entry.size = size;
+        for (File part : data) {
+            entry.compressedSize += part.length();
+        }
+        entry.zip64 = entry.size >= MAX_32 || entry.compressedSize >= MAX_32;
+
+        startEntry(entry);
+        writeLocalHeader(entry);
+
+        for (File part : data) {
+            long length = part.length();
+            FileInputStream input = new FileInputStream(part);
+            try {
+                FileChannel source = input.getChannel();
+                long position = 0;
+                while (position < length) {
+                    long count = source.transferTo(position, length - position,
+                            mChannel.position(mPosition));
+                    if (count <= 0) throw new IOException("Cannot copy " + part);
+                    position += count;
+                    mPosition += count;
+                }
+            } finally {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Add an entry from a file, compressed now
+     *
+     * @param level deflate level, or {@link Deflater#NO_COMPRESSION} to store the file
+     */
+    void addFile(String name, File file, int level) throws IOException {
+
+        boolean stored = level == Deflater.NO_COMPRESSION;
+        Entry entry = newEntry(name, stored ? METHOD_STORED : METHOD_DEFLATED, file.length());
+        startEntry(entry);
+
+        CRC32 crc = new CRC32();
+        byte[] input = new byte[COPY_BUFFER];
+        byte[] output = new byte[COPY_BUFFER];
+        Deflater deflater = stored ? null : new Deflater(level, true);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int count;
+            while ((count = in.read(input)) != -1) {
+                crc.update(input, 0, count);
+                if (stored) {
+                    write(input, 0, count);
+                } else {
+                    deflater.setInput(input, 0, count);
+                    while (!deflater.needsInput()) {
+                        write(output, 0, deflater.deflate(output));
+                    }
+                }
+            }
+            if (!stored) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    write(output, 0, deflater.deflate(output));
+                }
+            }
+        } finally {
+            in.close();
+            if (deflater != null) deflater.end();
+        }
+
+        endEntry(entry, crc.getValue(), file.length());
+    }
+
+    /**
+     * Create an entry whose data will be given with {@link #write(byte[], int, int)}, between
+     * {@link #startEntry(Entry)} and {@link #endEntry(Entry, long, long)}
+     *
+     * @param length expected size of uncompressed data, to reserve Zip64 fields
+     */
+    Entry newEntry(String name, int method, long length) {
+
+        Entry entry = createEntry(name, method);
+        // Deflated data can be a bit larger than the file
+        entry.zip64 = length >= MAX_32 - MAX_32 / 100;
+        return entry;
+    }
+
+    /**
+     * Reserve the local header of an entry at the current position, it is written when sizes
+     * are known
+     */
+    void startEntry(Entry entry) {
+        entry.offset = mPosition;
+        mEntries.add(entry);
+        mPosition += localHeaderLength(entry);
+    }
+
+    /**
+     * Write the local header of an entry with sizes and CRC of its data
+     */
+    void endEntry(Entry entry, long crc, long size) throws IOException {
+
+        entry.crc = crc;
+        entry.size = size;
+        entry.compressedSize = mPosition - entry.offset - localHeaderLength(entry);
+        if (!entry.zip64 && (entry.size >= MAX_32 || entry.compressedSize >= MAX_32)) {
+            throw new IOException("Entry " + new String(entry.name, UTF_8) +
+                    " is larger than expected");
+        }
+        writeLocalHeader(entry);
+    }
+
+    /**
+     * Write data of the current entry
+     */
+    void write(byte[] bytes, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        while (buffer.hasRemaining()) {
+            mPosition += mChannel.write(buffer, mPosition);
+        }
+    }
+
+    /**
+     * Write the central directory and close the file
+     */
+    void finish() throws IOException {
+
+        long centralOffset = mPosition;
+        for (Entry entry : mEntries) {
+            writeCentralHeader(entry);
+        }
+        long centralSize = mPosition - centralOffset;
+
+        boolean zip64 = mEntries.size() >= MAX_16 || centralOffset >= MAX_32 ||
+                centralSize >= MAX_32;
+
+        if (zip64) {
+            long zip64EndOffset = mPosition;
+            ByteBuffer buffer = header();
+            buffer.putInt(ZIP64_END_SIGNATURE);
+            buffer.putLong(44);
+            buffer.putShort((short) VERSION_ZIP64);
+            buffer.putShort((short) VERSION_ZIP64);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putLong(mEntries.size());
+            buffer.putLong(mEntries.size());
+            buffer.putLong(centralSize);
+            buffer.putLong(centralOffset);
+            buffer.putInt(ZIP64_LOCATOR_SIGNATURE);
+            buffer.putInt(0);
+            buffer.putLong(zip64EndOffset);
+            buffer.putInt(1);
+            writeHeader(buffer);
+        }
+
+        ByteBuffer buffer = header();
+        buffer.putInt(END_SIGNATURE);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) Math.min(mEntries.size(), MAX_16));
+        buffer.putShort((short) Math.min(mEntries.size(), MAX_16));
+        buffer.putInt((int) Math.min(centralSize, MAX_32));
+        buffer.putInt((int) Math.min(centralOffset, MAX_32));
+        buffer.putShort((short) 0);
+        writeHeader(buffer);
+
+        mChannel.truncate(mPosition);
+        mChannel.close();
+        mFile.close();
+    }
+
+    /**
+     * Close the file without central directory, the archive is not valid
+     */
+    void abort() {
+        try {
+            mChannel.close();
+            mFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    private Entry createEntry(String name, int method) {
+        Entry entry = new Entry();
+        entry.name = name.getBytes(UTF_8);
+        entry.method = method;
+        return entry;
+    }
+
+    private static int localHeaderLength(Entry entry) {
+        return 30 + entry.name.length + (entry.zip64 ? 20 : 0);
+    }
+
+    /**
+     * Write the local header at the offset of the entry, without moving the current position
+     */
+    private void writeLocalHeader(Entry entry) throws IOException {
+
+        ByteBuffer buffer = header(localHeaderLength(entry));
+        buffer.putInt(LOCAL_HEADER_SIGNATURE);
+        buffer.putShort((short) (entry.zip64 ? VERSION_ZIP64 : VERSION));
+        buffer.putShort((short) FLAG_UTF8);
+        buffer.putShort((short) entry.method);
+        buffer.putShort((short) mDosTime);
+        buffer.putShort((short) mDosDate);
+        buffer.putInt((int) entry.crc);
+        buffer.putInt((int) (entry.zip64 ? MAX_32 : entry.compressedSize));
+        buffer.putInt((int) (entry.zip64 ? MAX_32 : entry.size));
+        buffer.putShort((short) entry.name.length);
+        buffer.putShort((short) (entry.zip64 ? 20 : 0));
+        buffer.put(entry.name);
+        if (entry.zip64) {
+            buffer.putShort(ZIP64_EXTRA_ID);
+            buffer.putShort((short) 16);
+            buffer.putLong(entry.size);
+            buffer.putLong(entry.compressedSize);
+        }
+        buffer.flip();
+        long position = entry.offset;
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    private void writeCentralHeader(Entry entry) throws IOException {
+
+        boolean zip64Size = entry.size >= MAX_32 || entry.compressedSize >= MAX_32 ||
+                entry.zip64;
+        boolean zip64Offset = entry.offset >= MAX_32;
+        int extraLength = zip64Size || zip64Offset ?
+                4 + (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0) : 0;
+
+        ByteBuffer buffer = header(46 + entry.name.length + extraLength);
+        buffer.putInt(CENTRAL_HEADER_SIGNATURE);
+        buffer.putShort((short) (extraLength > 0 ? VERSION_ZIP64 : VERSION));
+        buffer.putShort((short) (extraLength > 0 ? VERSION_ZIP64 : VERSION));
+        buffer.putShort((short) FLAG_UTF8);
+        buffer.putShort((short) entry.method);
+        buffer.putShort((short) mDosTime);
+        buffer.putShort((short) mDosDate);
+        buffer.putInt((int) entry.crc);
+        buffer.putInt((int) (zip64Size ? MAX_32 : entry.compressedSize));
+        buffer.putInt((int) (zip64Size ? MAX_32 : entry.size));
+        buffer.putShort((short) entry.name.length);
+        buffer.putShort((short) extraLength);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putInt(0);
+        buffer.putInt((int) (zip64Offset ? MAX_32 : entry.offset));
+        buffer.put(entry.name);
+        if (extraLength > 0) {
+            buffer.putShort(ZIP64_EXTRA_ID);
+            buffer.putShort((short) (extraLength - 4));
+            if (zip64Size) {
+                buffer.putLong(entry.size);
+                buffer.putLong(entry.compressedSize);
+            }
+            if (zip64Offset) {
+                buffer.putLong(entry.offset);
+            }
+        }
+        writeHeader(buffer);
+    }
+
+    private ByteBuffer header() {
+        mHeader.clear();
+        return mHeader;
+    }
+
+    private ByteBuffer header(int length) {
+        if (length > mHeader.capacity()) {
+            return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return header();
+    }
+
+    private void writeHeader(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            mPosition += mChannel.write(buffer, mPosition);
+        }
+    }
+}
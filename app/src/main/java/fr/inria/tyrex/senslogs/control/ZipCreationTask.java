@@ -2,36 +2,88 @@ package fr.inria.tyrex.senslogs.control;
 
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.SystemClock;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
- * Creation of log files asynchronously and put it on a zip
+ * Creation of log files asynchronously and put it on a zip. Files are deflated on all cores by
+ * {@link ParallelDeflater}.
  */
 public class ZipCreationTask extends AsyncTask<ZipCreationTask.Params,
         ZipCreationTask.Progress, File> {
 
-    private static final int BUFFER = 2048;
+    private static final long PROGRESS_INTERVAL_MS = 100;
+    private static final float PROGRESS_STEP = 0.01f;
 
     public static class Params {
         public Collection<File> inputFiles;
+        public Collection<CompressedEntry> compressedEntries;
+        public CompressionPolicy compressionPolicy;
         public File outputFile;
 
         public Params(File outputFile, Collection<File> inputFiles) {
+            this(outputFile, inputFiles, Collections.<CompressedEntry>emptyList(),
+                    new CompressionPolicy());
+        }
+
+        public Params(File outputFile, Collection<File> inputFiles,
+                      Collection<CompressedEntry> compressedEntries,
+                      CompressionPolicy compressionPolicy) {
             this.inputFiles = inputFiles;
+            this.compressedEntries = compressedEntries;
+            this.compressionPolicy = compressionPolicy;
             this.outputFile = outputFile;
         }
     }
 
+    /**
+     * File already deflated (raw deflate), copied in the zip file without compressing it again.
+     * Data can be split in several files, which are copied one after the other.
+     */
+    public static class CompressedEntry {
+        public String name;
+        public List<File> files;
+        public boolean deflated;
+        public long crc;
+        public long size;
+
+        public CompressedEntry(String name, File file, long crc, long size) {
+            this(name, Collections.singletonList(file), true, crc, size);
+        }
+
+        /**
+         * @param deflated false if data are stored as they are
+         */
+        public CompressedEntry(String name, List<File> files, boolean deflated, long crc,
+                               long size) {
+            this.name = name;
+            this.files = files;
+            this.deflated = deflated;
+            this.crc = crc;
+            this.size = size;
+        }
+
+        long getLength() {
+            long length = 0;
+            for (File file : files) {
+                length += file.length();
+            }
+            return length;
+        }
+    }
+
+    private long mTotalFilesSize;
+    private long mCurrentFilesRead;
+    private long mLastProgressTime;
+    private float mLastProgress;
+
     public static class Progress {
         public File currentFile;
         public float totalProgress;
@@ -51,43 +103,70 @@ public class ZipCreationTask extends AsyncTask<ZipCreationTask.Params,
 
         File outputFile = params[0].outputFile;
         Collection<File> inputFiles = params[0].inputFiles;
+        Collection<CompressedEntry> compressedEntries = params[0].compressedEntries;
+        CompressionPolicy policy = params[0].compressionPolicy;
 
-        long totalFilesSize = 0l;
+        mTotalFilesSize = 0L;
         for (File file : inputFiles) {
-            totalFilesSize += file.length();
+            mTotalFilesSize += file.length();
+        }
+        for (CompressedEntry entry : compressedEntries) {
+            mTotalFilesSize += entry.getLength();
         }
+        mCurrentFilesRead = 0L;
+        mLastProgressTime = 0L;
+        mLastProgress = -1f;
 
-        long currentFilesRead = 0l;
         try {
-            BufferedInputStream origin;
-            FileOutputStream dest = new FileOutputStream(outputFile);
-
-            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
-
-            byte data[] = new byte[BUFFER];
-
-            for (File file : inputFiles) {
-                FileInputStream fi = new FileInputStream(file);
-                origin = new BufferedInputStream(fi, BUFFER);
-                ZipEntry entry = new ZipEntry(file.getName());
-                out.putNextEntry(entry);
-                int count;
-                while ((count = origin.read(data, 0, BUFFER)) != -1) {
-                    out.write(data, 0, count);
-                    currentFilesRead += count;
-                    publishProgress(new Progress(file, (float) currentFilesRead / totalFilesSize));
+            ZipArchiveWriter writer = new ZipArchiveWriter(outputFile);
+            ParallelDeflater deflater = null;
+            try {
+                for (CompressedEntry entry : compressedEntries) {
+                    int method = entry.deflated ?
+                            ZipArchiveWriter.METHOD_DEFLATED : ZipArchiveWriter.METHOD_STORED;
+                    writer.addCompressedEntry(entry.name, entry.files, method, entry.crc,
+                            entry.size);
+                    onFileRead(entry.files.get(entry.files.size() - 1), entry.getLength());
                 }
-                origin.close();
-            }
 
-            out.close();
-        } catch (Exception e) {
+                deflater = new ParallelDeflater(writer, this::onFileRead);
+                for (File file : inputFiles) {
+                    deflater.addFile(file.getName(), file, policy.getLevel(file));
+                }
+                deflater.finish();
+                deflater = null;
+
+                writer.finish();
+            } catch (IOException e) {
+                if (deflater != null) deflater.close();
+                writer.abort();
+                throw e;
+            }
+        } catch (IOException e) {
             e.printStackTrace();
         }
 
         return outputFile;
     }
 
+    /**
+     * Progress is published at most every {@link #PROGRESS_INTERVAL_MS} and when it has changed of
+     * at least {@link #PROGRESS_STEP}
+     */
+    private void onFileRead(File file, long bytes) {
+
+        mCurrentFilesRead += bytes;
+        float progress = mTotalFilesSize == 0 ? 1f : (float) mCurrentFilesRead / mTotalFilesSize;
+
+        long now = SystemClock.elapsedRealtime();
+        if (progress - mLastProgress < PROGRESS_STEP ||
+                now - mLastProgressTime < PROGRESS_INTERVAL_MS) {
+            return;
+        }
+        mLastProgress = progress;
+        mLastProgressTime = now;
+        publishProgress(new Progress(file, progress));
+    }
 
     @Override
     protected void onProgressUpdate(final Progress... values) {
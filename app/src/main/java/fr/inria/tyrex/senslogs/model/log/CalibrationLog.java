@@ -7,6 +7,7 @@ import androidx.annotation.NonNull;
 import org.ini4j.Wini;
 
 import java.io.File;
+import java.util.List;
 import java.util.Set;
 
 import fr.inria.tyrex.senslogs.model.WritableObject;
@@ -32,8 +33,9 @@ public class CalibrationLog extends Log {
 
     @Override
     public Wini generateIniFile(Context context, File file,
-                                Set<WritableObject> writableObjects) {
-        Wini wini = super.generateIniFile(context, file, writableObjects);
+                                Set<WritableObject> writableObjects,
+                                List<IniRecord> recorderRecords) {
+        Wini wini = super.generateIniFile(context, file, writableObjects, recorderRecords);
         wini.put("Settings", "Calibration", mCalibrationType);
         return wini;
     }
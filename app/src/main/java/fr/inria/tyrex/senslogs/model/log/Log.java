@@ -5,6 +5,14 @@ import android.os.Build;
 import android.os.SystemClock;
 import android.provider.Settings;
 
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
 import org.ini4j.Wini;
 
 import java.io.File;
@@ -20,6 +28,7 @@ import java.util.UUID;
 
 import fr.inria.tyrex.senslogs.control.ZipCreationTask;
 import fr.inria.tyrex.senslogs.model.WritableObject;
+import fr.inria.tyrex.senslogs.model.preferences.RecorderSettings;
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
 
 /**
@@ -40,6 +49,8 @@ public class Log implements Serializable {
 
     private HashSet<Sensor> mSensors;
 
+    private RecorderSettings mRecorderSettings;
+
     private String mUser;
     private String mPositionOrientation;
     private String mComment;
@@ -69,6 +80,9 @@ public class Log implements Serializable {
         }
 
         mRecordTimes.init();
+        if (mRecorderSettings != null) {
+            mRecordTimes.timestampMode = mRecorderSettings.timestampMode;
+        }
 
     }
 
@@ -109,6 +123,10 @@ public class Log implements Serializable {
         }
     }
 
+    public void setRecorderSettings(RecorderSettings recorderSettings) {
+        mRecorderSettings = recorderSettings;
+    }
+
     public void setUser(String user) {
         mUser = user;
     }
@@ -150,6 +168,10 @@ public class Log implements Serializable {
         return mSensors;
     }
 
+    public RecorderSettings getRecorderSettings() {
+        return mRecorderSettings;
+    }
+
     public ZipCreationTask getCreationTask() {
         return mZipCreationTask;
     }
@@ -198,6 +220,7 @@ public class Log implements Serializable {
                 ", mUncompressedSize=" + mUncompressedSize +
                 ", mRecordTimes=" + mRecordTimes +
                 ", mSensors=" + mSensors +
+                ", mRecorderSettings=" + mRecorderSettings +
                 ", mUser='" + mUser + '\'' +
                 ", mPositionOrientation='" + mPositionOrientation + '\'' +
                 ", mComment='" + mComment + '\'' +
@@ -206,7 +229,8 @@ public class Log implements Serializable {
                 '}';
     }
 
-    public Wini generateIniFile(Context context, File file, Set<WritableObject> writableObjects) {
+    public Wini generateIniFile(Context context, File file, Set<WritableObject> writableObjects,
+                                List<IniRecord> recorderRecords) {
 
         Wini ini;
         try {
@@ -228,10 +252,35 @@ public class Log implements Serializable {
         ini.put("Settings", "PositionOrientation", mPositionOrientation);
         ini.put("Settings", "Comment", mComment);
 
+        if (mRecorderSettings != null) {
+            ini.put("Recorder", "Format", mRecorderSettings.format);
+            ini.put("Recorder", "OverflowPolicy", mRecorderSettings.overflowPolicy);
+            ini.put("Recorder", "BufferCapacity", mRecorderSettings.bufferCapacity);
+            ini.put("Recorder", "TimestampMode", mRecorderSettings.timestampMode);
+            ini.put("Recorder", "WriterSharding", mRecorderSettings.writerSharding);
+            ini.put("Recorder", "ArchiveMode", mRecorderSettings.archiveMode);
+            ini.put("Recorder", "Compression", mRecorderSettings.getSensorsCompression());
+            ini.put("Recorder", "SegmentSizeMb", mRecorderSettings.segmentSizeMb);
+            ini.put("Recorder", "SegmentDurationMin", mRecorderSettings.segmentDurationMin);
+            ini.put("Recorder", "Durability", mRecorderSettings.durability);
+            if (mRecorderSettings.durability == RecorderSettings.Durability.PERIODIC) {
+                ini.put("Recorder", "SyncPeriodMs", mRecorderSettings.syncPeriodMs);
+                ini.put("Recorder", "SyncSizeKb", mRecorderSettings.syncSizeKb);
+            }
+        }
+        for (IniRecord record : recorderRecords) {
+            ini.put(record.sectionName, record.optionName, record.value);
+        }
+
         ini.put("Time", "StartTime", String.format(Locale.US, "%.3f", mRecordTimes.startTime));
         ini.put("Time", "EndTime", String.format(Locale.US, "%.3f", mRecordTimes.endTime));
         ini.put("Time", "BootTime", String.format(Locale.US, "%.3f", mRecordTimes.bootTime));
         ini.put("Time", "MonotonicAtStart", String.format(Locale.US, "%.3f", mRecordTimes.monotonicAtStart));
+        if (mRecordTimes.timestampMode == RecorderSettings.TimestampMode.NANOSECONDS) {
+            ini.put("Time", "StartTimeNanos", mRecordTimes.startTimeNanos);
+            ini.put("Time", "ElapsedRealtimeAtStartNanos", mRecordTimes.elapsedRealtimeAtStartNanos);
+            ini.put("Time", "MonotonicAtStartNanos", mRecordTimes.monotonicAtStartNanos);
+        }
 
         String sensorsList = "";
         for (WritableObject writableObject : writableObjects) {
@@ -264,10 +313,195 @@ public class Log implements Serializable {
         public double bootTime; // in seconds from unix time
         public double monotonicAtStart; // in seconds
 
+        // References of sensors and system clocks for timestamps in nanoseconds
+        public RecorderSettings.TimestampMode timestampMode = RecorderSettings.TimestampMode.SECONDS;
+        public long startTimeNanos; // in nanoseconds from unix time, with ms precision
+        public long elapsedRealtimeAtStartNanos; // in nanoseconds from boot
+        public long monotonicAtStartNanos; // in nanoseconds
+
         public void init() {
-            startTime = System.currentTimeMillis() / 1e3d;
-            monotonicAtStart = System.nanoTime() / 1e9d;
-            bootTime = (System.currentTimeMillis() - SystemClock.elapsedRealtime()) / 1e3d;
+            long currentTimeMillis = System.currentTimeMillis();
+            long elapsedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+            long monotonicNanos = System.nanoTime();
+
+            startTime = currentTimeMillis / 1e3d;
+            monotonicAtStart = monotonicNanos / 1e9d;
+            bootTime = (currentTimeMillis - elapsedRealtimeNanos / 1_000_000) / 1e3d;
+
+            startTimeNanos = currentTimeMillis * 1_000_000;
+            elapsedRealtimeAtStartNanos = elapsedRealtimeNanos;
+            monotonicAtStartNanos = monotonicNanos;
+        }
+    }
+
+    /**
+     * Logs are read and written token by token, with the names of fields that reflection gave
+     * to previous versions. Sensors, files and recorder settings use the adapters of the Gson
+     * instance.
+     */
+    public static class LogTypeAdapterFactory implements TypeAdapterFactory {
+
+        @Override
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (!Log.class.isAssignableFrom(type.getRawType())) {
+                return null;
+            }
+
+            final TypeAdapter<Sensor> sensorAdapter = gson.getAdapter(Sensor.class);
+            final TypeAdapter<File> fileAdapter = gson.getAdapter(File.class);
+            final TypeAdapter<RecorderSettings> settingsAdapter =
+                    gson.getAdapter(RecorderSettings.class);
+            final TypeAdapter<RecorderSettings.TimestampMode> timestampModeAdapter =
+                    gson.getAdapter(RecorderSettings.TimestampMode.class);
+
+            TypeAdapter<Log> result = new TypeAdapter<Log>() {
+                @Override
+                public void write(JsonWriter out, Log log) throws IOException {
+                    out.beginObject();
+                    out.name("mName").value(log.mName);
+                    out.name("mTemporaryFolder");
+                    fileAdapter.write(out, log.mTemporaryFolder);
+                    out.name("mZipFile");
+                    fileAdapter.write(out, log.mZipFile);
+                    out.name("mCompressedSize").value(log.mCompressedSize);
+                    out.name("mUncompressedSize").value(log.mUncompressedSize);
+                    if (log.mRecordTimes != null) {
+                        out.name("mRecordTimes");
+                        writeRecordTimes(out, log.mRecordTimes);
+                    }
+                    if (log.mSensors != null) {
+                        out.name("mSensors");
+                        out.beginArray();
+                        for (Sensor sensor : log.mSensors) {
+                            sensorAdapter.write(out, sensor);
+                        }
+                        out.endArray();
+                    }
+                    out.name("mRecorderSettings");
+                    settingsAdapter.write(out, log.mRecorderSettings);
+                    out.name("mUser").value(log.mUser);
+                    out.name("mPositionOrientation").value(log.mPositionOrientation);
+                    out.name("mComment").value(log.mComment);
+                    out.endObject();
+                }
+
+                private void writeRecordTimes(JsonWriter out, RecordTimes times)
+                        throws IOException {
+                    out.beginObject();
+                    out.name("startTime").value(times.startTime);
+                    out.name("endTime").value(times.endTime);
+                    out.name("bootTime").value(times.bootTime);
+                    out.name("monotonicAtStart").value(times.monotonicAtStart);
+                    out.name("timestampMode");
+                    timestampModeAdapter.write(out, times.timestampMode);
+                    out.name("startTimeNanos").value(times.startTimeNanos);
+                    out.name("elapsedRealtimeAtStartNanos").value(times.elapsedRealtimeAtStartNanos);
+                    out.name("monotonicAtStartNanos").value(times.monotonicAtStartNanos);
+                    out.endObject();
+                }
+
+                @Override
+                public Log read(JsonReader in) throws IOException {
+                    Log log = new Log();
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        String name = in.nextName();
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            continue;
+                        }
+                        switch (name) {
+                            case "mName":
+                                log.mName = in.nextString();
+                                break;
+                            case "mTemporaryFolder":
+                                log.mTemporaryFolder = fileAdapter.read(in);
+                                break;
+                            case "mZipFile":
+                                log.mZipFile = fileAdapter.read(in);
+                                break;
+                            case "mCompressedSize":
+                                log.mCompressedSize = in.nextLong();
+                                break;
+                            case "mUncompressedSize":
+                                log.mUncompressedSize = in.nextLong();
+                                break;
+                            case "mRecordTimes":
+                                readRecordTimes(in, log.mRecordTimes);
+                                break;
+                            case "mSensors":
+                                in.beginArray();
+                                while (in.hasNext()) {
+                                    Sensor sensor = sensorAdapter.read(in);
+                                    // Sensor is not available anymore
+                                    if (sensor != null) log.mSensors.add(sensor);
+                                }
+                                in.endArray();
+                                break;
+                            case "mRecorderSettings":
+                                log.mRecorderSettings = settingsAdapter.read(in);
+                                break;
+                            case "mUser":
+                                log.mUser = in.nextString();
+                                break;
+                            case "mPositionOrientation":
+                                log.mPositionOrientation = in.nextString();
+                                break;
+                            case "mComment":
+                                log.mComment = in.nextString();
+                                break;
+                            default:
+                                in.skipValue();
+                        }
+                    }
+                    in.endObject();
+                    return log;
+                }
+
+                private void readRecordTimes(JsonReader in, RecordTimes times)
+                        throws IOException {
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        String name = in.nextName();
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            continue;
+                        }
+                        switch (name) {
+                            case "startTime":
+                                times.startTime = in.nextDouble();
+                                break;
+                            case "endTime":
+                                times.endTime = in.nextDouble();
+                                break;
+                            case "bootTime":
+                                times.bootTime = in.nextDouble();
+                                break;
+                            case "monotonicAtStart":
+                                times.monotonicAtStart = in.nextDouble();
+                                break;
+                            case "timestampMode":
+                                RecorderSettings.TimestampMode mode = timestampModeAdapter.read(in);
+                                if (mode != null) times.timestampMode = mode;
+                                break;
+                            case "startTimeNanos":
+                                times.startTimeNanos = in.nextLong();
+                                break;
+                            case "elapsedRealtimeAtStartNanos":
+                                times.elapsedRealtimeAtStartNanos = in.nextLong();
+                                break;
+                            case "monotonicAtStartNanos":
+                                times.monotonicAtStartNanos = in.nextLong();
+                                break;
+                            default:
+                                in.skipValue();
+                        }
+                    }
+                    in.endObject();
+                }
+            }.nullSafe();
+
+            return (TypeAdapter<T>) result;
         }
     }
 
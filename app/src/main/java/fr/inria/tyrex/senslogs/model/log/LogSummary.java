@@ -0,0 +1,57 @@
+package fr.inria.tyrex.senslogs.model.log;
+
+import java.io.File;
+
+/**
+ * Properties of a log which are shown in the list of logs, read from their own columns of the
+ * database without parsing the whole log. The log itself is loaded when it is opened.
+ */
+public class LogSummary {
+
+    public final File zipFile;
+    public final String name;
+    public final double startTime; // in seconds from unix time
+    public final long compressedSize;
+
+    public LogSummary(File zipFile, String name, double startTime, long compressedSize) {
+        this.zipFile = zipFile;
+        this.name = name;
+        this.startTime = startTime;
+        this.compressedSize = compressedSize;
+    }
+
+    /**
+     * Summaries are the same item if they have the same zip file, see {@link Log#equals(Object)}
+     */
+    public boolean isSameLog(LogSummary other) {
+        return zipFile.equals(other.zipFile);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        LogSummary that = (LogSummary) o;
+
+        return Double.compare(that.startTime, startTime) == 0 &&
+                compressedSize == that.compressedSize &&
+                zipFile.equals(that.zipFile) &&
+                (name != null ? name.equals(that.name) : that.name == null);
+    }
+
+    @Override
+    public int hashCode() {
+        return zipFile.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "LogSummary{" +
+                "zipFile=" + zipFile +
+                ", name='" + name + '\'' +
+                ", startTime=" + startTime +
+                ", compressedSize=" + compressedSize +
+                '}';
+    }
+}
@@ -1,21 +1,22 @@
 package fr.inria.tyrex.senslogs.model.preferences;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import java.io.File;
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -23,30 +24,70 @@ import java.util.Set;
 
 import fr.inria.tyrex.senslogs.control.SensorsManager;
 import fr.inria.tyrex.senslogs.model.log.Log;
+import fr.inria.tyrex.senslogs.model.log.LogSummary;
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
 
 /**
- * Interface to store data logs into a database (only the properties)
+ * Interface to store data logs into a database (only the properties). Each log is a row keyed
+ * by its zip file, with its JSON, so a change only writes one row. Properties shown in the list
+ * of logs have their own columns, so pages of {@link LogSummary} are read without parsing JSON.
  */
 public class LogsDataSource {
 
+    // Logs were stored in a string set of preferences before the database, they are moved once
     private final static String PREF_FILE = "Logs";
     private final static String KEY_LOGS_LIST = "logs-list";
 
-    private final SharedPreferences mPreferences;
+    private final static String DATABASE_NAME = "logs.db";
+    private final static int DATABASE_VERSION = 1;
+
+    private final static String TABLE_LOGS = "logs";
+    private final static String COLUMN_ZIP_FILE = "zip_file";
+    private final static String COLUMN_START_TIME = "start_time";
+    private final static String COLUMN_NAME = "name";
+    private final static String COLUMN_COMPRESSED_SIZE = "compressed_size";
+    private final static String COLUMN_JSON = "json";
+
+    private final Context mContext;
+    private final DatabaseHelper mHelper;
     private final Gson mGson;
 
-    private static class FileSerializer implements JsonDeserializer<File>,
-            JsonSerializer<File> {
+    // Opened on first use, see getDatabase()
+    private SQLiteDatabase mDatabase;
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
 
         @Override
-        public File deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            return new File(json.getAsString());
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_LOGS + " (" +
+                    COLUMN_ZIP_FILE + " TEXT PRIMARY KEY, " +
+                    COLUMN_START_TIME + " REAL, " +
+                    COLUMN_NAME + " TEXT, " +
+                    COLUMN_COMPRESSED_SIZE + " INTEGER, " +
+                    COLUMN_JSON + " TEXT NOT NULL)");
+            db.execSQL("CREATE INDEX " + TABLE_LOGS + "_" + COLUMN_START_TIME + " ON " +
+                    TABLE_LOGS + " (" + COLUMN_START_TIME + ")");
         }
 
         @Override
-        public JsonElement serialize(File src, Type typeOfSrc, JsonSerializationContext context) {
-            return new JsonPrimitive(src.getAbsolutePath());
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+
+    private static class FileSerializer extends TypeAdapter<File> {
+
+        @Override
+        public File read(JsonReader in) throws IOException {
+            return new File(in.nextString());
+        }
+
+        @Override
+        public void write(JsonWriter out, File src) throws IOException {
+            out.value(src.getAbsolutePath());
         }
     }
 
@@ -54,57 +95,176 @@ public class LogsDataSource {
     public LogsDataSource(Context context,
                           SensorsManager sensorsManager) {
 
-        mPreferences = context.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
         mGson = new GsonBuilder().
                 registerTypeAdapter(Sensor.class,
                         new Sensor.Serializer(sensorsManager.getAvailableSensors())).
-                registerTypeAdapter(File.class, new FileSerializer()).
+                registerTypeAdapter(File.class, new FileSerializer().nullSafe()).
+                registerTypeAdapterFactory(new Log.LogTypeAdapterFactory()).
                 create();
+
+        mContext = context.getApplicationContext();
+        mHelper = new DatabaseHelper(mContext);
+    }
+
+    /**
+     * Database is opened and logs of preferences are moved on first use, which should not be on
+     * the UI thread: it is first used in background when the application starts
+     */
+    private synchronized SQLiteDatabase getDatabase() {
+        if (mDatabase == null) {
+            mDatabase = mHelper.getWritableDatabase();
+            migratePreferences(mContext, mDatabase);
+        }
+        return mDatabase;
     }
 
 
     public void addLog(Log log) {
-        List<Log> logs = getLogs();
-        logs.add(log);
-        saveLogs(logs);
+        getDatabase().insertWithOnConflict(TABLE_LOGS, null, toValues(log),
+                SQLiteDatabase.CONFLICT_REPLACE);
     }
 
     public void updateLog(Log log) {
-        List<Log> logs = getLogs();
-        logs.remove(log);
-        logs.add(log);
-        saveLogs(logs);
+        ContentValues values = toValues(log);
+        if (getDatabase().update(TABLE_LOGS, values, COLUMN_ZIP_FILE + " = ?",
+                new String[]{getKey(log)}) == 0) {
+            getDatabase().insert(TABLE_LOGS, null, values);
+        }
     }
 
 
     public void deleteLog(Log log) {
-        List<Log> logs = getLogs();
-        logs.remove(log);
-        saveLogs(logs);
+        getDatabase().delete(TABLE_LOGS, COLUMN_ZIP_FILE + " = ?", new String[]{getKey(log)});
+    }
+
+    public int getLogsCount() {
+        return (int) DatabaseUtils.queryNumEntries(getDatabase(), TABLE_LOGS);
+    }
+
+    /**
+     * Can be called from a background thread
+     *
+     * @return at most {@code limit} summaries from {@code offset}, latest logs first
+     */
+    public List<LogSummary> getLogSummaries(int offset, int limit) {
+        List<LogSummary> summaries = new ArrayList<>();
+
+        Cursor cursor = getDatabase().query(TABLE_LOGS,
+                new String[]{COLUMN_ZIP_FILE, COLUMN_NAME, COLUMN_START_TIME,
+                        COLUMN_COMPRESSED_SIZE},
+                null, null, null, null, COLUMN_START_TIME + " DESC",
+                offset + ", " + limit);
+        try {
+            while (cursor.moveToNext()) {
+                summaries.add(new LogSummary(new File(cursor.getString(0)),
+                        cursor.getString(1), cursor.getDouble(2), cursor.getLong(3)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return summaries;
     }
 
-    private void saveLogs(List<Log> logs) {
-        Set<String> input = new HashSet<>();
-        for (Log log : logs) {
-            input.add(mGson.toJson(log));
+    /**
+     * @return log of the zip file, or null if there is none or it cannot be read
+     */
+    public Log getLog(File zipFile) {
+
+        Cursor cursor = getDatabase().query(TABLE_LOGS, new String[]{COLUMN_JSON},
+                COLUMN_ZIP_FILE + " = ?", new String[]{zipFile.getAbsolutePath()},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? fromJson(cursor.getString(0)) : null;
+        } finally {
+            cursor.close();
         }
-        mPreferences.edit().putStringSet(KEY_LOGS_LIST, input).apply();
     }
 
-    public List<Log> getLogs() {
-        List<Log> logs = new ArrayList<>();
+    public List<File> getZipFiles() {
+        List<File> zipFiles = new ArrayList<>();
 
-        Set<String> preferencesStrings = new HashSet<>(
-                mPreferences.getStringSet(KEY_LOGS_LIST, new HashSet<String>()));
+        Cursor cursor = getDatabase().query(TABLE_LOGS, new String[]{COLUMN_ZIP_FILE},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                zipFiles.add(new File(cursor.getString(0)));
+            }
+        } finally {
+            cursor.close();
+        }
 
-        for (String preferenceString : preferencesStrings) {
-            logs.add(mGson.fromJson(preferenceString, Log.class));
+        return zipFiles;
+    }
+
+    private ContentValues toValues(Log log) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ZIP_FILE, getKey(log));
+        values.put(COLUMN_START_TIME, log.getRecordTimes().startTime);
+        values.put(COLUMN_NAME, log.getName());
+        values.put(COLUMN_COMPRESSED_SIZE, log.getCompressedSize());
+        values.put(COLUMN_JSON, mGson.toJson(log));
+        return values;
+    }
+
+    /**
+     * Logs are equal if they have the same zip file, see {@link Log#equals(Object)}
+     */
+    private static String getKey(Log log) {
+        return log.getZipFile().getAbsolutePath();
+    }
+
+    /**
+     * Move logs of the preferences file used by previous versions in the database. Preferences
+     * are cleared only once the transaction is committed, so it can be done again if the process
+     * is killed.
+     */
+    private void migratePreferences(Context context, SQLiteDatabase database) {
+
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREF_FILE, Context.MODE_PRIVATE);
+        if (!preferences.contains(KEY_LOGS_LIST)) {
+            return;
         }
 
-        return logs;
+        Set<String> logsStrings = new HashSet<>(
+                preferences.getStringSet(KEY_LOGS_LIST, new HashSet<String>()));
+        database.beginTransaction();
+        try {
+            for (String logString : logsStrings) {
+                Log log = fromJson(logString);
+                if (log == null || log.getZipFile() == null) continue;
+                database.insertWithOnConflict(TABLE_LOGS, null, toValues(log),
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        preferences.edit().remove(KEY_LOGS_LIST).commit();
     }
 
-    public void removeAll() {
+    /**
+     * Serialize a log as it is stored in preferences
+     */
+    public String toJson(Log log) {
+        return mGson.toJson(log);
+    }
 
+    /**
+     * @return log serialized by {@link #toJson(Log)}, or null if it cannot be read
+     */
+    public Log fromJson(String json) {
+        try {
+            return mGson.fromJson(json, Log.class);
+        } catch (JsonParseException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public void removeAll() {
+        getDatabase().delete(TABLE_LOGS, null, null);
     }
 }
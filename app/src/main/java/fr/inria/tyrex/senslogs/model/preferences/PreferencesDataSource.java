@@ -2,12 +2,12 @@ package fr.inria.tyrex.senslogs.model.preferences;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
 import com.google.gson.TypeAdapter;
 import com.google.gson.TypeAdapterFactory;
 import com.google.gson.reflect.TypeToken;
@@ -29,18 +29,35 @@ import fr.inria.tyrex.senslogs.model.sensors.LocationSensor;
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
 
 /**
- * Interface to store sensors preferences into a database
+ * Interface to store sensors preferences into a database.
+ * <p>
+ * Preferences are loaded once and kept in memory, changes are written in background after
+ * {@link #SAVE_DELAY_MS}, so a batch of changes is saved in one commit. Methods are called from
+ * the UI thread.
  */
 public class PreferencesDataSource {
 
     private final static String PREF_FILE = "Sensors";
     private final static String KEY_PREF_LIST = "preferences-list";
     private final static String KEY_CATEGORY_LIST = "category-list";
+    private final static String KEY_RECORDER_SETTINGS = "recorder-settings";
+
+    private final static long SAVE_DELAY_MS = 500;
 
     private SharedPreferences mPreferences;
     private SensorsManager mSensorsManager;
     private final Gson mGson;
 
+    private List<Preference> mSensorsPreferences;
+    // Indexed by Sensor#getId()
+    private Preference[] mPreferencesById;
+    private Map<Sensor.Category, Boolean> mCategories;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mPreferencesChanged;
+    private boolean mCategoriesChanged;
+    private RecorderSettings mChangedRecorderSettings;
+
 
     public PreferencesDataSource(Context context, SensorsManager sensorsManager) {
 
@@ -54,84 +71,96 @@ public class PreferencesDataSource {
     }
 
 
+    /**
+     * @return preferences of all available sensors, they are the ones kept by this class
+     */
     public List<Preference> getPreferences() {
-        List<Preference> preferences = new ArrayList<>();
+        if (mSensorsPreferences == null) {
+            loadPreferences();
+        }
+        return mSensorsPreferences;
+    }
+
+    /**
+     * @return preference of an available sensor, or null if the sensor is not available
+     */
+    public Preference getPreference(Sensor sensor) {
+        if (mSensorsPreferences == null) {
+            loadPreferences();
+        }
+        int id = sensor.getId();
+        return id >= 0 && id < mPreferencesById.length ? mPreferencesById[id] : null;
+    }
+
+    private void loadPreferences() {
+
+        mSensorsPreferences = new ArrayList<>();
+        mPreferencesById = new Preference[mSensorsManager.getSensorsCount()];
 
         Set<String> preferencesStrings = new HashSet<>(
                 mPreferences.getStringSet(KEY_PREF_LIST, new HashSet<>()));
 
         for (String preferenceString : preferencesStrings) {
             Preference res = mGson.fromJson(preferenceString, Preference.class);
-            if (res != null) preferences.add(res);
-        }
-
-        for (Sensor sensor : mSensorsManager.getAvailableSensors()) {
-            if (!isPreferencesListContainsSensor(preferences, sensor)) {
-                preferences.add(new Preference(sensor, false, sensor.getDefaultSettings()));
+            // Sensors of preferences are the ones of SensorsManager, or null if they are gone
+            if (res == null || res.sensor == null || res.sensor.getId() == Sensor.NO_ID ||
+                    mPreferencesById[res.sensor.getId()] != null) {
+                continue;
             }
+            mSensorsPreferences.add(res);
+            mPreferencesById[res.sensor.getId()] = res;
         }
 
-
-        return preferences;
-    }
-
-
-    private boolean isPreferencesListContainsSensor(List<Preference> preferences, Sensor sensor) {
-        for (Preference preference : preferences) {
-            if (preference.sensor != null && preference.sensor.equals(sensor)) {
-                return true;
+        for (Sensor sensor : mSensorsManager.getAvailableSensors()) {
+            if (mPreferencesById[sensor.getId()] == null) {
+                Preference preference = new Preference(sensor, false, sensor.getDefaultSettings());
+                mSensorsPreferences.add(preference);
+                mPreferencesById[sensor.getId()] = preference;
             }
         }
-        return false;
     }
 
 
     public void updateSelection(Sensor sensor, boolean selected) {
-        List<Preference> preferences = getPreferences();
-        for (Preference pref : preferences) {
-            if (pref.sensor != null && pref.sensor.equals(sensor)) {
-                pref.selected = selected;
-                savePreferences(preferences);
-                return;
-            }
+        Preference preference = getPreference(sensor);
+        if (preference != null) {
+            preference.selected = selected;
+            mPreferencesChanged = true;
+            scheduleSave();
         }
     }
 
 
     public void updateSettings(Sensor sensor, Sensor.Settings settings) {
-        List<Preference> preferences = getPreferences();
-        for (Preference pref : preferences) {
-            if (pref.sensor.equals(sensor)) {
-                pref.settings = settings;
-                savePreferences(preferences);
-                return;
-            }
-        }
-    }
-
-
-    private void savePreferences(List<Preference> preferences) {
-        Set<String> input = new HashSet<>();
-        for (Preference pref : preferences) {
-            input.add(mGson.toJson(pref));
+        Preference preference = getPreference(sensor);
+        if (preference != null) {
+            preference.settings = settings;
+            mPreferencesChanged = true;
+            scheduleSave();
         }
-        mPreferences.edit().putStringSet(KEY_PREF_LIST, input).apply();
     }
 
 
     public void setCategoryExpanded(Sensor.Category category, Boolean expanded) {
-        Map<Sensor.Category, Boolean> categories = getCategories();
-        categories.put(category, expanded);
-        saveCategories(categories);
+        getCategories().put(category, expanded);
+        mCategoriesChanged = true;
+        scheduleSave();
     }
 
+    /**
+     * @return expanded state of categories, the map is the one kept by this class
+     */
     public Map<Sensor.Category, Boolean> getCategories() {
 
-        Map<Sensor.Category, Boolean> output = new HashMap<>();
+        if (mCategories != null) {
+            return mCategories;
+        }
+
+        mCategories = new HashMap<>();
         Sensor.Category[] categories = Sensor.Category.values();
 
         for (Sensor.Category category : categories) {
-            output.put(category, true);
+            mCategories.put(category, true);
         }
 
         Set<String> preferencesStrings = new HashSet<>(
@@ -140,83 +169,213 @@ public class PreferencesDataSource {
         for (String categoryString : preferencesStrings) {
             CategoryExpanded categoryExpanded =
                     mGson.fromJson(categoryString, CategoryExpanded.class);
-            output.put(categoryExpanded.category, categoryExpanded.expended);
+            mCategories.put(categoryExpanded.category, categoryExpanded.expended);
         }
 
-        return output;
+        return mCategories;
     }
 
-    public void saveCategories(Map<Sensor.Category, Boolean> categories) {
 
-        Set<String> input = new HashSet<>();
-        for (Map.Entry<Sensor.Category, Boolean> kv : categories.entrySet()) {
-            input.add(mGson.toJson(new CategoryExpanded(kv.getKey(), kv.getValue())));
+    public RecorderSettings getRecorderSettings() {
+
+        if (mChangedRecorderSettings != null) {
+            return mChangedRecorderSettings;
+        }
+
+        String settingsString = mPreferences.getString(KEY_RECORDER_SETTINGS, null);
+        if (settingsString == null) {
+            return new RecorderSettings();
         }
-        mPreferences.edit().putStringSet(KEY_CATEGORY_LIST, input).apply();
+
+        RecorderSettings settings = mGson.fromJson(settingsString, RecorderSettings.class);
+        return settings == null ? new RecorderSettings() : settings;
+    }
+
+    public void saveRecorderSettings(RecorderSettings settings) {
+        mChangedRecorderSettings = settings;
+        scheduleSave();
+    }
+
+
+    private void scheduleSave() {
+        mHandler.removeCallbacks(mSaveRunnable);
+        mHandler.postDelayed(mSaveRunnable, SAVE_DELAY_MS);
+    }
+
+    private final Runnable mSaveRunnable = this::flush;
+
+    /**
+     * Write pending changes now, e.g. when the application goes in background. Changes are
+     * serialized on the calling thread and written to the disk in background.
+     */
+    public void flush() {
+
+        mHandler.removeCallbacks(mSaveRunnable);
+        if (!mPreferencesChanged && !mCategoriesChanged && mChangedRecorderSettings == null) {
+            return;
+        }
+
+        SharedPreferences.Editor editor = mPreferences.edit();
+
+        if (mPreferencesChanged) {
+            Set<String> input = new HashSet<>();
+            for (Preference pref : mSensorsPreferences) {
+                input.add(mGson.toJson(pref));
+            }
+            editor.putStringSet(KEY_PREF_LIST, input);
+            mPreferencesChanged = false;
+        }
+
+        if (mCategoriesChanged) {
+            Set<String> input = new HashSet<>();
+            for (Map.Entry<Sensor.Category, Boolean> kv : mCategories.entrySet()) {
+                input.add(mGson.toJson(new CategoryExpanded(kv.getKey(), kv.getValue())));
+            }
+            editor.putStringSet(KEY_CATEGORY_LIST, input);
+            mCategoriesChanged = false;
+        }
+
+        if (mChangedRecorderSettings != null) {
+            editor.putString(KEY_RECORDER_SETTINGS, mGson.toJson(mChangedRecorderSettings));
+            mChangedRecorderSettings = null;
+        }
+
+        editor.apply();
     }
 
 
     public void removeAll() {
-        mPreferences.edit().putString(KEY_PREF_LIST, null).apply();
-        mPreferences.edit().putString(KEY_CATEGORY_LIST, null).apply();
+        mHandler.removeCallbacks(mSaveRunnable);
+        mPreferencesChanged = false;
+        mCategoriesChanged = false;
+        mChangedRecorderSettings = null;
+
+        // Defaults are loaded again on next calls
+        mSensorsPreferences = null;
+        mPreferencesById = null;
+        mCategories = null;
+
+        mPreferences.edit().
+                remove(KEY_PREF_LIST).
+                remove(KEY_CATEGORY_LIST).
+                remove(KEY_RECORDER_SETTINGS).
+                apply();
     }
 
 
-    // https://github.com/google/gson/issues/43#issuecomment-83700348
+    /**
+     * Preferences are read and written token by token. The class of settings is written before
+     * them, so they are read straight with the adapter of their class. Previous versions wrote it
+     * after settings, which are then read in a tree first.
+     */
     static class PreferenceTypeAdapterFactory implements TypeAdapterFactory {
 
+        private final static String JSON_SENSOR = "sensor";
+        private final static String JSON_SELECTED = "selected";
+        private final static String JSON_SETTINGS = "settings";
+        private final static String JSON_SETTINGS_CLASS = "settings-class";
+
         public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
             if (!Preference.class.isAssignableFrom(type.getRawType())) {
                 return null;
             }
 
+            final TypeAdapter<Sensor> sensorAdapter = gson.getAdapter(Sensor.class);
             final TypeAdapter<JsonElement> elementAdapter = gson.getAdapter(JsonElement.class);
 
-            final TypeAdapter<Preference> preferenceTypeAdapter
-                    = gson.getDelegateAdapter(this, TypeToken.get(Preference.class));
-
-            final TypeAdapter<LocationSensor.Settings> settingsLocationAdapter
-                    = gson.getDelegateAdapter(this, TypeToken.get(LocationSensor.Settings.class));
-            final TypeAdapter<AndroidSensor.Settings> settingsAndroidAdapter
-                    = gson.getDelegateAdapter(this, TypeToken.get(AndroidSensor.Settings.class));
-            final TypeAdapter<CameraRecorder.Settings> settingsCameraAdapter
-                    = gson.getDelegateAdapter(this, TypeToken.get(CameraRecorder.Settings.class));
-            final TypeAdapter<Sensor.Settings> settingsAdapter
-                    = gson.getDelegateAdapter(this, TypeToken.get(Sensor.Settings.class));
+            final Map<String, TypeAdapter<? extends Sensor.Settings>> settingsAdapters =
+                    new HashMap<>();
+            settingsAdapters.put(LocationSensor.Settings.class.getName(),
+                    gson.getAdapter(LocationSensor.Settings.class));
+            settingsAdapters.put(AndroidSensor.Settings.class.getName(),
+                    gson.getAdapter(AndroidSensor.Settings.class));
+            settingsAdapters.put(CameraRecorder.Settings.class.getName(),
+                    gson.getAdapter(CameraRecorder.Settings.class));
+            settingsAdapters.put(Sensor.Settings.class.getName(),
+                    gson.getAdapter(Sensor.Settings.class));
 
 
             TypeAdapter<Preference> result = new TypeAdapter<Preference>() {
                 @Override
                 public void write(JsonWriter out, Preference value) throws IOException {
-                    JsonObject object = preferenceTypeAdapter.toJsonTree(value).getAsJsonObject();
-                    object.add("settings-class", new JsonPrimitive(value.settings.getClass().getName()));
-                    elementAdapter.write(out, object);
+                    out.beginObject();
+                    out.name(JSON_SENSOR);
+                    sensorAdapter.write(out, value.sensor);
+                    out.name(JSON_SELECTED).value(value.selected);
+                    if (value.settings != null) {
+                        out.name(JSON_SETTINGS_CLASS).value(value.settings.getClass().getName());
+                        out.name(JSON_SETTINGS);
+                        writeSettings(out, value.settings);
+                    }
+                    out.endObject();
+                }
+
+                @SuppressWarnings("unchecked")
+                private <S extends Sensor.Settings> void writeSettings(JsonWriter out, S settings)
+                        throws IOException {
+                    TypeAdapter<S> adapter = (TypeAdapter<S>)
+                            settingsAdapters.get(settings.getClass().getName());
+                    if (adapter == null) {
+                        adapter = (TypeAdapter<S>) gson.getAdapter(settings.getClass());
+                    }
+                    adapter.write(out, settings);
                 }
 
                 @Override
                 public Preference read(JsonReader in) throws IOException {
-                    JsonObject object = elementAdapter.read(in).getAsJsonObject();
-                    Preference preference = preferenceTypeAdapter.fromJsonTree(object);
-
-                    Sensor.Settings settings = new Sensor.Settings();
-                    JsonElement settingsClassObject = object.get("settings-class");
-                    JsonElement settingsObject = object.get("settings");
-
-                    if (settingsClassObject != null) {
-                        String settingsClass = settingsClassObject.getAsString();
-                        if (settingsClass.equals(LocationSensor.Settings.class.getName())) {
-                            settings = settingsLocationAdapter.fromJsonTree(settingsObject);
-                        } else if (settingsClass.equals(AndroidSensor.Settings.class.getName())) {
-                            settings = settingsAndroidAdapter.fromJsonTree(settingsObject);
-                        } else if (settingsClass.equals(CameraRecorder.Settings.class.getName())) {
-                            settings = settingsCameraAdapter.fromJsonTree(settingsObject);
-                        } else if (settingsClass.equals(Sensor.Settings.class.getName())) {
-                            settings = settingsAdapter.fromJsonTree(settingsObject);
+
+                    Sensor sensor = null;
+                    boolean selected = false;
+                    Sensor.Settings settings = null;
+                    String settingsClass = null;
+                    JsonElement settingsTree = null;
+
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        switch (in.nextName()) {
+                            case JSON_SENSOR:
+                                sensor = sensorAdapter.read(in);
+                                break;
+                            case JSON_SELECTED:
+                                selected = in.nextBoolean();
+                                break;
+                            case JSON_SETTINGS_CLASS:
+                                settingsClass = in.nextString();
+                                break;
+                            case JSON_SETTINGS:
+                                if (settingsClass != null) {
+                                    settings = readSettings(in, settingsClass);
+                                } else {
+                                    settingsTree = elementAdapter.read(in);
+                                }
+                                break;
+                            default:
+                                in.skipValue();
+                        }
+                    }
+                    in.endObject();
+
+                    if (settingsTree != null && settingsClass != null) {
+                        TypeAdapter<? extends Sensor.Settings> adapter =
+                                settingsAdapters.get(settingsClass);
+                        if (adapter != null) {
+                            settings = adapter.fromJsonTree(settingsTree);
                         }
                     }
 
-                    preference.settings = settings;
-                    return preference;
+                    return new Preference(sensor, selected,
+                            settings != null ? settings : new Sensor.Settings());
+                }
+
+                private Sensor.Settings readSettings(JsonReader in, String settingsClass)
+                        throws IOException {
+                    TypeAdapter<? extends Sensor.Settings> adapter =
+                            settingsAdapters.get(settingsClass);
+                    if (adapter == null) {
+                        in.skipValue();
+                        return null;
+                    }
+                    return adapter.read(in);
                 }
             }.nullSafe();
 
@@ -0,0 +1,236 @@
+package fr.inria.tyrex.senslogs.model.preferences;
+
+import java.io.Serializable;
+import java.util.zip.Deflater;
+
+/**
+ * Settings of the recorder, shared by all sensors of a record
+ */
+public class RecorderSettings implements Serializable {
+
+    /**
+     * Output format of sensors files
+     */
+    public enum Format {
+        TEXT("Text"),
+        BINARY("Binary");
+
+        private String name;
+
+        Format(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * What to do with new samples when the writer does not keep up and its buffer is full
+     */
+    public enum OverflowPolicy {
+        BLOCK("Block sensors"),
+        DROP_OLDEST("Drop oldest samples"),
+        DROP_NEWEST("Drop newest samples"),
+        DECIMATE("Decimate");
+
+        private String name;
+
+        OverflowPolicy(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Unit of timestamps of sensors which provide nanoseconds timestamps
+     */
+    public enum TimestampMode {
+        SECONDS("Seconds (ms precision)"),
+        NANOSECONDS("Nanoseconds");
+
+        private String name;
+
+        TimestampMode(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * How sensors files are shared between writer threads. Each thread has its own buffer.
+     */
+    public enum WriterSharding {
+        SINGLE("One thread for all sensors"),
+        PER_CATEGORY("One thread per category"),
+        PER_SENSOR("One thread per sensor");
+
+        private String name;
+
+        WriterSharding(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * When sensors files are compressed in the log zip file
+     */
+    public enum ArchiveMode {
+        ZIP_AFTER_RECORD("After the record"),
+        STREAMING("While recording");
+
+        private String name;
+
+        ArchiveMode(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Deflate level of sensors files in the log zip file
+     */
+    public enum CompressionLevel {
+        NONE("None", Deflater.NO_COMPRESSION),
+        FASTEST("Fastest", Deflater.BEST_SPEED),
+        DEFAULT("Balanced", Deflater.DEFAULT_COMPRESSION),
+        SMALLEST("Smallest", Deflater.BEST_COMPRESSION);
+
+        private String name;
+        public final int deflateLevel;
+
+        CompressionLevel(String name, int deflateLevel) {
+            this.name = name;
+            this.deflateLevel = deflateLevel;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * When sensors files are synced to the storage device. Data which are not synced can be
+     * lost on power failure, a sync takes some milliseconds.
+     */
+    public enum Durability {
+        NONE("Never, left to the system"),
+        PERIODIC("Periodically"),
+        SEGMENT_CLOSE("When a segment is closed");
+
+        private String name;
+
+        Durability(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public final static int DEFAULT_BUFFER_CAPACITY = 8192;
+    public final static int DEFAULT_SYNC_PERIOD_MS = 1000;
+
+    public Format format;
+    public OverflowPolicy overflowPolicy;
+    public int bufferCapacity;
+    public TimestampMode timestampMode;
+    public WriterSharding writerSharding;
+    public ArchiveMode archiveMode;
+    public CompressionLevel textCompression;
+    public CompressionLevel binaryCompression;
+
+    /*
+     * Sensors files are split in segments when one of these limits is reached, 0 to disable it.
+     * Closed segments are compressed while recording, the archive mode is then not used.
+     */
+    public int segmentSizeMb;
+    public int segmentDurationMin;
+
+    /*
+     * Periodic syncs happen when one of these limits is reached, 0 to disable it. Files are
+     * synced all together, in one pass.
+     */
+    public Durability durability;
+    public int syncPeriodMs;
+    public int syncSizeKb;
+
+    public RecorderSettings() {
+        this(Format.TEXT, OverflowPolicy.BLOCK, DEFAULT_BUFFER_CAPACITY, TimestampMode.SECONDS,
+                WriterSharding.SINGLE, ArchiveMode.ZIP_AFTER_RECORD, CompressionLevel.DEFAULT,
+                CompressionLevel.FASTEST, 0, 0, Durability.NONE, DEFAULT_SYNC_PERIOD_MS, 0);
+    }
+
+    public RecorderSettings(Format format, OverflowPolicy overflowPolicy, int bufferCapacity,
+                            TimestampMode timestampMode, WriterSharding writerSharding,
+                            ArchiveMode archiveMode, CompressionLevel textCompression,
+                            CompressionLevel binaryCompression, int segmentSizeMb,
+                            int segmentDurationMin, Durability durability, int syncPeriodMs,
+                            int syncSizeKb) {
+        this.format = format;
+        this.overflowPolicy = overflowPolicy;
+        this.bufferCapacity = bufferCapacity;
+        this.timestampMode = timestampMode;
+        this.writerSharding = writerSharding;
+        this.archiveMode = archiveMode;
+        this.textCompression = textCompression;
+        this.binaryCompression = binaryCompression;
+        this.segmentSizeMb = segmentSizeMb;
+        this.segmentDurationMin = segmentDurationMin;
+        this.durability = durability;
+        this.syncPeriodMs = syncPeriodMs;
+        this.syncSizeKb = syncSizeKb;
+    }
+
+    public boolean isSegmented() {
+        return segmentSizeMb > 0 || segmentDurationMin > 0;
+    }
+
+    /**
+     * @return compression of sensors files, depending on their format
+     */
+    public CompressionLevel getSensorsCompression() {
+        return format == Format.BINARY ? binaryCompression : textCompression;
+    }
+
+    @Override
+    public String toString() {
+        return "RecorderSettings{" +
+                "format=" + format +
+                ", overflowPolicy=" + overflowPolicy +
+                ", bufferCapacity=" + bufferCapacity +
+                ", timestampMode=" + timestampMode +
+                ", writerSharding=" + writerSharding +
+                ", archiveMode=" + archiveMode +
+                ", textCompression=" + textCompression +
+                ", binaryCompression=" + binaryCompression +
+                ", segmentSizeMb=" + segmentSizeMb +
+                ", segmentDurationMin=" + segmentDurationMin +
+                ", durability=" + durability +
+                ", syncPeriodMs=" + syncPeriodMs +
+                ", syncSizeKb=" + syncSizeKb +
+                '}';
+    }
+}
@@ -3,14 +3,18 @@ package fr.inria.tyrex.senslogs.model.sensors;
 import android.content.Context;
 import android.content.res.Resources;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
 import android.os.Build;
 import android.os.SystemClock;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import fr.inria.tyrex.senslogs.R;
 import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
 import fr.inria.tyrex.senslogs.model.log.Log;
+import fr.inria.tyrex.senslogs.model.preferences.RecorderSettings;
 
 
 /**
@@ -23,6 +27,15 @@ public class AndroidSensor extends Sensor implements FieldsWritableObject {
     transient private double mStartTime;
     transient private double mMonotonicAtStart;
 
+    transient private boolean mNanoseconds;
+    transient private long mStartTimeNanos;
+    transient private long mElapsedRealtimeAtStartNanos;
+    transient private long mMonotonicAtStartNanos;
+
+    transient private boolean mBatching;
+    transient private DirectChannelReader mDirectChannelReader;
+    transient private volatile CountDownLatch mFlushLatch;
+
 
     public AndroidSensor(android.hardware.Sensor sensor) {
         super(sensor.getType(), getCategoryFromSensor(sensor));
@@ -161,17 +174,69 @@ public class AndroidSensor extends Sensor implements FieldsWritableObject {
         }
         Settings sensorSettings = (Settings) settings;
 
-        SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        sensorManager.registerListener(mSensorEventListener, mSensor, sensorSettings.sensorDelay);
-
         mMonotonicAtStart = recordTimes.monotonicAtStart;
         mStartTime = recordTimes.startTime;
         mStartTimeMinusBoot = recordTimes.startTime - recordTimes.bootTime;
+
+        mNanoseconds = recordTimes.timestampMode == RecorderSettings.TimestampMode.NANOSECONDS;
+        mStartTimeNanos = recordTimes.startTimeNanos;
+        mElapsedRealtimeAtStartNanos = recordTimes.elapsedRealtimeAtStartNanos;
+        mMonotonicAtStartNanos = recordTimes.monotonicAtStartNanos;
+
+        SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+
+        // Sensor hub writes events in shared memory, fallback on listener if it cannot
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O &&
+                sensorSettings.directReportRateLevel > 0 &&
+                DirectChannelReader.isSupported(mSensor, sensorSettings.directReportRateLevel)) {
+
+            mDirectChannelReader = new DirectChannelReader(sensorManager, mSensor,
+                    sensorSettings.directReportRateLevel,
+                    getFields(context.getResources()).length - 2, this::onDirectEvent);
+            if (mDirectChannelReader.start()) {
+                return;
+            }
+            mDirectChannelReader = null;
+        }
+
+        // With a max report latency, events are kept in the hardware FIFO and delivered in bursts
+        mBatching = sensorSettings.maxReportLatencyUs > 0 && mSensor.getFifoMaxEventCount() > 0;
+
+        sensorManager.registerListener(mSensorEventListener, mSensor,
+                sensorSettings.getSamplingPeriodUs(), sensorSettings.maxReportLatencyUs,
+                SensorThreads.getHandler(mCategory));
     }
 
     @Override
     public void stop(Context context) {
+        stop(context, SystemClock.elapsedRealtime() + FLUSH_TIMEOUT_MS);
+    }
+
+    @Override
+    public void stop(Context context, long flushDeadline) {
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mDirectChannelReader != null) {
+            mDirectChannelReader.stop();
+            mDirectChannelReader = null;
+            return;
+        }
+
         SensorManager sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+
+        // Events still in the FIFO are delivered before the end of the record
+        if (mBatching) {
+            mFlushLatch = new CountDownLatch(1);
+            if (sensorManager.flush(mSensorEventListener)) {
+                try {
+                    mFlushLatch.await(Math.max(0, flushDeadline - SystemClock.elapsedRealtime()),
+                            TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            mFlushLatch = null;
+        }
+
         sensorManager.unregisterListener(mSensorEventListener);
     }
 
@@ -180,6 +245,11 @@ public class AndroidSensor extends Sensor implements FieldsWritableObject {
         return true;
     }
 
+    @Override
+    public boolean hasNanosecondsTimestamps() {
+        return true;
+    }
+
     @Override
     public Settings getDefaultSettings() {
         return Settings.DEFAULT;
@@ -193,10 +263,42 @@ public class AndroidSensor extends Sensor implements FieldsWritableObject {
     public static class Settings extends Sensor.Settings {
         public int sensorDelay;
 
+        /**
+         * Period between samples in microseconds, or 0 to use {@link #sensorDelay}
+         */
+        public int samplingPeriodUs;
+
+        /**
+         * Maximum time in microseconds that events can be kept in the hardware FIFO before being
+         * reported, 0 to report them as soon as they are available
+         */
+        public int maxReportLatencyUs;
+
+        /**
+         * One of SensorDirectChannel.RATE_* to record from shared memory when the sensor supports
+         * it, 0 (RATE_STOP) to use a listener
+         */
+        public int directReportRateLevel;
+
         public static Settings DEFAULT = new Settings(SensorManager.SENSOR_DELAY_GAME);
 
         public Settings(int sensorDelay) {
+            this(sensorDelay, 0, 0, 0);
+        }
+
+        public Settings(int sensorDelay, int samplingPeriodUs, int maxReportLatencyUs,
+                        int directReportRateLevel) {
             this.sensorDelay = sensorDelay;
+            this.samplingPeriodUs = samplingPeriodUs;
+            this.maxReportLatencyUs = maxReportLatencyUs;
+            this.directReportRateLevel = directReportRateLevel;
+        }
+
+        /**
+         * @return the value given to SensorManager, which also accepts SENSOR_DELAY_* constants
+         */
+        public int getSamplingPeriodUs() {
+            return samplingPeriodUs > 0 ? samplingPeriodUs : sensorDelay;
         }
 
         public static int getDelayIntegerFromString(String delay) {
@@ -230,6 +332,9 @@ public class AndroidSensor extends Sensor implements FieldsWritableObject {
         public String toString() {
             return "AndroidSensor.Settings{" +
                     "sensorDelay=" + sensorDelay +
+                    ", samplingPeriodUs=" + samplingPeriodUs +
+                    ", maxReportLatencyUs=" + maxReportLatencyUs +
+                    ", directReportRateLevel=" + directReportRateLevel +
                     '}';
         }
     }
@@ -239,74 +344,124 @@ public class AndroidSensor extends Sensor implements FieldsWritableObject {
     private TimestampFormat timestampFormat;
     private boolean firstTimestampReached = false;
 
-    transient private SensorEventListener mSensorEventListener = new SensorEventListener() {
-        @Override
-        public void onSensorChanged(final SensorEvent event) {
-            double systemTimestamp = System.currentTimeMillis() / 1e3d - mStartTime;
+    private void onNewEvent(long timestamp, float[] values, long elapsedRealtimeNanos,
+                            double systemTimestamp) {
 
-            if (mListener == null) {
-                return;
+        // Listener can be removed from another thread
+        Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+
+        if (!firstTimestampReached) {
+
+            // https://code.google.com/p/android/issues/detail?id=7981
+            // https://code.google.com/p/android/issues/detail?id=56561
+            // https://code.google.com/p/android/issues/detail?id=78858
+
+            double diff1 = Math.abs(timestamp / 1e9d - System.currentTimeMillis() / 1e3d);
+            if (diff1 < 10) {
+                timestampFormat = TimestampFormat.UNIX_NANO;
             }
 
-            final Object[] output = new Object[event.values.length];
-            for (int i = 0; i < event.values.length; i++) {
-                output[i] = event.values[i];
+            if (Build.VERSION.SDK_INT >= 17) {
+                double diff2 = Math.abs(timestamp / 1e9d - SystemClock.elapsedRealtimeNanos() / 1e9d);
+                if (diff2 < 10) {
+                    timestampFormat = TimestampFormat.BOOT_NANO;
+                }
             }
 
-            if (!firstTimestampReached) {
+            double diff3 = Math.abs(timestamp / 1e9d - System.nanoTime() / 1e9d);
+            if (diff3 < 10) {
+                timestampFormat = TimestampFormat.MONOTONIC_NANO;
+            }
 
-                // https://code.google.com/p/android/issues/detail?id=7981
-                // https://code.google.com/p/android/issues/detail?id=56561
-                // https://code.google.com/p/android/issues/detail?id=78858
+            firstTimestampReached = true;
+        }
 
-                double diff1 = Math.abs(event.timestamp / 1e9d - System.currentTimeMillis() / 1e3d);
-                if (diff1 < 10) {
-                    timestampFormat = TimestampFormat.UNIX_NANO;
-                }
+        if (timestampFormat == null) {
+            return;
+        }
 
-                if (Build.VERSION.SDK_INT >= 17) {
-                    double diff2 = Math.abs(event.timestamp / 1e9d - SystemClock.elapsedRealtimeNanos() / 1e9d);
-                    if (diff2 < 10) {
-                        timestampFormat = TimestampFormat.BOOT_NANO;
-                    }
-                }
+        if (mNanoseconds) {
+            onNewEventNanos(listener, timestamp, values, elapsedRealtimeNanos);
+            return;
+        }
 
-                double diff3 = Math.abs(event.timestamp / 1e9d - System.nanoTime() / 1e9d);
-                if (diff3 < 10) {
-                    timestampFormat = TimestampFormat.MONOTONIC_NANO;
-                }
+        double diffTime;
+        switch (timestampFormat) {
+            case UNIX_NANO:
+                diffTime = timestamp / 1e9d - mStartTime;
+                break;
 
-                firstTimestampReached = true;
-            }
+            case BOOT_NANO:
+                diffTime = timestamp / 1e9d - mStartTimeMinusBoot;
+                break;
 
-            if (timestampFormat == null) {
-                return;
-            }
+            case MONOTONIC_NANO:
+                diffTime = timestamp / 1e9d - mMonotonicAtStart;
+                break;
+
+            default:
+                diffTime = systemTimestamp;
+        }
 
-            double diffTime;
-            switch (timestampFormat) {
-                case UNIX_NANO:
-                    diffTime = event.timestamp / 1e9d - mStartTime;
-                    break;
+        listener.onNewValues(systemTimestamp, diffTime, values);
+    }
 
-                case BOOT_NANO:
-                    diffTime = event.timestamp / 1e9d - mStartTimeMinusBoot;
-                    break;
+    private void onNewEventNanos(Listener listener, long timestamp, float[] values,
+                                 long elapsedRealtimeNanos) {
 
-                case MONOTONIC_NANO:
-                    diffTime = event.timestamp / 1e9d - mMonotonicAtStart;
-                    break;
+        long systemTimestamp = elapsedRealtimeNanos - mElapsedRealtimeAtStartNanos;
 
-                default:
-                    diffTime = systemTimestamp;
-            }
+        long diffTime;
+        switch (timestampFormat) {
+            case UNIX_NANO:
+                diffTime = timestamp - mStartTimeNanos;
+                break;
+
+            case BOOT_NANO:
+                diffTime = timestamp - mElapsedRealtimeAtStartNanos;
+                break;
+
+            case MONOTONIC_NANO:
+                diffTime = timestamp - mMonotonicAtStartNanos;
+                break;
+
+            default:
+                diffTime = systemTimestamp;
+        }
+
+        listener.onNewValuesNanos(systemTimestamp, diffTime, values);
+    }
+
+    /**
+     * Events from shared memory, reception time is the time they have been read
+     */
+    private void onDirectEvent(long timestamp, float[] values, long elapsedRealtimeNanos) {
+        onNewEvent(timestamp, values, elapsedRealtimeNanos,
+                elapsedRealtimeNanos / 1e9d - mStartTimeMinusBoot);
+    }
 
-            mListener.onNewValues(systemTimestamp, diffTime, output);
+    transient private SensorEventListener2 mSensorEventListener = new SensorEventListener2() {
+        @Override
+        public void onSensorChanged(final SensorEvent event) {
+            long elapsedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+            double systemTimestamp = System.currentTimeMillis() / 1e3d - mStartTime;
+            onNewEvent(event.timestamp, event.values, elapsedRealtimeNanos, systemTimestamp);
         }
 
         @Override
         public void onAccuracyChanged(android.hardware.Sensor sensor, int accuracy) {
         }
+
+        @Override
+        public void onFlushCompleted(android.hardware.Sensor sensor) {
+            CountDownLatch flushLatch = mFlushLatch;
+            if (flushLatch != null) {
+                flushLatch.countDown();
+            }
+        }
     };
 
 
@@ -0,0 +1,216 @@
+package fr.inria.tyrex.senslogs.model.sensors;
+
+import android.hardware.SensorDirectChannel;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.MemoryFile;
+import android.os.Process;
+import android.os.SystemClock;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+import fr.inria.tyrex.senslogs.Application;
+
+/**
+ * Events of a sensor written by the sensor hub in shared memory ({@link SensorDirectChannel}),
+ * read by a polling thread, without a Java callback for each event.
+ * <p>
+ * Shared memory is a ring of events of 104 bytes, in native order:
+ * <pre>
+ * 0   int32     size of the event (104)
+ * 4   int32     sensor report token
+ * 8   int32     sensor type
+ * 12  uint32    atomic counter, 1 for the first event then incremented for each event
+ * 16  int64     timestamp, same time base than {@link SystemClock#elapsedRealtimeNanos()}
+ * 24  float[16] values
+ * 88  int32[4]  reserved
+ * </pre>
+ */
+@RequiresApi(api = Build.VERSION_CODES.O)
+class DirectChannelReader {
+
+    private final static int EVENT_SIZE = 104;
+    private final static int OFFSET_TOKEN = 4;
+    private final static int OFFSET_COUNTER = 12;
+    private final static int OFFSET_TIMESTAMP = 16;
+    private final static int OFFSET_VALUES = 24;
+    private final static int MAX_VALUES = 16;
+
+    // About 10 s at 800 Hz
+    private final static int CAPACITY = 8192;
+    private final static int MAX_EVENTS_PER_READ = 256;
+
+    private final static long POLL_PERIOD_NANOS = 10_000_000;
+
+    interface Callback {
+        /**
+         * Called from the polling thread, values array is reused
+         */
+        void onEvent(long timestamp, float[] values, long elapsedRealtimeNanos);
+    }
+
+    private final SensorManager mSensorManager;
+    private final android.hardware.Sensor mSensor;
+    private final int mRateLevel;
+    private final Callback mCallback;
+
+    private final byte[] mBytes = new byte[MAX_EVENTS_PER_READ * EVENT_SIZE];
+    private final ByteBuffer mBuffer = ByteBuffer.wrap(mBytes).order(ByteOrder.nativeOrder());
+    private final float[] mValues;
+
+    private MemoryFile mMemoryFile;
+    private SensorDirectChannel mChannel;
+    private int mToken;
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    private int mReadIndex;
+    private int mExpectedCounter;
+    private long mLostEvents;
+
+    /**
+     * @param valuesLength number of values of an event of this sensor
+     */
+    DirectChannelReader(SensorManager sensorManager, android.hardware.Sensor sensor,
+                        int rateLevel, int valuesLength, Callback callback) {
+        mSensorManager = sensorManager;
+        mSensor = sensor;
+        mRateLevel = rateLevel;
+        mCallback = callback;
+        mValues = new float[Math.max(1, Math.min(MAX_VALUES, valuesLength))];
+    }
+
+    static boolean isSupported(android.hardware.Sensor sensor, int rateLevel) {
+        return sensor.isDirectChannelTypeSupported(SensorDirectChannel.TYPE_MEMORY_FILE) &&
+                sensor.getHighestDirectReportRateLevel() >= rateLevel;
+    }
+
+    /**
+     * @return false if the channel cannot be configured, listener should be used instead
+     */
+    boolean start() {
+
+        try {
+            mMemoryFile = new MemoryFile("senslogs-" + mSensor.getType(), CAPACITY * EVENT_SIZE);
+            mChannel = mSensorManager.createDirectChannel(mMemoryFile);
+            mToken = mChannel.configure(mSensor, mRateLevel);
+        } catch (IOException | UncheckedIOException | IllegalStateException e) {
+            e.printStackTrace();
+            mToken = 0;
+        }
+
+        if (mToken <= 0) {
+            android.util.Log.w(Application.LOG_TAG, "Cannot configure direct channel for " +
+                    mSensor.getName());
+            close();
+            return false;
+        }
+
+        mReadIndex = 0;
+        mExpectedCounter = 1;
+        mLostEvents = 0;
+
+        mRunning = true;
+        mThread = new Thread(this::pollLoop, "sensors-direct-" + mSensor.getType());
+        mThread.start();
+        return true;
+    }
+
+    void stop() {
+
+        mChannel.configure(mSensor, SensorDirectChannel.RATE_STOP);
+
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        if (mLostEvents > 0) {
+            android.util.Log.w(Application.LOG_TAG, mLostEvents + " events of " +
+                    mSensor.getName() + " have been overwritten in direct channel");
+        }
+        close();
+    }
+
+    private void close() {
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+        if (mMemoryFile != null) {
+            mMemoryFile.close();
+            mMemoryFile = null;
+        }
+    }
+
+
+    private void pollLoop() {
+
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+
+        while (true) {
+            // Read before polling, events written before the end are not lost
+            boolean running = mRunning;
+            try {
+                while (read()) ;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            if (!running) {
+                return;
+            }
+            LockSupport.parkNanos(POLL_PERIOD_NANOS);
+        }
+    }
+
+    /**
+     * Give new events to the callback
+     *
+     * @return true if all slots read had a new event, there can be more
+     */
+    private boolean read() throws IOException {
+
+        int count = Math.min(MAX_EVENTS_PER_READ, CAPACITY - mReadIndex);
+        mMemoryFile.readBytes(mBytes, mReadIndex * EVENT_SIZE, 0, count * EVENT_SIZE);
+
+        // Events of a read are received at the same time
+        long elapsedRealtimeNanos = SystemClock.elapsedRealtimeNanos();
+
+        for (int i = 0; i < count; i++) {
+
+            int offset = i * EVENT_SIZE;
+            int counter = mBuffer.getInt(offset + OFFSET_COUNTER);
+            int difference = counter - mExpectedCounter;
+
+            if (difference < 0 || mBuffer.getInt(offset + OFFSET_TOKEN) != mToken) {
+                // Not written yet
+                return false;
+            }
+            if (difference > 0) {
+                // Reader has been overtaken by the sensor hub
+                mLostEvents += difference;
+            }
+
+            for (int j = 0; j < mValues.length; j++) {
+                mValues[j] = mBuffer.getFloat(offset + OFFSET_VALUES + 4 * j);
+            }
+            mCallback.onEvent(mBuffer.getLong(offset + OFFSET_TIMESTAMP), mValues,
+                    elapsedRealtimeNanos);
+
+            mExpectedCounter = counter + 1;
+            mReadIndex = (mReadIndex + 1) % CAPACITY;
+        }
+        return true;
+    }
+}
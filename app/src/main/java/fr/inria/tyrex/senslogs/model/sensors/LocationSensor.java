@@ -102,10 +102,12 @@ public abstract class LocationSensor extends Sensor
                 return;
             }
 
+            // Bearing, accuracy and speed are floats, they are written like floats. Locations
+            // are given about once a second, a new record is allocated for each one.
             mListener.onNewValues(systemTimestamp, location.getTime() / 1e3d - mStartTime,
                     new Object[]{location.getLatitude(), location.getLongitude(),
-                            location.getAltitude(), location.getBearing(), location.getAccuracy(),
-                            location.getSpeed()});
+                            location.getAltitude(), location.getBearing(),
+                            location.getAccuracy(), location.getSpeed()});
         }
 
         @Override
@@ -2,18 +2,17 @@ package fr.inria.tyrex.senslogs.model.sensors;
 
 import android.content.Context;
 
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonSerializationContext;
-import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import fr.inria.tyrex.senslogs.R;
 import fr.inria.tyrex.senslogs.model.log.Log;
@@ -26,6 +25,9 @@ import fr.inria.tyrex.senslogs.model.WritableObject;
  */
 public abstract class Sensor implements Serializable, WritableObject {
 
+    // Longest wait for the values held by a sensor on stop
+    public final static long FLUSH_TIMEOUT_MS = 1000;
+
     public final static int TYPE_LOCATION_GPS = 0x300;
     public final static int TYPE_LOCATION_CELL_WIFI = 0x301;
     public final static int TYPE_LOCATION_PASSIVE = 0x302;
@@ -35,10 +37,14 @@ public abstract class Sensor implements Serializable, WritableObject {
     public final static int TYPE_NFC = 0x306;
     public final static int TYPE_CAMERA = 0x307;
 
+    public final static int NO_ID = -1;
 
     protected Category mCategory;
     protected int mType;
-    protected transient Listener mListener;
+    // Given by SensorsManager at discovery, kept by copies of sensors in bundles
+    private int mId = NO_ID;
+    // Set from the UI thread, read from sensors threads
+    protected transient volatile Listener mListener;
 
     protected Sensor(int type, Category category) {
         mCategory = category;
@@ -47,6 +53,18 @@ public abstract class Sensor implements Serializable, WritableObject {
 
     public abstract String getName();
 
+    /**
+     * @return index of the sensor in {@link fr.inria.tyrex.senslogs.control.SensorsManager},
+     * or {@link #NO_ID} if it has not been discovered
+     */
+    public int getId() {
+        return mId;
+    }
+
+    public void setId(int id) {
+        mId = id;
+    }
+
     public int getType() {
         return mType;
     }
@@ -65,6 +83,16 @@ public abstract class Sensor implements Serializable, WritableObject {
 
     public abstract void stop(Context context);
 
+    /**
+     * Stop the sensor, values it still holds (e.g. hardware FIFO) are given until the deadline.
+     * Sensors of a record are stopped at the same time with the same deadline.
+     *
+     * @param flushDeadline in ms, from {@link android.os.SystemClock#elapsedRealtime()}
+     */
+    public void stop(Context context, long flushDeadline) {
+        stop(context);
+    }
+
 
     @Override
     public boolean equals(Object o) {
@@ -78,6 +106,12 @@ public abstract class Sensor implements Serializable, WritableObject {
                 getName().equals(sensor.getName());
     }
 
+    @Override
+    public int hashCode() {
+        String name = getName();
+        return name != null ? name.hashCode() : 0;
+    }
+
 
     @Override
     public String getFileExtension() {
@@ -88,6 +122,23 @@ public abstract class Sensor implements Serializable, WritableObject {
         return new ArrayList<>();
     }
 
+    /**
+     * @return true if the sensor calls {@link Listener#onNewValuesNanos} when timestamps are
+     * recorded in nanoseconds
+     */
+    public boolean hasNanosecondsTimestamps() {
+        return false;
+    }
+
+    /**
+     * @param index index of a value in records, timestamps excluded
+     * @return true if values of this field are strings repeated across records (e.g. names of
+     * access points), binary files then store each of them once
+     */
+    public boolean isDictionaryField(int index) {
+        return false;
+    }
+
 
     /*
     Category
@@ -163,46 +214,98 @@ public abstract class Sensor implements Serializable, WritableObject {
          * @param objects        data
          */
         void onNewValues(double diffTimeSystem, double diffTimeSensor, Object[] objects);
+
+        /**
+         * Same as {@link #onNewValues(double, double, Object[])} for sensors with float values
+         * only, like most of Android sensors. The array can be reused by the sensor once this
+         * method returns. Values are boxed if the listener does not override it.
+         */
+        default void onNewValues(double diffTimeSystem, double diffTimeSensor, float[] values) {
+            Object[] objects = new Object[values.length];
+            for (int i = 0; i < values.length; i++) objects[i] = values[i];
+            onNewValues(diffTimeSystem, diffTimeSensor, objects);
+        }
+
+        /**
+         * Same as {@link #onNewValues(double, double, float[])} with times in nanoseconds, when
+         * {@link Log.RecordTimes#timestampMode} is
+         * {@link fr.inria.tyrex.senslogs.model.preferences.RecorderSettings.TimestampMode#NANOSECONDS}
+         * and the sensor {@link #hasNanosecondsTimestamps()}. Times are given in seconds if the
+         * listener does not override it.
+         */
+        default void onNewValuesNanos(long diffTimeSystem, long diffTimeSensor, float[] values) {
+            onNewValues(diffTimeSystem / 1e9, diffTimeSensor / 1e9, values);
+        }
+
+        /**
+         * Same as {@link #onNewValues(double, double, float[])} with double values
+         */
+        default void onNewValues(double diffTimeSystem, double diffTimeSensor, double[] values) {
+            Object[] objects = new Object[values.length];
+            for (int i = 0; i < values.length; i++) objects[i] = values[i];
+            onNewValues(diffTimeSystem, diffTimeSensor, objects);
+        }
+
+        /**
+         * Same as {@link #onNewValues(double, double, float[])} with long values
+         */
+        default void onNewValues(double diffTimeSystem, double diffTimeSensor, long[] values) {
+            Object[] objects = new Object[values.length];
+            for (int i = 0; i < values.length; i++) objects[i] = values[i];
+            onNewValues(diffTimeSystem, diffTimeSensor, objects);
+        }
     }
 
 
-    public static class Serializer implements JsonDeserializer<Sensor>,
-            JsonSerializer<Sensor> {
+    /**
+     * Sensors are stored by their name, and read back as the instance of the available sensor
+     * which has this name, or null if there is none
+     */
+    public static class Serializer extends TypeAdapter<Sensor> {
 
         private final static String JSON_ATTRIBUTE_NAME = "name";
 
-        private final List<Sensor> mSensors;
+        private final Map<String, Sensor> mSensorsByName;
 
         public Serializer(List<Sensor> sensors) {
-            mSensors = sensors;
+            mSensorsByName = new HashMap<>();
+            for (Sensor sensor : sensors) {
+                mSensorsByName.put(sensor.getName(), sensor);
+            }
         }
 
         @Override
-        public Sensor deserialize(JsonElement json, Type typeOfT,
-                                  JsonDeserializationContext context)
-                throws JsonParseException {
+        public Sensor read(JsonReader in) throws IOException {
 
-            String sensorName = json.getAsJsonObject().get(JSON_ATTRIBUTE_NAME).getAsString();
-            if (sensorName == null) {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
                 return null;
             }
 
-            for (Sensor sensor : mSensors) {
-                if (sensorName.equals(sensor.getName())) {
-                    return sensor;
+            String sensorName = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                if (JSON_ATTRIBUTE_NAME.equals(in.nextName()) && in.peek() == JsonToken.STRING) {
+                    sensorName = in.nextString();
+                } else {
+                    in.skipValue();
                 }
             }
-            return null;
+            in.endObject();
+
+            return sensorName == null ? null : mSensorsByName.get(sensorName);
         }
 
         @Override
-        public JsonElement serialize(Sensor src, Type typeOfSrc, JsonSerializationContext context) {
-            JsonObject output = new JsonObject();
-            output.addProperty(JSON_ATTRIBUTE_NAME, src.getName());
-            return output;
-
+        public void write(JsonWriter out, Sensor src) throws IOException {
+            if (src == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name(JSON_ATTRIBUTE_NAME).value(src.getName());
+            out.endObject();
         }
     }
 
 }
-
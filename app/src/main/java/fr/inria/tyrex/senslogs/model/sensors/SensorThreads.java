@@ -0,0 +1,66 @@
+package fr.inria.tyrex.senslogs.model.sensors;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Threads on which sensors callbacks are delivered, instead of the UI thread.
+ * Each category of inertial sensors (raw, calibrated, computed) has its own thread with a higher
+ * priority, so a burst of one category does not delay the others. Other sensors share one
+ * thread. Threads are created on first use and kept for the life of the process.
+ */
+public final class SensorThreads {
+
+    private enum Group {
+        IMU("sensors-imu", Process.THREAD_PRIORITY_URGENT_DISPLAY),
+        IMU_CALIBRATED("sensors-imu-calibrated", Process.THREAD_PRIORITY_URGENT_DISPLAY),
+        IMU_COMPUTED("sensors-imu-computed", Process.THREAD_PRIORITY_DISPLAY),
+        OTHER("sensors-other", Process.THREAD_PRIORITY_FOREGROUND);
+
+        private final String threadName;
+        private final int priority;
+
+        Group(String threadName, int priority) {
+            this.threadName = threadName;
+            this.priority = priority;
+        }
+    }
+
+    private static final Map<Group, Handler> sHandlers = new EnumMap<>(Group.class);
+
+    private SensorThreads() {
+    }
+
+    /**
+     * @return handler of the thread which delivers callbacks of a sensor category
+     */
+    public static synchronized Handler getHandler(Sensor.Category category) {
+
+        Group group = getGroup(category);
+        Handler handler = sHandlers.get(group);
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread(group.threadName, group.priority);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            sHandlers.put(group, handler);
+        }
+        return handler;
+    }
+
+    private static Group getGroup(Sensor.Category category) {
+        switch (category) {
+            case IMU:
+                return Group.IMU;
+            case IMU_CALIBRATED:
+                return Group.IMU_CALIBRATED;
+            case IMU_COMPUTED:
+                return Group.IMU_COMPUTED;
+            default:
+                return Group.OTHER;
+        }
+    }
+}
@@ -13,6 +13,9 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import fr.inria.tyrex.senslogs.R;
 import fr.inria.tyrex.senslogs.model.FieldsWritableObject;
 import fr.inria.tyrex.senslogs.model.log.Log;
@@ -23,6 +26,8 @@ import fr.inria.tyrex.senslogs.model.log.Log;
  */
 public class WifiSensor extends Sensor implements FieldsWritableObject {
 
+    private final static int MAX_QUOTED_SSIDS = 4096;
+
     transient private WifiScanReceiver mWifiScanReceiver = null;
 
     transient private static WifiSensor instance;
@@ -31,6 +36,9 @@ public class WifiSensor extends Sensor implements FieldsWritableObject {
 
     transient private long mTimeStartScan;
 
+    // Quoted SSIDs of previous scans, the same access points are seen on each scan
+    transient private Map<String, String> mQuotedSsids;
+
     public static WifiSensor getInstance() {
         if (instance == null) {
             instance = new WifiSensor();
@@ -79,6 +87,14 @@ public class WifiSensor extends Sensor implements FieldsWritableObject {
         return wifiManager != null;
     }
 
+    /**
+     * BSSID, SSID and capabilities
+     */
+    @Override
+    public boolean isDictionaryField(int index) {
+        return index == 0 || index == 1 || index == 4;
+    }
+
     @Override
     public boolean checkPermission(Context context) {
         return !(Build.VERSION.SDK_INT >= 23 &&
@@ -92,6 +108,7 @@ public class WifiSensor extends Sensor implements FieldsWritableObject {
             return;
         }
 
+        mQuotedSsids = new HashMap<>();
         mWifiScanReceiver = new WifiScanReceiver();
         context.registerReceiver(mWifiScanReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
 
@@ -143,7 +160,8 @@ public class WifiSensor extends Sensor implements FieldsWritableObject {
                 mTimeStartScan = System.currentTimeMillis();
             }
 
-            if (mListener == null) {
+            Listener listener = mListener;
+            if (listener == null) {
                 return;
             }
 
@@ -157,10 +175,22 @@ public class WifiSensor extends Sensor implements FieldsWritableObject {
                     diffTime = systemTimestamp;
                 }
 
-                mListener.onNewValues(systemTimestamp, diffTime,
-                        new Object[]{scan.BSSID, "\"" + scan.SSID + "\"",
+                listener.onNewValues(systemTimestamp, diffTime,
+                        new Object[]{scan.BSSID, getQuotedSsid(scan.SSID),
                                 scan.frequency, scan.level, scan.capabilities});
             }
         }
     }
+
+    private String getQuotedSsid(String ssid) {
+        String quotedSsid = mQuotedSsids.get(ssid);
+        if (quotedSsid == null) {
+            if (mQuotedSsids.size() >= MAX_QUOTED_SSIDS) {
+                mQuotedSsids.clear();
+            }
+            quotedSsid = "\"" + ssid + "\"";
+            mQuotedSsids.put(ssid, quotedSsid);
+        }
+        return quotedSsid;
+    }
 }
@@ -36,23 +36,27 @@ import com.google.android.material.snackbar.Snackbar;
 import java.io.File;
 import java.text.DateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
 import fr.inria.tyrex.senslogs.control.CopyTask;
+import fr.inria.tyrex.senslogs.control.LogSummariesTask;
+import fr.inria.tyrex.senslogs.control.TextExportTask;
 import fr.inria.tyrex.senslogs.control.LogsManager;
 import fr.inria.tyrex.senslogs.control.ZipCreationTask;
 import fr.inria.tyrex.senslogs.databinding.FragmentLogsBinding;
 import fr.inria.tyrex.senslogs.model.log.Log;
+import fr.inria.tyrex.senslogs.model.log.LogSummary;
 import fr.inria.tyrex.senslogs.ui.dialog.LogDialog;
 import fr.inria.tyrex.senslogs.ui.utils.DividerItemDecoration;
 import fr.inria.tyrex.senslogs.ui.utils.StringsFormat;
 
 /**
  * This fragment will show the list of sensors logs, then some actions for each log are enabled:
- * share, delete, copy to SD card
+ * share, delete, copy to SD card.
+ * Summaries of logs are loaded in background by pages when the list is scrolled, a log is only
+ * read from the database when it is opened.
  */
 public class LogsFragment extends Fragment {
 
@@ -61,10 +65,17 @@ public class LogsFragment extends Fragment {
 
     private static final int REQUEST_CODE_SHARE = 1;
 
+    private static final int PAGE_SIZE = 50;
+
     private RecyclerView mRecyclerView;
 
     private LogsManager mLogsManager;
-    private List<Log> mLogs;
+
+    // Latest logs first, from the beginning of the list to the last page loaded
+    private List<LogSummary> mSummaries = new ArrayList<>();
+    private int mLogsCount;
+    private LogSummariesTask mLoadingTask;
+    private boolean mReloadScheduled;
 
     private MultiSelector mMultiSelector = new MultiSelector();
     private FragmentLogsBinding mBinding;
@@ -121,18 +132,15 @@ public class LogsFragment extends Fragment {
 
         View v = mBinding.root;
 
-        mLogs = mLogsManager.getLogs();
-        mBinding.setLogs(mLogs);
+        mLogsCount = mLogsManager.getLogsCount();
+        mBinding.setCount(mLogsCount);
 
         Log selectedLog = null;
         Intent intent = getActivity().getIntent();
         if (intent != null && intent.hasExtra(INPUT_LOG)) {
-            selectedLog = mLogsManager.getLogs().get(intent.getIntExtra(INPUT_LOG, -1));
+            selectedLog = mLogsManager.getLog(new File(intent.getStringExtra(INPUT_LOG)));
         }
 
-        Collections.sort(mLogs, (lhs, rhs) ->
-                -Double.compare(lhs.getRecordTimes().startTime, rhs.getRecordTimes().startTime));
-
         LogsAdapter adapter = new LogsAdapter();
 
         mRecyclerView = v.findViewById(R.id.logs_recycler_view);
@@ -141,12 +149,93 @@ public class LogsFragment extends Fragment {
         mRecyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
         mRecyclerView.setAdapter(adapter);
 
+        loadNextPage();
 
         if (selectedLog != null) selectLog(selectedLog);
 
         return v;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        if (mLoadingTask != null) {
+            mLoadingTask.cancel(false);
+            mLoadingTask = null;
+        }
+
+        // Holders are recycled and stop following tasks of zip files
+        mRecyclerView.setAdapter(null);
+        mReloadScheduled = false;
+    }
+
+
+    /*
+    Pages of summaries
+     */
+
+    private void loadNextPage() {
+
+        if (mLoadingTask != null || mSummaries.size() >= mLogsCount) {
+            return;
+        }
+
+        mLoadingTask = mLogsManager.loadLogSummaries(mSummaries.size(), PAGE_SIZE, null,
+                this::onPageLoaded);
+    }
+
+    /**
+     * Replace summaries already loaded after logs have been changed, pages which are loading are
+     * dropped
+     */
+    private void reloadPages() {
+
+        if (mLoadingTask != null) {
+            mLoadingTask.cancel(false);
+        }
+
+        int limit = Math.max(mSummaries.size(), PAGE_SIZE);
+        mLoadingTask = mLogsManager.loadLogSummaries(0, limit, new ArrayList<>(mSummaries),
+                this::onPageLoaded);
+    }
+
+    /**
+     * Reload pages once for all zip files which have been created at the same time
+     */
+    private void scheduleReload() {
+
+        if (mReloadScheduled || getView() == null) {
+            return;
+        }
+        mReloadScheduled = true;
+        mRecyclerView.post(() -> {
+            mReloadScheduled = false;
+            if (getView() != null) {
+                reloadPages();
+            }
+        });
+    }
+
+    private void onPageLoaded(LogSummariesTask.Page page) {
+
+        mLoadingTask = null;
+        if (getView() == null) {
+            return;
+        }
+
+        mLogsCount = page.count;
+        mBinding.setCount(mLogsCount);
+
+        RecyclerView.Adapter adapter = mRecyclerView.getAdapter();
+        if (page.diff != null) {
+            mSummaries = page.summaries;
+            page.diff.dispatchUpdatesTo(adapter);
+        } else if (page.offset == mSummaries.size()) {
+            mSummaries.addAll(page.summaries);
+            adapter.notifyItemRangeInserted(page.offset, page.summaries.size());
+        }
+    }
+
 
     private void selectLog(Log log) {
 
@@ -171,6 +260,11 @@ public class LogsFragment extends Fragment {
             public void onCopyToSdCardResult(final Log log) {
                 copy(log);
             }
+
+            @Override
+            public void onExportAsTextResult(Log log) {
+                exportAsText(log);
+            }
         });
     }
 
@@ -204,16 +298,18 @@ public class LogsFragment extends Fragment {
         List<Log> tmpList = new ArrayList<>();
         tmpList.add(log);
         delete(tmpList);
-
-        mBinding.setLogs(mLogsManager.getLogs());
     }
 
     private void delete(List<Log> logs) {
 
+        if (logs.isEmpty()) {
+            return;
+        }
+
         for (Log log : logs) {
-            mRecyclerView.getAdapter().notifyItemRemoved(mLogs.indexOf(log));
             mLogsManager.deleteLog(log);
         }
+        reloadPages();
 
         String snackBarMessage;
         if (logs.size() > 1) {
@@ -225,8 +321,6 @@ public class LogsFragment extends Fragment {
         }
 
         Snackbar.make(mRecyclerView, Html.fromHtml(snackBarMessage), Snackbar.LENGTH_LONG).show();
-
-        mBinding.setLogs(mLogsManager.getLogs());
     }
 
 
@@ -324,6 +418,36 @@ public class LogsFragment extends Fragment {
     }
 
 
+    private void exportAsText(final Log log) {
+
+        final ProgressDialog alertDialog = new ProgressDialog(getActivity());
+        alertDialog.setCancelable(false);
+        alertDialog.setMax((int) log.getZipFile().length());
+        alertDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        alertDialog.setMessage(getString(R.string.log_export_as_text_progress));
+
+        TextExportTask.Listener listener = new TextExportTask.Listener() {
+            @Override
+            public void onExportFinished(File outputFile) {
+                String outputPath = outputFile.getAbsolutePath();
+                Snackbar snackbar = Snackbar.make(mRecyclerView,
+                        Html.fromHtml(String.format(getString(R.string.log_export_as_text_snackbar),
+                                log.getName(), outputPath)), Snackbar.LENGTH_LONG);
+                snackbar.show();
+                alertDialog.dismiss();
+            }
+
+            @Override
+            public void onProgress(Long currentSize) {
+                alertDialog.setProgress(currentSize.intValue());
+            }
+        };
+
+        alertDialog.show();
+        mLogsManager.exportLogAsText(getActivity(), log, listener);
+    }
+
+
     private ModalMultiSelectorCallback mDeleteMode = new ModalMultiSelectorCallback(mMultiSelector) {
 
         @Override
@@ -341,9 +465,10 @@ public class LogsFragment extends Fragment {
                 List<Log> itemsClicked = new ArrayList<>();
 
 
-                for (int i = mLogs.size(); i >= 0; i--) {
+                for (int i = mSummaries.size() - 1; i >= 0; i--) {
                     if (mMultiSelector.isSelected(i, 0)) {
-                        itemsClicked.add(mLogs.get(i));
+                        Log log = mLogsManager.getLog(mSummaries.get(i).zipFile);
+                        if (log != null) itemsClicked.add(log);
                     }
                 }
 
@@ -368,7 +493,31 @@ public class LogsFragment extends Fragment {
         private final ProgressBar mProgressBar;
         private final View mDataContainer;
 
-        private Log mLog;
+        private LogSummary mSummary;
+
+        // Task of the log shown by the holder, while its zip file is created
+        private ZipCreationTask mCreationTask;
+        private final ZipCreationTask.ZipCreationListener mCreationListener =
+                new ZipCreationTask.ZipCreationListener() {
+                    @Override
+                    public void onProgress(File currentFile, float ratio) {
+                        mProgressBar.setProgress((int) (100 * ratio));
+                    }
+
+                    @Override
+                    public void onTaskFinished(File outputFile, long fileSize) {
+
+                        unbindCreationTask();
+                        if (!isAdded()) {
+                            return;
+                        }
+                        mProgressBar.setVisibility(View.GONE);
+                        mDataContainer.setVisibility(View.VISIBLE);
+                        mCompressedSize.setText(StringsFormat.getSize(getResources(), fileSize));
+                        // Summaries of the pages have been read before the size was known
+                        scheduleReload();
+                    }
+                };
 
         public LogHolder(View v) {
             super(v, mMultiSelector);
@@ -386,47 +535,52 @@ public class LogsFragment extends Fragment {
 
         }
 
-        public void bindLog(Log log) {
-            mLog = log;
-
-            mName.setText(log.getName());
-            mDateTime.setText(DateFormat.getDateTimeInstance().format(log.getRecordTimes().startTime * 1000));
-            mCompressedSize.setText(StringsFormat.getSize(getResources(), log.getCompressedSize()));
-            mShare.setOnClickListener(v -> share(mLog));
-
-            if (mLog.getCreationTask() != null) {
+        public void bindSummary(LogSummary summary) {
+            mSummary = summary;
+
+            mName.setText(summary.name);
+            mDateTime.setText(DateFormat.getDateTimeInstance().format(summary.startTime * 1000));
+            mCompressedSize.setText(StringsFormat.getSize(getResources(), summary.compressedSize));
+            mShare.setOnClickListener(v -> {
+                Log log = mLogsManager.getLog(mSummary.zipFile);
+                if (log != null) share(log);
+            });
+
+            // Only a log created or recovered since the application started can have a task
+            unbindCreationTask();
+            Log loadedLog = mLogsManager.getLoadedLog(summary.zipFile);
+            if (loadedLog != null && loadedLog.getCreationTask() != null) {
                 mProgressBar.setVisibility(View.VISIBLE);
+                mProgressBar.setProgress(0);
                 mDataContainer.setVisibility(View.GONE);
 
-                mLog.getCreationTask().addListener(new ZipCreationTask.ZipCreationListener() {
-                    @Override
-                    public void onProgress(File currentFile, float ratio) {
-                        mProgressBar.setProgress((int) (100 * ratio));
-                    }
+                mCreationTask = loadedLog.getCreationTask();
+                mCreationTask.addListener(mCreationListener);
+            } else {
+                mProgressBar.setVisibility(View.GONE);
+                mDataContainer.setVisibility(View.VISIBLE);
+            }
 
-                    @Override
-                    public void onTaskFinished(File outputFile, long fileSize) {
+        }
 
-                        if (!isAdded()) {
-                            return;
-                        }
-                        mProgressBar.setVisibility(View.GONE);
-                        mDataContainer.setVisibility(View.VISIBLE);
-                        mCompressedSize.setText(StringsFormat.getSize(getResources(), fileSize));
-                    }
-                });
+        /**
+         * Stop following the task of the log, when the holder is bound to another log or recycled
+         */
+        void unbindCreationTask() {
+            if (mCreationTask != null) {
+                mCreationTask.removeListener(mCreationListener);
+                mCreationTask = null;
             }
-
         }
 
         @Override
         public void onClick(View v) {
 
-            if (mLog == null) {
+            if (mSummary == null) {
                 return;
             }
             if (!mMultiSelector.tapSelection(this)) {
-                selectLog(mLog);
+                selectLog(mLogsManager.getLog(mSummary.zipFile));
             }
 
         }
@@ -454,12 +608,21 @@ public class LogsFragment extends Fragment {
 
         @Override
         public void onBindViewHolder(LogHolder holder, int position) {
-            holder.bindLog(mLogs.get(position));
+            holder.bindSummary(mSummaries.get(position));
+
+            if (position >= mSummaries.size() - PAGE_SIZE / 2) {
+                loadNextPage();
+            }
+        }
+
+        @Override
+        public void onViewRecycled(LogHolder holder) {
+            holder.unbindCreationTask();
         }
 
         @Override
         public int getItemCount() {
-            return mLogs.size();
+            return mSummaries.size();
         }
     }
 
@@ -31,6 +31,7 @@ import android.view.animation.AnimationUtils;
 import android.widget.CompoundButton;
 import android.widget.ExpandableListView;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -40,6 +41,7 @@ import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
 import fr.inria.tyrex.senslogs.control.LogsManager;
 import fr.inria.tyrex.senslogs.control.PreferencesManager;
+import fr.inria.tyrex.senslogs.control.RecordRecoveryTask;
 import fr.inria.tyrex.senslogs.control.Recorder;
 import fr.inria.tyrex.senslogs.control.SensorsManager;
 import fr.inria.tyrex.senslogs.model.log.Log;
@@ -47,6 +49,8 @@ import fr.inria.tyrex.senslogs.model.sensors.AndroidSensor;
 import fr.inria.tyrex.senslogs.model.sensors.Sensor;
 import fr.inria.tyrex.senslogs.ui.dialog.CalibrationSensorDialog;
 import fr.inria.tyrex.senslogs.ui.dialog.InformationSensorDialog;
+import fr.inria.tyrex.senslogs.ui.dialog.RecoverRecordsDialog;
+import fr.inria.tyrex.senslogs.ui.dialog.RecorderSettingsDialog;
 import fr.inria.tyrex.senslogs.ui.dialog.SettingsSensorDialog;
 import fr.inria.tyrex.senslogs.ui.listadapter.SensorListAdapter;
 
@@ -95,9 +99,21 @@ public class MainFragment extends Fragment {
 
         mRootView.findViewById(R.id.start_pause).setOnClickListener(v -> onPlayClick());
 
+        if (savedInstanceState == null && !mLogManager.getOrphanedRecords().isEmpty()) {
+            showRecoverRecordsDialog();
+        }
+
         return mRootView;
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        // Preferences are saved with a delay, the process can be killed in background
+        mPreferencesManager.flush();
+    }
+
 
     @Override
     public void onCreateOptionsMenu(final Menu menu, MenuInflater inflater) {
@@ -108,7 +124,7 @@ public class MainFragment extends Fragment {
         mActionLogMenuItem.getActionView().setOnClickListener(v ->
                 menu.performIdentifierAction(mActionLogMenuItem.getItemId(), 0));
 
-        mActionLogMenuItem.setVisible(mLogManager.getLogs().size() != 0);
+        mActionLogMenuItem.setVisible(mLogManager.getLogsCount() != 0);
     }
 
     @Override
@@ -118,6 +134,10 @@ public class MainFragment extends Fragment {
             case R.id.action_logs:
                 startLogsActivity(null);
                 break;
+
+            case R.id.action_recorder_settings:
+                onRecorderSettingsClick();
+                break;
         }
 
         return true;
@@ -183,6 +203,47 @@ public class MainFragment extends Fragment {
         newFragment.show(fm, "fragment_settings_sensor");
     }
 
+    private void onRecorderSettingsClick() {
+        FragmentManager fm = getFragmentManager();
+        DialogFragment newFragment = RecorderSettingsDialog.newInstance();
+        newFragment.show(fm, "fragment_recorder_settings");
+    }
+
+    private void showRecoverRecordsDialog() {
+        FragmentManager fm = getFragmentManager();
+        RecoverRecordsDialog newFragment = RecoverRecordsDialog.newInstance(
+                mLogManager.getOrphanedRecords().size());
+        newFragment.show(fm, "fragment_recover_records");
+
+        newFragment.setListener(new RecoverRecordsDialog.OnDialogResultListener() {
+            @Override
+            public void onRecoverResult() {
+                mLogManager.recoverOrphanedRecords(getActivity(), results -> {
+                    if (!isAdded()) {
+                        return;
+                    }
+                    int recovered = 0;
+                    for (RecordRecoveryTask.Result result : results) {
+                        if (result.log != null) recovered++;
+                    }
+                    Snackbar.make(mRootView, getString(R.string.record_recovered, recovered),
+                            Snackbar.LENGTH_LONG)
+                            .setAction(R.string.record_data_saved_see,
+                                    view -> startLogsActivity(null))
+                            .show();
+                    if (mActionLogMenuItem != null && mLogManager.getLogsCount() > 0) {
+                        mActionLogMenuItem.setVisible(true);
+                    }
+                });
+            }
+
+            @Override
+            public void onDeleteResult() {
+                mLogManager.purgeOrphanedRecords();
+            }
+        });
+    }
+
     private void onCalibrationClick(Sensor sensor) {
         FragmentManager fm = getFragmentManager();
         DialogFragment newFragment = CalibrationSensorDialog.newInstance(sensor);
@@ -290,7 +351,7 @@ public class MainFragment extends Fragment {
         Intent intent = new Intent(getActivity(), LogsActivity.class);
 
         if (log != null) {
-            intent.putExtra(LogsFragment.INPUT_LOG, mLogManager.getLogs().indexOf(log));
+            intent.putExtra(LogsFragment.INPUT_LOG, log.getZipFile().getAbsolutePath());
         }
 
         startActivityForResult(intent, REQUEST_CODE_LOGS);
@@ -310,7 +371,8 @@ public class MainFragment extends Fragment {
                 data != null &&
                 data.hasExtra(RecordFragment.RESULT_LOG)) {
 
-            final Log log = mLogManager.getLogs().get(data.getIntExtra(RecordFragment.RESULT_LOG, -1));
+            final Log log = mLogManager.getLog(
+                    new File(data.getStringExtra(RecordFragment.RESULT_LOG)));
 
             if (log != null) {
 
@@ -325,7 +387,7 @@ public class MainFragment extends Fragment {
 
         if (mActionLogMenuItem != null &&
                 !mActionLogMenuItem.isVisible() &&
-                mLogManager.getLogs().size() > 0) {
+                mLogManager.getLogsCount() > 0) {
 
             mActionLogMenuItem.setVisible(true);
             Animation fade_in = AnimationUtils.loadAnimation(getActivity(), android.R.anim.fade_in);
@@ -334,7 +396,7 @@ public class MainFragment extends Fragment {
 
             mActionLogMenuItem.getActionView().startAnimation(fade_in);
 
-        } else if (mActionLogMenuItem != null && mLogManager.getLogs().size() == 0) {
+        } else if (mActionLogMenuItem != null && mLogManager.getLogsCount() == 0) {
             mActionLogMenuItem.setVisible(false);
         }
     }
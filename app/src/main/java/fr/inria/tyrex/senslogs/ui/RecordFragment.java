@@ -23,14 +23,13 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.text.DecimalFormat;
 
 import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
 import fr.inria.tyrex.senslogs.control.LogsManager;
+import fr.inria.tyrex.senslogs.control.RecordTelemetry;
 import fr.inria.tyrex.senslogs.control.Recorder;
-import fr.inria.tyrex.senslogs.model.log.Log;
 import fr.inria.tyrex.senslogs.model.sensors.NfcSensor;
 import fr.inria.tyrex.senslogs.ui.dialog.FinishRecordDialog;
 import fr.inria.tyrex.senslogs.ui.utils.StringsFormat;
@@ -49,6 +48,7 @@ public class RecordFragment extends Fragment {
     private ImageView mStartPauseButton;
     private TextView mTimerTextView;
     private TextView mDataSizeTextView;
+    private TextView mTelemetryTextView;
     private TextView mRecordCancelTextView;
     private TextView mRecordFinishTextView;
     private Button mRecordTimestampButton;
@@ -56,6 +56,8 @@ public class RecordFragment extends Fragment {
     private Handler mDataSizeHandler;
     private Handler mTimerHandler;
 
+    private boolean isSaving = false;
+
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -78,6 +80,7 @@ public class RecordFragment extends Fragment {
         mStartPauseButton = rootView.findViewById(R.id.start_pause);
         mTimerTextView = rootView.findViewById(R.id.timer);
         mDataSizeTextView = rootView.findViewById(R.id.data_size);
+        mTelemetryTextView = rootView.findViewById(R.id.telemetry);
         mRecordCancelTextView = rootView.findViewById(R.id.record_cancel);
         mRecordFinishTextView = rootView.findViewById(R.id.record_finish);
         mRecordTimestampButton = rootView.findViewById(R.id.record_timestamp);
@@ -177,11 +180,25 @@ public class RecordFragment extends Fragment {
 
     private Runnable mDataSizeRunnable = new Runnable() {
         private final DecimalFormat decimalFormat = new DecimalFormat("#0");
+        private final DecimalFormat latencyFormat = new DecimalFormat("#0.###");
 
         @Override
         public void run() {
+            // Counters of the writer, files are not listed on the UI thread
+            RecordTelemetry telemetry = mRecorder.getTelemetry();
             mDataSizeTextView.setText(StringsFormat.getSize(getResources(),
-                    mRecorder.getDataSize(), decimalFormat));
+                    telemetry.dataSize, decimalFormat));
+
+            StringBuilder text = new StringBuilder(getString(R.string.record_telemetry_writer,
+                    telemetry.queueDepth, telemetry.queueCapacity, telemetry.maxQueueDepth,
+                    latencyFormat.format(telemetry.latencyP50Ms),
+                    latencyFormat.format(telemetry.latencyP99Ms), telemetry.getDropped()));
+            for (RecordTelemetry.StreamTelemetry stream : telemetry.streams) {
+                text.append('\n').append(getString(R.string.record_telemetry_stream, stream.name,
+                        decimalFormat.format(stream.rate),
+                        StringsFormat.getSize(getResources(), stream.bytes, decimalFormat)));
+            }
+            mTelemetryTextView.setText(text);
 
             mDataSizeHandler.postDelayed(this, 666);
         }
@@ -197,6 +214,10 @@ public class RecordFragment extends Fragment {
 
 
     public void cancelAction() {
+        if (isSaving) {
+            return;
+        }
+
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
 
         builder.setMessage(R.string.record_cancelled_dialog_message)
@@ -207,14 +228,9 @@ public class RecordFragment extends Fragment {
     }
 
     private void cancelRecorderConfirmed() {
-        try {
-            mDataSizeHandler.removeCallbacks(mDataSizeRunnable);
-            mTimerHandler.removeCallbacks(mTimerRunnable);
-            mRecorder.cancel();
-        } catch (IOException e) {
-            e.printStackTrace();
-            android.util.Log.e(Application.LOG_TAG, "Something bad happened with file creation");
-        }
+        mDataSizeHandler.removeCallbacks(mDataSizeRunnable);
+        mTimerHandler.removeCallbacks(mTimerRunnable);
+        mRecorder.cancel();
 
         getActivity().setResult(Activity.RESULT_CANCELED);
         getActivity().supportFinishAfterTransition();
@@ -227,19 +243,26 @@ public class RecordFragment extends Fragment {
         newFragment.show(fm, "fragment_record_finish");
 
         newFragment.setListener(value -> {
-            try {
-                Log log = mRecorder.save(value);
-
-                Intent resultIntent = new Intent();
-                resultIntent.putExtra(RESULT_LOG, mLogManager.getLogs().indexOf(log));
-                getActivity().setResult(Activity.RESULT_OK, resultIntent);
-
-            } catch (IOException e) {
-                android.util.Log.e(Application.LOG_TAG, "Something bad happened with file creation");
-                e.printStackTrace();
-            }
 
-            getActivity().supportFinishAfterTransition();
+            // Files are finished in background, the record cannot be changed until the end
+            isSaving = true;
+            mStartPauseButton.setEnabled(false);
+            mRecordFinishTextView.setEnabled(false);
+            mRecordCancelTextView.setEnabled(false);
+
+            mRecorder.save(value, log -> {
+                if (getActivity() == null) {
+                    return;
+                }
+
+                if (log != null) {
+                    Intent resultIntent = new Intent();
+                    resultIntent.putExtra(RESULT_LOG, log.getZipFile().getAbsolutePath());
+                    getActivity().setResult(Activity.RESULT_OK, resultIntent);
+                }
+
+                getActivity().supportFinishAfterTransition();
+            });
         });
     }
 
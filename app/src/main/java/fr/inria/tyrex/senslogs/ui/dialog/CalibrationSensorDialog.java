@@ -15,7 +15,6 @@ import android.widget.Button;
 import android.widget.TextView;
 
 import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
@@ -165,11 +164,7 @@ public class CalibrationSensorDialog extends DialogFragment {
             return;
         }
 
-        try {
-            mRecorder.cancel();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        mRecorder.cancel();
     }
 
     @Override
@@ -210,12 +205,8 @@ public class CalibrationSensorDialog extends DialogFragment {
     }
 
     private void restartCalibration() {
-        try {
-            isSaving = false;
-            mRecorder.cancel();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        isSaving = false;
+        mRecorder.cancel();
     }
 
     private void saveCalibration() {
@@ -236,11 +227,8 @@ public class CalibrationSensorDialog extends DialogFragment {
                 return;
         }
 
-        try {
-            mRecorder.save(String.format(getString(folderId), date));
-            isSaving = true;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        // Log is added in background, the dialog does not wait for it
+        mRecorder.save(String.format(getString(folderId), date), null);
+        isSaving = true;
     }
 }
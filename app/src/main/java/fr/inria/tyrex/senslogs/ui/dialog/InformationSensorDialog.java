@@ -2,6 +2,7 @@ package fr.inria.tyrex.senslogs.ui.dialog;
 
 import android.app.Dialog;
 import android.hardware.Sensor;
+import android.hardware.SensorDirectChannel;
 import android.os.Build;
 import android.os.Bundle;
 
@@ -72,6 +73,20 @@ public class InformationSensorDialog extends DialogFragment {
             }
 
 
+            if (sensor.getFifoMaxEventCount() > 0) {
+                ((TextView) v.findViewById(R.id.sensor_fifo)).setText(
+                        String.format(getString(R.string.fifo_events),
+                                sensor.getFifoReservedEventCount(), sensor.getFifoMaxEventCount()));
+            } else {
+                ((TextView) v.findViewById(R.id.sensor_fifo)).setText(R.string.fifo_none);
+            }
+
+            int directReportRateLevel = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O &&
+                    sensor.isDirectChannelTypeSupported(SensorDirectChannel.TYPE_MEMORY_FILE) ?
+                    sensor.getHighestDirectReportRateLevel() : SensorDirectChannel.RATE_STOP;
+            ((TextView) v.findViewById(R.id.sensor_direct_report)).setText(getResources().
+                    getStringArray(R.array.sensor_settings_direct_report)[directReportRateLevel]);
+
             String sensorResolutionFormat = androidSensor.getUnitsStringFormat(getResources());
 
             ((TextView) v.findViewById(R.id.sensor_resolution)).setText(
@@ -19,6 +19,7 @@ import fr.inria.tyrex.senslogs.Application;
 import fr.inria.tyrex.senslogs.R;
 import fr.inria.tyrex.senslogs.control.ZipCreationTask;
 import fr.inria.tyrex.senslogs.model.log.Log;
+import fr.inria.tyrex.senslogs.model.preferences.RecorderSettings;
 import fr.inria.tyrex.senslogs.ui.utils.StringsFormat;
 
 /**
@@ -94,6 +95,18 @@ public class LogDialog extends DialogFragment {
             }
         });
 
+        View exportAsTextView = v.findViewById(R.id.log_export_as_text);
+        if (mLog.getRecorderSettings() != null &&
+                mLog.getRecorderSettings().format == RecorderSettings.Format.BINARY) {
+            exportAsTextView.setVisibility(View.VISIBLE);
+            exportAsTextView.setOnClickListener(v14 -> {
+                dismiss();
+                if (mListener != null) {
+                    mListener.onExportAsTextResult(mLog);
+                }
+            });
+        }
+
         if (mLog.getCreationTask() != null) {
 
             final ProgressBar progressBar = v.findViewById(R.id.log_progress_bar);
@@ -143,5 +156,7 @@ public class LogDialog extends DialogFragment {
         void onShareResult(Log log);
 
         void onCopyToSdCardResult(Log log);
+
+        void onExportAsTextResult(Log log);
     }
 }
\ No newline at end of file
@@ -0,0 +1,257 @@
+package fr.inria.tyrex.senslogs.ui.dialog;
+
+import android.app.Dialog;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.fragment.app.DialogFragment;
+import androidx.appcompat.app.AlertDialog;
+
+import android.view.View;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.TextView;
+
+import java.util.Locale;
+
+import fr.inria.tyrex.senslogs.Application;
+import fr.inria.tyrex.senslogs.R;
+import fr.inria.tyrex.senslogs.control.PreferencesManager;
+import fr.inria.tyrex.senslogs.model.preferences.RecorderSettings;
+
+/**
+ * This dialog is called when user set settings of the recorder, common to all sensors
+ */
+public class RecorderSettingsDialog extends DialogFragment {
+
+    private final static int MIN_BUFFER_CAPACITY = 64;
+
+    private View v;
+
+    public static RecorderSettingsDialog newInstance() {
+        return new RecorderSettingsDialog();
+    }
+
+
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+
+        final PreferencesManager preferencesManager = ((Application) getActivity().getApplication()).
+                getPreferences();
+        RecorderSettings settings = preferencesManager.getRecorderSettings();
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+
+        v = View.inflate(getActivity(), R.layout.dialog_recorder_settings, null);
+
+        Spinner spinnerFormat = v.findViewById(R.id.settings_recorder_format);
+        RecorderSettings.Format[] formats = RecorderSettings.Format.values();
+        ArrayAdapter<RecorderSettings.Format> dataAdapterFormat =
+                new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item, formats);
+        dataAdapterFormat.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spinnerFormat.setAdapter(dataAdapterFormat);
+
+        int numberOfItemsFormat = spinnerFormat.getCount();
+        for (int i = 0; i < numberOfItemsFormat; i++) {
+            if (settings.format.equals(spinnerFormat.getItemAtPosition(i))) {
+                spinnerFormat.setSelection(i);
+                break;
+            }
+        }
+
+        Spinner spinnerPolicy = v.findViewById(R.id.settings_recorder_overflow_policy);
+        RecorderSettings.OverflowPolicy[] policies = RecorderSettings.OverflowPolicy.values();
+        ArrayAdapter<RecorderSettings.OverflowPolicy> dataAdapterPolicy =
+                new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item, policies);
+        dataAdapterPolicy.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spinnerPolicy.setAdapter(dataAdapterPolicy);
+
+        int numberOfItemsPolicy = spinnerPolicy.getCount();
+        for (int i = 0; i < numberOfItemsPolicy; i++) {
+            if (settings.overflowPolicy.equals(spinnerPolicy.getItemAtPosition(i))) {
+                spinnerPolicy.setSelection(i);
+                break;
+            }
+        }
+
+        ((TextView) v.findViewById(R.id.settings_recorder_buffer_capacity)).
+                setText(String.format(Locale.US, "%d", settings.bufferCapacity));
+
+        Spinner spinnerTimestampMode = v.findViewById(R.id.settings_recorder_timestamp_mode);
+        RecorderSettings.TimestampMode[] timestampModes = RecorderSettings.TimestampMode.values();
+        ArrayAdapter<RecorderSettings.TimestampMode> dataAdapterTimestampMode =
+                new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item,
+                        timestampModes);
+        dataAdapterTimestampMode.setDropDownViewResource(
+                android.R.layout.simple_spinner_dropdown_item);
+        spinnerTimestampMode.setAdapter(dataAdapterTimestampMode);
+
+        int numberOfItemsTimestampMode = spinnerTimestampMode.getCount();
+        for (int i = 0; i < numberOfItemsTimestampMode; i++) {
+            if (settings.timestampMode.equals(spinnerTimestampMode.getItemAtPosition(i))) {
+                spinnerTimestampMode.setSelection(i);
+                break;
+            }
+        }
+
+        Spinner spinnerSharding = v.findViewById(R.id.settings_recorder_writer_sharding);
+        RecorderSettings.WriterSharding[] shardings = RecorderSettings.WriterSharding.values();
+        ArrayAdapter<RecorderSettings.WriterSharding> dataAdapterSharding =
+                new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item, shardings);
+        dataAdapterSharding.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spinnerSharding.setAdapter(dataAdapterSharding);
+
+        int numberOfItemsSharding = spinnerSharding.getCount();
+        for (int i = 0; i < numberOfItemsSharding; i++) {
+            if (settings.writerSharding.equals(spinnerSharding.getItemAtPosition(i))) {
+                spinnerSharding.setSelection(i);
+                break;
+            }
+        }
+
+        Spinner spinnerArchiveMode = v.findViewById(R.id.settings_recorder_archive_mode);
+        RecorderSettings.ArchiveMode[] archiveModes = RecorderSettings.ArchiveMode.values();
+        ArrayAdapter<RecorderSettings.ArchiveMode> dataAdapterArchiveMode =
+                new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item,
+                        archiveModes);
+        dataAdapterArchiveMode.setDropDownViewResource(
+                android.R.layout.simple_spinner_dropdown_item);
+        spinnerArchiveMode.setAdapter(dataAdapterArchiveMode);
+
+        int numberOfItemsArchiveMode = spinnerArchiveMode.getCount();
+        for (int i = 0; i < numberOfItemsArchiveMode; i++) {
+            if (settings.archiveMode.equals(spinnerArchiveMode.getItemAtPosition(i))) {
+                spinnerArchiveMode.setSelection(i);
+                break;
+            }
+        }
+
+        Spinner spinnerTextCompression = v.findViewById(R.id.settings_recorder_text_compression);
+        RecorderSettings.CompressionLevel[] textLevels = RecorderSettings.CompressionLevel.values();
+        ArrayAdapter<RecorderSettings.CompressionLevel> dataAdapterTextCompression =
+                new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item, textLevels);
+        dataAdapterTextCompression.setDropDownViewResource(
+                android.R.layout.simple_spinner_dropdown_item);
+        spinnerTextCompression.setAdapter(dataAdapterTextCompression);
+
+        int numberOfItemsTextCompression = spinnerTextCompression.getCount();
+        for (int i = 0; i < numberOfItemsTextCompression; i++) {
+            if (settings.textCompression.equals(spinnerTextCompression.getItemAtPosition(i))) {
+                spinnerTextCompression.setSelection(i);
+                break;
+            }
+        }
+
+        Spinner spinnerBinaryCompression = v.findViewById(R.id.settings_recorder_binary_compression);
+        RecorderSettings.CompressionLevel[] binaryLevels = RecorderSettings.CompressionLevel.values();
+        ArrayAdapter<RecorderSettings.CompressionLevel> dataAdapterBinaryCompression =
+                new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item, binaryLevels);
+        dataAdapterBinaryCompression.setDropDownViewResource(
+                android.R.layout.simple_spinner_dropdown_item);
+        spinnerBinaryCompression.setAdapter(dataAdapterBinaryCompression);
+
+        int numberOfItemsBinaryCompression = spinnerBinaryCompression.getCount();
+        for (int i = 0; i < numberOfItemsBinaryCompression; i++) {
+            if (settings.binaryCompression.equals(spinnerBinaryCompression.getItemAtPosition(i))) {
+                spinnerBinaryCompression.setSelection(i);
+                break;
+            }
+        }
+
+        ((TextView) v.findViewById(R.id.settings_recorder_segment_size)).
+                setText(String.format(Locale.US, "%d", settings.segmentSizeMb));
+        ((TextView) v.findViewById(R.id.settings_recorder_segment_duration)).
+                setText(String.format(Locale.US, "%d", settings.segmentDurationMin));
+
+        Spinner spinnerDurability = v.findViewById(R.id.settings_recorder_durability);
+        RecorderSettings.Durability[] durabilities = RecorderSettings.Durability.values();
+        ArrayAdapter<RecorderSettings.Durability> dataAdapterDurability =
+                new ArrayAdapter<>(getActivity(), android.R.layout.simple_spinner_item,
+                        durabilities);
+        dataAdapterDurability.setDropDownViewResource(
+                android.R.layout.simple_spinner_dropdown_item);
+        spinnerDurability.setAdapter(dataAdapterDurability);
+
+        int numberOfItemsDurability = spinnerDurability.getCount();
+        for (int i = 0; i < numberOfItemsDurability; i++) {
+            if (settings.durability.equals(spinnerDurability.getItemAtPosition(i))) {
+                spinnerDurability.setSelection(i);
+                break;
+            }
+        }
+
+        ((TextView) v.findViewById(R.id.settings_recorder_sync_period)).
+                setText(String.format(Locale.US, "%d", settings.syncPeriodMs));
+        ((TextView) v.findViewById(R.id.settings_recorder_sync_size)).
+                setText(String.format(Locale.US, "%d", settings.syncSizeKb));
+
+        builder.setTitle(R.string.settings_recorder_title);
+        builder.setView(v);
+        builder.setPositiveButton(R.string.settings_ok, (dialog, which) -> {
+
+                    Spinner spinner = v.findViewById(R.id.settings_recorder_format);
+                    Spinner spinnerPolicy1 = v.findViewById(R.id.settings_recorder_overflow_policy);
+                    Spinner spinnerTimestampMode1 =
+                            v.findViewById(R.id.settings_recorder_timestamp_mode);
+                    Spinner spinnerSharding1 = v.findViewById(R.id.settings_recorder_writer_sharding);
+                    Spinner spinnerArchiveMode1 =
+                            v.findViewById(R.id.settings_recorder_archive_mode);
+                    Spinner spinnerTextCompression1 =
+                            v.findViewById(R.id.settings_recorder_text_compression);
+                    Spinner spinnerBinaryCompression1 =
+                            v.findViewById(R.id.settings_recorder_binary_compression);
+                    Spinner spinnerDurability1 = v.findViewById(R.id.settings_recorder_durability);
+                    String bufferCapacityString = ((EditText) v.findViewById(
+                            R.id.settings_recorder_buffer_capacity)).getText().toString();
+
+                    int bufferCapacity;
+                    try {
+                        bufferCapacity = Integer.parseInt(bufferCapacityString);
+                    } catch (NumberFormatException e) {
+                        bufferCapacity = RecorderSettings.DEFAULT_BUFFER_CAPACITY;
+                    }
+
+                    String segmentSizeString = ((EditText) v.findViewById(
+                            R.id.settings_recorder_segment_size)).getText().toString();
+                    String segmentDurationString = ((EditText) v.findViewById(
+                            R.id.settings_recorder_segment_duration)).getText().toString();
+                    String syncPeriodString = ((EditText) v.findViewById(
+                            R.id.settings_recorder_sync_period)).getText().toString();
+                    String syncSizeString = ((EditText) v.findViewById(
+                            R.id.settings_recorder_sync_size)).getText().toString();
+
+                    RecorderSettings settings1 = new RecorderSettings(
+                            (RecorderSettings.Format) spinner.getSelectedItem(),
+                            (RecorderSettings.OverflowPolicy) spinnerPolicy1.getSelectedItem(),
+                            Math.max(MIN_BUFFER_CAPACITY, bufferCapacity),
+                            (RecorderSettings.TimestampMode) spinnerTimestampMode1.getSelectedItem(),
+                            (RecorderSettings.WriterSharding) spinnerSharding1.getSelectedItem(),
+                            (RecorderSettings.ArchiveMode) spinnerArchiveMode1.getSelectedItem(),
+                            (RecorderSettings.CompressionLevel)
+                                    spinnerTextCompression1.getSelectedItem(),
+                            (RecorderSettings.CompressionLevel)
+                                    spinnerBinaryCompression1.getSelectedItem(),
+                            parsePositiveInt(segmentSizeString),
+                            parsePositiveInt(segmentDurationString),
+                            (RecorderSettings.Durability) spinnerDurability1.getSelectedItem(),
+                            parsePositiveInt(syncPeriodString),
+                            parsePositiveInt(syncSizeString));
+                    preferencesManager.setRecorderSettings(settings1);
+                }
+
+        );
+        builder.setNegativeButton(R.string.settings_cancel, (dialog, which) -> {
+        });
+        return builder.create();
+    }
+
+    private static int parsePositiveInt(String value) {
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package fr.inria.tyrex.senslogs.ui.dialog;
+
+import android.app.Dialog;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.fragment.app.DialogFragment;
+import androidx.appcompat.app.AlertDialog;
+
+import fr.inria.tyrex.senslogs.R;
+
+/**
+ * This dialog is called when records have not been saved because the application was stopped
+ */
+public class RecoverRecordsDialog extends DialogFragment {
+
+    private final static String BUNDLE_COUNT = "count";
+
+    private OnDialogResultListener mListener;
+
+    public static RecoverRecordsDialog newInstance(int count) {
+        RecoverRecordsDialog f = new RecoverRecordsDialog();
+
+        Bundle args = new Bundle();
+        args.putInt(BUNDLE_COUNT, count);
+        f.setArguments(args);
+
+        return f;
+    }
+
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+
+        int count = getArguments().getInt(BUNDLE_COUNT);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+
+        builder.setTitle(R.string.record_recovery_dialog_title);
+        builder.setMessage(getString(R.string.record_recovery_dialog_message, count));
+
+        builder.setPositiveButton(R.string.record_recovery_dialog_recover, (dialog, which) -> {
+            if (mListener != null) {
+                mListener.onRecoverResult();
+            }
+        });
+
+        builder.setNegativeButton(R.string.record_recovery_dialog_delete, (dialog, which) -> {
+            if (mListener != null) {
+                mListener.onDeleteResult();
+            }
+        });
+
+        builder.setNeutralButton(R.string.record_recovery_dialog_later,
+                (dialog, which) -> dialog.cancel());
+
+        return builder.create();
+    }
+
+    public void setListener(OnDialogResultListener listener) {
+        mListener = listener;
+    }
+
+    public interface OnDialogResultListener {
+        void onRecoverResult();
+
+        void onDeleteResult();
+    }
+}
@@ -77,6 +77,19 @@ public class SettingsSensorDialog extends DialogFragment {
                         break;
                     }
                 }
+
+                if (mobileSensorSettings.samplingPeriodUs > 0) {
+                    ((TextView) v.findViewById(R.id.settings_sensor_sampling_period)).
+                            setText(String.format("%d", mobileSensorSettings.samplingPeriodUs));
+                }
+                ((TextView) v.findViewById(R.id.settings_sensor_max_report_latency)).
+                        setText(String.format("%d", mobileSensorSettings.maxReportLatencyUs));
+
+                // Items are ordered as SensorDirectChannel.RATE_* levels
+                Spinner spinnerDirectReport = v.findViewById(R.id.settings_sensor_direct_report);
+                if (mobileSensorSettings.directReportRateLevel < spinnerDirectReport.getCount()) {
+                    spinnerDirectReport.setSelection(mobileSensorSettings.directReportRateLevel);
+                }
             }
 
         } else if (sensor instanceof LocationSensor) {
@@ -160,7 +173,19 @@ public class SettingsSensorDialog extends DialogFragment {
                         Spinner spinner = v.findViewById(R.id.settings_sensor_delay);
                         String result = spinner.getSelectedItem().toString();
                         int delay = AndroidSensor.Settings.getDelayIntegerFromString(result);
-                        settings1 = new AndroidSensor.Settings(delay);
+
+                        String samplingPeriodString = ((EditText) v.findViewById(
+                                R.id.settings_sensor_sampling_period)).getText().toString();
+                        String maxReportLatencyString = ((EditText) v.findViewById(
+                                R.id.settings_sensor_max_report_latency)).getText().toString();
+
+                        Spinner spinnerDirectReport = v.findViewById(
+                                R.id.settings_sensor_direct_report);
+
+                        settings1 = new AndroidSensor.Settings(delay,
+                                parsePositiveInt(samplingPeriodString),
+                                parsePositiveInt(maxReportLatencyString),
+                                spinnerDirectReport.getSelectedItemPosition());
 
                     } else if (sensor instanceof LocationSensor) {
 
@@ -189,4 +214,12 @@ public class SettingsSensorDialog extends DialogFragment {
         });
         return builder.create();
     }
+
+    private static int parsePositiveInt(String value) {
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 }
@@ -0,0 +1,53 @@
+package fr.inria.tyrex.senslogs.control;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Types of columns are taken from the first record, later values which do not fit them are
+ * counted
+ */
+public class BinaryRecordEncoderTest {
+
+    @Test
+    public void mismatchedValues() throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RecordOutput output = new RecordOutput(bytes);
+        BinaryRecordEncoder encoder = new BinaryRecordEncoder("Test", new String[]{
+                "Timestamp", "Float", "Double", "Name"}, new boolean[0]);
+        encoder.start(output);
+
+        encoder.write(output, 1, null, new Object[]{1.5f, 2.5, null});
+        // Widened or written with toString()
+        encoder.write(output, 2, null, new Object[]{2.5f, 3, 4.5f});
+        // Missing values
+        encoder.write(output, 3, null, new Object[]{null, null, null});
+        assertEquals(0, encoder.getMismatchedValues());
+
+        encoder.write(output, 4, null, new Object[]{"text", 5, "name"});
+        encoder.write(output, 5, null, new Object[]{6.5, 6.5, "name"});
+        assertEquals(2, encoder.getMismatchedValues());
+
+        encoder.finish(output);
+        output.close();
+
+        BinaryRecordReader reader = new BinaryRecordReader(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(reader.next());
+        }
+        assertTrue(reader.next());
+        assertTrue(Float.isNaN((Float) reader.getValues()[0]));
+        assertEquals("name", reader.getValues()[2]);
+        assertTrue(reader.next());
+        assertEquals(6.5f, (Float) reader.getValues()[0], 0);
+        assertTrue(!reader.next());
+    }
+}
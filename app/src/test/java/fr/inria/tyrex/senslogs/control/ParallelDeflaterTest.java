@@ -0,0 +1,70 @@
+package fr.inria.tyrex.senslogs.control;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Archives written by chunks are inflated back by {@link ZipFile}, with entries of several
+ * chunks and levels which change from an entry to the next one
+ */
+public class ParallelDeflaterTest {
+
+    // Chunks are 256 KB
+    private static final int[] SIZES = {0, 1000, 256 * 1024, 256 * 1024 + 1, 525288,
+            3 * 256 * 1024 + 7};
+
+    private static final int[] LEVELS = {Deflater.DEFAULT_COMPRESSION, Deflater.BEST_SPEED,
+            Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION, Deflater.DEFAULT_COMPRESSION};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws IOException {
+
+        Random random = new Random(0);
+        File zipFile = mFolder.newFile("record.zip");
+        ZipArchiveWriter writer = new ZipArchiveWriter(zipFile);
+        ParallelDeflater deflater = new ParallelDeflater(writer, (file, bytes) -> {
+        });
+
+        byte[][] contents = new byte[LEVELS.length * SIZES.length][];
+        int i = 0;
+        for (int level : LEVELS) {
+            for (int size : SIZES) {
+                contents[i] = TestFiles.generate(random, size);
+                File file = TestFiles.write(mFolder.getRoot(), "file-" + i, contents[i]);
+                deflater.addFile(getName(i), file, level);
+                i++;
+            }
+        }
+        deflater.finish();
+        writer.finish();
+
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            for (i = 0; i < contents.length; i++) {
+                ZipEntry entry = zip.getEntry(getName(i));
+                assertNotNull(getName(i), entry);
+                assertArrayEquals(getName(i), contents[i], TestFiles.read(zip.getInputStream(entry)));
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static String getName(int i) {
+        return "entry-" + i;
+    }
+}
@@ -0,0 +1,137 @@
+package fr.inria.tyrex.senslogs.control;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Sensors files of a record which has not been saved are cut after their last complete record,
+ * whatever is written after it: zeros of the preallocated file, a truncated record or garbage
+ */
+public class RecordFileCutterTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int RECORDS = 10;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void preallocatedTail() throws IOException {
+        long[] ends = new long[RECORDS];
+        byte[] records = encode(ends);
+        File file = write("preallocated.bin", records, new byte[4096]);
+
+        assertEquals(Long.valueOf(ends[RECORDS - 1]),
+                RecordFileCutter.findLastRecordEnd(file, null));
+
+        new RecordFileCutter().cutBinary(file, null);
+        assertArrayEquals(records, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void truncatedTail() throws IOException {
+        long[] ends = new long[RECORDS];
+        byte[] records = encode(ends);
+        File file = write("truncated.bin",
+                Arrays.copyOf(records, (int) ends[RECORDS - 1] - 3), new byte[0]);
+
+        assertEquals(Long.valueOf(ends[RECORDS - 2]),
+                RecordFileCutter.findLastRecordEnd(file, null));
+    }
+
+    @Test
+    public void garbageTail() throws IOException {
+        long[] ends = new long[RECORDS];
+        byte[] records = encode(ends);
+
+        // Timestamps and value of a record, then an index which is not in the dictionary
+        ByteBuffer garbage = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+        garbage.putDouble(1).putDouble(1).putFloat(1).putShort((short) 1000);
+        File file = write("garbage.bin", records, garbage.array());
+
+        assertEquals(Long.valueOf(ends[RECORDS - 1]),
+                RecordFileCutter.findLastRecordEnd(file, null));
+    }
+
+    @Test
+    public void syncedSizeIsMinimum() throws IOException {
+        long[] ends = new long[RECORDS];
+        byte[] records = encode(ends);
+        File file = write("synced.bin", records, new byte[4096]);
+
+        // Records written after the last sync point are kept
+        assertEquals(Long.valueOf(ends[RECORDS - 1]),
+                RecordFileCutter.findLastRecordEnd(file, ends[2]));
+
+        // Synced records are kept, even if they look like preallocated zeros
+        assertEquals(Long.valueOf(ends[RECORDS - 1] + 100),
+                RecordFileCutter.findLastRecordEnd(file, ends[RECORDS - 1] + 100));
+
+        // Header cannot be read
+        File header = write("header.bin", Arrays.copyOf(records, 5), new byte[0]);
+        assertEquals(Long.valueOf(3), RecordFileCutter.findLastRecordEnd(header, 3L));
+        assertNull(RecordFileCutter.findLastRecordEnd(header, null));
+    }
+
+    @Test
+    public void text() throws IOException {
+        byte[] lines = "0.1\t0.1\t1.5\n0.2\t0.2\t0\n".getBytes(UTF_8);
+        RecordFileCutter cutter = new RecordFileCutter();
+
+        File preallocated = write("preallocated.txt", lines, new byte[4096]);
+        cutter.cutText(preallocated);
+        assertArrayEquals(lines, Files.readAllBytes(preallocated.toPath()));
+
+        File truncated = write("truncated.txt", lines, "0.3\t0.3\t".getBytes(UTF_8));
+        cutter.cutText(truncated);
+        assertArrayEquals(lines, Files.readAllBytes(truncated.toPath()));
+    }
+
+
+    /**
+     * Records of a sensor with a value and a dictionary string, the last record has only zeros
+     * but its timestamps: its value is 0 and its string is the first one of the dictionary
+     *
+     * @param ends filled with the position after each record
+     */
+    private static byte[] encode(long[] ends) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RecordOutput output = new RecordOutput(bytes);
+        BinaryRecordEncoder encoder = new BinaryRecordEncoder("Test", new String[]{
+                "Timestamp", "Sensor timestamp", "Value", "Name"}, new boolean[]{false, true});
+        encoder.start(output);
+        for (int i = 0; i < ends.length; i++) {
+            boolean last = i == ends.length - 1;
+            encoder.write(output, 0.1 * (i + 1), 0.1 * (i + 1), new Object[]{
+                    last ? 0f : 1.5f * i, "name-" + i % 3});
+            output.flush();
+            ends[i] = output.getSize();
+        }
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    private File write(String name, byte[] content, byte[] tail) throws IOException {
+        File file = mFolder.newFile(name);
+        byte[] bytes = Arrays.copyOf(content, content.length + tail.length);
+        System.arraycopy(tail, 0, bytes, content.length, tail.length);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+}
@@ -0,0 +1,73 @@
+package fr.inria.tyrex.senslogs.control;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Contents and files shared by tests of zip files
+ */
+final class TestFiles {
+
+    private TestFiles() {
+    }
+
+    /**
+     * Repeated values with some noise, like sensors files
+     */
+    static byte[] generate(Random random, int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (random.nextInt(8) == 0 ? random.nextInt() : i % 13);
+        }
+        return bytes;
+    }
+
+    static File write(File directory, String name, byte[] content) throws IOException {
+        File file = new File(directory, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Raw deflate, like files compressed while recording
+     */
+    static byte[] deflate(byte[] content, int level) {
+        Deflater deflater = new Deflater(level, true);
+        deflater.setInput(content);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Read the stream until its end and close it
+     */
+    static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        try {
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
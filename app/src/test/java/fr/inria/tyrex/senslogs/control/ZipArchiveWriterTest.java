@@ -0,0 +1,68 @@
+package fr.inria.tyrex.senslogs.control;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Zip64 records are added from 65535 entries, the number of entries does not fit in the end
+ * record anymore
+ */
+public class ZipArchiveWriterTest {
+
+    private static final int MAX_16 = 0xFFFF;
+
+    // End of central directory record, then Zip64 end record and its locator
+    private static final int END_LENGTH = 22;
+    private static final int ZIP64_END_LENGTH = 56 + 20;
+
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void zip64Threshold() throws IOException {
+        checkEntries(MAX_16 - 1, false);
+        checkEntries(MAX_16, true);
+    }
+
+    private void checkEntries(int count, boolean zip64) throws IOException {
+
+        File file = mFolder.newFile("entries-" + count + ".zip");
+        ZipArchiveWriter writer = new ZipArchiveWriter(file);
+        for (int i = 0; i < count; i++) {
+            ZipArchiveWriter.Entry entry = writer.newEntry("entry-" + i,
+                    ZipArchiveWriter.METHOD_STORED, 0);
+            writer.startEntry(entry);
+            writer.endEntry(entry, 0, 0);
+        }
+        writer.finish();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(raf.length() - END_LENGTH - ZIP64_END_LENGTH);
+            int signature = Integer.reverseBytes(raf.readInt());
+            assertEquals("Zip64 end record of " + count + " entries",
+                    zip64, signature == ZIP64_END_SIGNATURE);
+        } finally {
+            raf.close();
+        }
+
+        ZipFile zip = new ZipFile(file);
+        try {
+            assertEquals(count, zip.size());
+            assertNotNull(zip.getEntry("entry-" + (count - 1)));
+        } finally {
+            zip.close();
+        }
+    }
+}
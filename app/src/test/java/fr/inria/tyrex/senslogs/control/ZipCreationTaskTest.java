@@ -0,0 +1,226 @@
+package fr.inria.tyrex.senslogs.control;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import fr.inria.tyrex.senslogs.model.preferences.RecorderSettings;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Log zip files are inflated back by {@link ZipFile} whatever the compression level of sensors
+ * files, like the ones of a saved or recovered record
+ */
+public class ZipCreationTaskTest {
+
+    // Several chunks of ParallelDeflater
+    private static final int SENSORS_FILE_SIZE = 600 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void compressionLevels() throws IOException {
+        for (RecorderSettings.CompressionLevel level : RecorderSettings.CompressionLevel.values()) {
+            checkArchive(level.deflateLevel);
+        }
+    }
+
+    /**
+     * Files compressed while recording are copied in the archive as they are, segments one
+     * after the other
+     */
+    @Test
+    public void compressedEntries() throws IOException {
+
+        Random random = new Random(0);
+        File directory = mFolder.newFolder("record");
+
+        // Segments of a file deflated while recording, each one ends with a sync flush
+        byte[][] chunks = new byte[3][];
+        List<File> deflatedParts = new ArrayList<>();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = TestFiles.generate(random, SENSORS_FILE_SIZE / 3);
+            deflatedParts.add(TestFiles.write(directory, "segment-" + i + ".deflate",
+                    deflateChunk(deflater, chunks[i], i == chunks.length - 1)));
+        }
+        deflater.end();
+        byte[] deflatedContent = concat(chunks);
+
+        // Segments of a file stored as it is
+        List<File> storedParts = Arrays.asList(
+                TestFiles.write(directory, "segment-0", chunks[0]),
+                TestFiles.write(directory, "segment-1", chunks[1]));
+        byte[] storedContent = concat(chunks[0], chunks[1]);
+
+        List<ZipCreationTask.CompressedEntry> compressedEntries = new ArrayList<>();
+        compressedEntries.add(new ZipCreationTask.CompressedEntry("deflated.txt", deflatedParts,
+                true, getCrc(deflatedContent), deflatedContent.length));
+        compressedEntries.add(new ZipCreationTask.CompressedEntry("stored.bin", storedParts,
+                false, getCrc(storedContent), storedContent.length));
+
+        File zipFile = new File(directory, "record.zip");
+        ZipFile zip = createZip(zipFile, Collections.<File>emptyList(), compressedEntries,
+                new CompressionPolicy());
+        try {
+            assertPassedThrough(zip, "deflated.txt", ZipEntry.DEFLATED, deflatedParts);
+            assertEntry(zip, "deflated.txt", deflatedContent);
+            assertPassedThrough(zip, "stored.bin", ZipEntry.STORED, storedParts);
+            assertEntry(zip, "stored.bin", storedContent);
+        } finally {
+            zip.close();
+        }
+
+        // Bytes of segments are in the archive, one after the other
+        byte[] archive = Files.readAllBytes(zipFile.toPath());
+        assertTrue(indexOf(archive, concat(read(deflatedParts))) > 0);
+        assertTrue(indexOf(archive, storedContent) > 0);
+    }
+
+
+    private void checkArchive(int sensorsLevel) throws IOException {
+
+        Random random = new Random(sensorsLevel);
+        File directory = mFolder.newFolder("record" + sensorsLevel);
+
+        List<File> inputFiles = new ArrayList<>();
+        CompressionPolicy policy = new CompressionPolicy();
+        File binary = TestFiles.write(directory, "accelerometer.bin",
+                TestFiles.generate(random, SENSORS_FILE_SIZE));
+        File text = TestFiles.write(directory, "gyroscope.txt",
+                TestFiles.generate(random, SENSORS_FILE_SIZE));
+        policy.setLevel(binary, sensorsLevel);
+        policy.setLevel(text, sensorsLevel);
+        inputFiles.add(binary);
+        inputFiles.add(text);
+        inputFiles.add(TestFiles.write(directory, "record.ini",
+                TestFiles.generate(random, 1000)));
+        inputFiles.add(TestFiles.write(directory, "video.mp4",
+                TestFiles.generate(random, 300 * 1024)));
+
+        // Sensors file deflated while recording
+        byte[] streamed = TestFiles.generate(random, SENSORS_FILE_SIZE);
+        File deflated = TestFiles.write(directory, "magnetometer.txt.deflate",
+                TestFiles.deflate(streamed, Deflater.BEST_SPEED));
+        List<ZipCreationTask.CompressedEntry> compressedEntries = new ArrayList<>();
+        compressedEntries.add(new ZipCreationTask.CompressedEntry("magnetometer.txt", deflated,
+                getCrc(streamed), streamed.length));
+
+        ZipFile zip = createZip(new File(directory, "record.zip"), inputFiles,
+                compressedEntries, policy);
+        try {
+            for (File file : inputFiles) {
+                assertEntry(zip, file.getName(), TestFiles.read(new FileInputStream(file)));
+            }
+            assertEntry(zip, "magnetometer.txt", streamed);
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static ZipFile createZip(File zipFile, List<File> inputFiles,
+                                     List<ZipCreationTask.CompressedEntry> compressedEntries,
+                                     CompressionPolicy policy) throws IOException {
+        new ZipCreationTask().doInBackground(new ZipCreationTask.Params(zipFile, inputFiles,
+                compressedEntries, policy));
+        return new ZipFile(zipFile);
+    }
+
+    private static void assertEntry(ZipFile zip, String name, byte[] content) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        assertNotNull(name, entry);
+        assertArrayEquals(name, content, TestFiles.read(zip.getInputStream(entry)));
+    }
+
+    /**
+     * Entry has the method of its segments and their length as compressed size
+     */
+    private static void assertPassedThrough(ZipFile zip, String name, int method,
+                                            List<File> parts) {
+        ZipEntry entry = zip.getEntry(name);
+        assertNotNull(name, entry);
+        assertEquals(name, method, entry.getMethod());
+        long length = 0;
+        for (File part : parts) {
+            length += part.length();
+        }
+        assertEquals(name, length, entry.getCompressedSize());
+    }
+
+    /**
+     * Raw deflate of a segment, ended by a sync flush or by the final block for the last one
+     */
+    private static byte[] deflateChunk(Deflater deflater, byte[] chunk, boolean last) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        deflater.setInput(chunk);
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } else {
+            int count;
+            do {
+                count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                out.write(buffer, 0, count);
+            } while (count == buffer.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static long getCrc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private static byte[][] read(List<File> files) throws IOException {
+        byte[][] contents = new byte[files.size()][];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = TestFiles.read(new FileInputStream(files.get(i)));
+        }
+        return contents;
+    }
+
+    private static byte[] concat(byte[]... contents) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] content : contents) {
+            out.write(content, 0, content.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            int j = 0;
+            while (j < part.length && bytes[i + j] == part[j]) {
+                j++;
+            }
+            if (j == part.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}